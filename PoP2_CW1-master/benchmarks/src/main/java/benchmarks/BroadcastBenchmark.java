@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The server's fan-out of one chat message, in one JVM and without sockets: the line is built with Frames, published
+ * to a room's ring once, every recipient's queue is told, and every recipient takes the message and copies it into a
+ * write buffer the way the event loops do, timing the write to the last recipient. Same path as AllocationProfile.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final MethodHandle NAME_TAG = Targets.method("Frames", "nameTag", String.class);
+    private static final MethodHandle CHAT = Targets.method("Frames", "chat", byte[].class, String.class);
+    private static final MethodHandle OFFSET = Targets.method("Frames", "offset", ByteBuffer.class, boolean.class);
+    private static final MethodHandle LENGTH = Targets.method("Frames", "length", ByteBuffer.class, boolean.class);
+    private static final MethodHandle PUBLISH = Targets.method("BroadcastRing", "publish", ByteBuffer.class, int.class);
+    private static final MethodHandle PUBLISHED = Targets.method("OutboundQueue", "published",
+            Targets.type("BroadcastRing"), long.class, boolean.class);
+    private static final MethodHandle POLL = Targets.method("OutboundQueue", "poll");
+    private static final MethodHandle COPIED = Targets.method("OutboundQueue", "copied");
+    private static final MethodHandle WRITTEN = Targets.method("OutboundQueue", "written",
+            Targets.type("ServerMetrics"));
+
+    private static final String MESSAGE = "a typical chat message of about sixty characters in length..";
+
+    @Param({"1", "100", "10000"})
+    public int recipients;
+
+    private Object ring;
+    private Object[] queues;
+    private Object metrics;
+    private byte[] nameTag;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Setup(Level.Trial)
+    public void join() throws Throwable {
+        Class<?> ringType = Targets.type("BroadcastRing");
+        Class<?> overflowType = Targets.type("OutboundQueue$Overflow");
+        Object dropOldest = Enum.valueOf((Class) overflowType, "DROP_OLDEST");
+        ring = Targets.create("BroadcastRing", new Class<?>[]{int.class}, 2048);
+        queues = new Object[recipients];
+        for (int i = 0; i < recipients; i++) {
+            queues[i] = Targets.create("OutboundQueue", new Class<?>[]{ringType, int.class, overflowType, long.class},
+                    ring, 1024, dropOldest, 250L);
+        }
+        metrics = Targets.create("ServerMetrics", new Class<?>[0]);
+        nameTag = (byte[]) NAME_TAG.invoke("sender");
+    }
+
+    @Benchmark
+    public void broadcast() throws Throwable {
+        ByteBuffer frame = (ByteBuffer) CHAT.invoke(nameTag, MESSAGE);
+        long sequence = (long) PUBLISH.invoke(ring, frame, recipients);
+        for (Object queue : queues) {
+            boolean ignored = (boolean) PUBLISHED.invoke(queue, ring, sequence, false);
+        }
+        for (Object queue : queues) {
+            ByteBuffer taken;
+            while ((taken = (ByteBuffer) POLL.invoke(queue)) != null) {
+                writeBuffer.put(0, taken, (int) OFFSET.invoke(taken, false), (int) LENGTH.invoke(taken, false));
+                COPIED.invoke(queue);
+            }
+            WRITTEN.invoke(queue, metrics);
+        }
+    }
+}
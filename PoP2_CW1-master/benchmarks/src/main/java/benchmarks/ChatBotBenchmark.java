@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bot picking its answer to a message, done for every message it is sent.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatBotBenchmark {
+
+    private static final MethodHandle GET_ANSWER = Targets.method("ChatBot", "getAnswer", String.class);
+
+    // a fixed answer, one picked from a list, and the default list
+    @Param({"Hello", "why", "tell me about your day"})
+    public String message;
+
+    private Object bot;
+
+    @Setup(Level.Trial)
+    public void create() {
+        bot = Targets.create("ChatBot", new Class<?>[0]);
+    }
+
+    @Benchmark
+    public void getAnswer() throws Throwable {
+        GET_ANSWER.invoke(bot, message);
+    }
+}
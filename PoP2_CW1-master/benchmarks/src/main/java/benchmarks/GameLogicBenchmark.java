@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The DoD commands a hosted game runs on every turn, on the example maps and on generated maps up to 10k x 10k.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class GameLogicBenchmark {
+
+    private static final MethodHandle LOOK = Targets.method("GameLogic", "look", char.class);
+    private static final MethodHandle MOVE = Targets.method("GameLogic", "move", char.class, char.class);
+    private static final MethodHandle PICKUP = Targets.method("GameLogic", "pickup");
+
+    @Param({"small_example_map", "medium_example_map", "large_example_map",
+            "generated-100", "generated-1000", "generated-10000"})
+    public String map;
+
+    private Object game;
+    private boolean back = false;
+
+    @Setup(Level.Trial)
+    public void start() {
+        game = Targets.create("GameLogic", new Class<?>[]{Targets.type("Map")}, Targets.map(map));
+    }
+
+    @Benchmark
+    public String look() throws Throwable {
+        return (String) LOOK.invoke(game, 'P');
+    }
+
+    /**
+     * Moves the player east and west in turn, so it stays in the same place. Into a wall it fails, which costs the
+     * same lookup.
+     */
+    @Benchmark
+    public String move() throws Throwable {
+        back = !back;
+        return (String) MOVE.invoke(game, back ? 'E' : 'W', 'P');
+    }
+
+    @Benchmark
+    public String pickup() throws Throwable {
+        return (String) PICKUP.invoke(game);
+    }
+}
@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Map's lookups and updates on the example maps and on generated maps up to 10k x 10k.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class MapBenchmark {
+
+    static final MethodHandle GET_POS = Targets.method("Map", "getPos", char.class);
+    static final MethodHandle GET_AT_POS = Targets.method("Map", "getAtPos", int[].class);
+    static final MethodHandle MOVE_PLAYER = Targets.method("Map", "movePlayer", int[].class, char.class);
+    static final MethodHandle PLACE_PLAYER = Targets.method("Map", "placePlayerOnMap", char.class);
+    static final MethodHandle SET_RANDOM = Targets.method("Map", "setRandom", RandomGenerator.class);
+
+    /**
+     * A map with the player placed on it, next to a free tile it can move to and back.
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+        @Param({"small_example_map", "medium_example_map", "large_example_map",
+                "generated-100", "generated-1000", "generated-10000"})
+        public String map;
+
+        Object dod;
+        int[] from;
+        int[] to;
+        boolean back = false;
+
+        @Setup(Level.Trial)
+        public void load() throws Throwable {
+            dod = Targets.map(map);
+            // the same placements every run
+            SET_RANDOM.invoke(dod, new SplittableRandom(1));
+            PLACE_PLAYER.invoke(dod, 'P');
+            from = (int[]) GET_POS.invoke(dod, 'P');
+            to = freeNextTo(dod, from);
+        }
+    }
+
+    /**
+     * A map the bot is placed on again and again, placing it takes it off where it was, so every placement sees the
+     * same map.
+     */
+    @State(Scope.Thread)
+    public static class Placing extends Loaded {
+    }
+
+    @Benchmark
+    public int[] getPos(Loaded state) throws Throwable {
+        return (int[]) GET_POS.invoke(state.dod, 'P');
+    }
+
+    @Benchmark
+    public void movePlayer(Loaded state) throws Throwable {
+        MOVE_PLAYER.invoke(state.dod, state.back ? state.from : state.to, 'P');
+        state.back = !state.back;
+    }
+
+    @Benchmark
+    public void placePlayerOnMap(Placing state) throws Throwable {
+        PLACE_PLAYER.invoke(state.dod, 'B');
+    }
+
+    /**
+     * @param dod : a Map.
+     * @param pos : a position on it.
+     * @return : a tile next to the position that isn't a wall.
+     */
+    static int[] freeNextTo(Object dod, int[] pos) throws Throwable {
+        int[][] steps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        for (int[] step : steps) {
+            int[] next = {pos[0] + step[0], pos[1] + step[1]};
+            if ((char) GET_AT_POS.invoke(dod, next) != '#') {
+                return next;
+            }
+        }
+        throw new IllegalStateException("The player was placed with walls all around");
+    }
+}
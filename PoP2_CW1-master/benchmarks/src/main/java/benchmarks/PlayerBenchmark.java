@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validating a player's command against its move list, the first step of every DoD turn.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerBenchmark {
+
+    private static final MethodHandle SET_INPUT = Targets.method("Player", "setInput", String.class);
+    private static final MethodHandle GET_NEXT_ACTION = Targets.method("Player", "getNextAction");
+
+    // the first and last valid commands, and one that isn't valid
+    @Param({"hello", "quit", "dance"})
+    public String input;
+
+    private Object player;
+
+    @Setup(Level.Trial)
+    public void create() throws Throwable {
+        player = Targets.create("HumanPlayer", new Class<?>[0]);
+        SET_INPUT.invoke(player, input);
+    }
+
+    @Benchmark
+    public String getNextAction() throws Throwable {
+        return (String) GET_NEXT_ACTION.invoke(player);
+    }
+}
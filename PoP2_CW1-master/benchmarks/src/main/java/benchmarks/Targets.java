@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Reaches the server and DoD classes from the benchmarks. They live in the default package, which no named package can
+ * import, and JMH refuses benchmarks in the default package, so every method benchmarked is looked up once as a
+ * MethodHandle. Each handle is kept in a static final field, which the JIT treats as a constant and inlines the call
+ * through, so the benchmarks measure the methods rather than the lookup.
+ *
+ */
+final class Targets {
+
+    // maps generated for the benchmarks are kept here between runs, a 10k x 10k map takes a while to write.
+    private static final Path GENERATED = Paths.get(System.getProperty("java.io.tmpdir"), "dod-benchmark-maps");
+
+    private Targets() {
+    }
+
+    /**
+     * @param className : a class in the default package.
+     * @return : the class.
+     */
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks up a method, whatever its access.
+     *
+     * @param className : the class declaring it.
+     * @param name : the method's name.
+     * @param parameters : its parameter types.
+     * @return : a handle to it, an instance method takes the instance as its first argument.
+     */
+    static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates an instance with one of its constructors, whatever its access.
+     *
+     * @param className : the class.
+     * @param parameters : the constructor's parameter types.
+     * @param arguments : the arguments.
+     * @return : the new instance.
+     */
+    static Object create(String className, Class<?>[] parameters, Object... arguments) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return constructor.newInstance(arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a map for a benchmark: one of the example maps by name, or a generated square map for "generated-" and
+     * its size, such as generated-10000.
+     *
+     * @param name : the map's name.
+     * @return : the Map.
+     */
+    static Object map(String name) {
+        String file;
+        if (name.startsWith("generated-")) {
+            file = generated(Integer.parseInt(name.substring("generated-".length()))).toString();
+        } else {
+            // the benchmarks run in src, where the example maps are
+            file = name + ".txt";
+        }
+        Object map = create("Map", new Class<?>[]{String.class}, file);
+        try {
+            if (method("Map", "getMapName").invoke(map) == null) {
+                throw new IllegalStateException("Could not read map " + file);
+            }
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a square map with a wall around it, a gold piece and an exit every few thousand tiles and a few walls
+     * inside, the same every time so runs can be compared.
+     *
+     * @param size : the width and height of the map.
+     * @return : the map's file, only written the first time.
+     */
+    private static Path generated(int size) {
+        Path file = GENERATED.resolve("generated-" + size + ".txt");
+        if (Files.exists(file)) {
+            return file;
+        }
+        Random random = new Random(size);
+        try {
+            Files.createDirectories(GENERATED);
+            Path partial = GENERATED.resolve("generated-" + size + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+                writer.write("name Generated " + size + "x" + size + "\nwin 2\n");
+                char[] row = new char[size];
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        if (y == 0 || x == 0 || y == size - 1 || x == size - 1) {
+                            row[x] = '#';
+                        } else {
+                            int tile = random.nextInt(4096);
+                            row[x] = tile == 0 ? 'G' : tile == 1 ? 'E' : tile < 200 ? '#' : '.';
+                        }
+                    }
+                    writer.write(row);
+                    writer.write('\n');
+                }
+            }
+            Files.move(partial, file);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,65 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the bytes allocated per broadcast by the server's fan-out path, for a growing number of recipients.
+ * Each broadcast builds a chat line with Frames, publishes it to the ring, signals every recipient and then has every
+ * recipient take the message and copy it into a write buffer the way the event loops do, timing the write to the last
+ * recipient in ServerMetrics. The socket writes themselves are left out so only the server's own allocation is counted.
+ *
+ * Run with: java AllocationProfile [broadcasts]
+ *
+ */
+public class AllocationProfile {
+
+    public static void main(String[] args) throws InterruptedException {
+        int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        byte[] nameTag = Frames.nameTag("sender");
+        String message = "a typical chat message of about sixty characters in length..";
+        ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        ServerMetrics metrics = new ServerMetrics();
+
+        System.out.println("recipients  bytes/broadcast  frame bytes");
+        for (int recipients : new int[]{1, 10, 100, 1000, 10000}) {
+            BroadcastRing ring = new BroadcastRing(2 * OutboundQueue.DEFAULT_CAPACITY);
+            OutboundQueue[] queues = new OutboundQueue[recipients];
+            for (int i = 0; i < recipients; i++) {
+                queues[i] = new OutboundQueue(ring, OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.Overflow.DROP_OLDEST,
+                        OutboundQueue.DEFAULT_BLOCK_MILLIS);
+            }
+            // warm up so the measured run is compiled code
+            broadcast(ring, queues, nameTag, message, writeBuffer, metrics, broadcasts);
+
+            long before = threads.getThreadAllocatedBytes(thread);
+            broadcast(ring, queues, nameTag, message, writeBuffer, metrics, broadcasts);
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            System.out.printf("%10d  %15.1f  %11d%n", recipients, (double) allocated / broadcasts,
+                    Frames.length(Frames.chat(nameTag, message), false));
+        }
+    }
+
+    /**
+     * Runs the fan-out path a number of times.
+     */
+    private static void broadcast(BroadcastRing ring, OutboundQueue[] queues, byte[] nameTag, String message,
+                                  ByteBuffer writeBuffer, ServerMetrics metrics, int broadcasts) throws InterruptedException {
+        for (int i = 0; i < broadcasts; i++) {
+            long sequence = ring.publish(Frames.chat(nameTag, message), queues.length);
+            for (OutboundQueue queue : queues) {
+                queue.published(ring, sequence, false);
+            }
+            for (OutboundQueue queue : queues) {
+                ByteBuffer frame;
+                while ((frame = queue.poll()) != null) {
+                    writeBuffer.clear();
+                    writeBuffer.put(0, frame, Frames.offset(frame, false), Frames.length(frame, false));
+                    queue.copied();
+                }
+                queue.written(metrics);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a bot over its connection to the server. The connection's loop is the bot's only reader and hands every message
+ * to the runtime, whose one dispatcher thread gives them to the bot's handler in the order they arrived. A handler
+ * answers by sending on the connection, which never waits, and returns, so reading and answering never call each
+ * other and a bot can run for as long as the server does. Everything a handler sends while there are more messages
+ * waiting is flushed in one write once there are none.
+ *
+ * Messages the bot sent itself and server notices, which have no sender, never reach the handler. Messages arriving
+ * faster than the handler deals with them are dropped once the queue is full, so a busy room can't make the bot hold on
+ * to an unbounded amount of memory.
+ *
+ */
+class BotRuntime implements ServerConnection.Listener {
+
+    /**
+     * Inner interface; what a bot does with the messages other users send.
+     *
+     */
+    interface Handler {
+        /**
+         * Deals with a message, only called by the dispatcher thread.
+         *
+         * @param sender : the name of the user who sent it.
+         * @param text : the message without the sender's name.
+         * @throws IOException : thrown if answering fails.
+         */
+        void handle(String sender, String text) throws IOException;
+
+        /**
+         * Called by the dispatcher thread about every TICK_MILLIS, whether or not messages are arriving.
+         *
+         * @param now : the current time in milliseconds.
+         */
+        default void tick(long now) {
+        }
+    }
+
+    // how often the handler's tick runs.
+    static final long TICK_MILLIS = 1_000;
+    // messages waiting for the handler before new ones are dropped.
+    private static final int CAPACITY = 16 * 1024;
+    // put in the queue once the connection has closed, never the same object as a message.
+    private static final String END = new String("end");
+
+    private final ServerConnection connection;
+    private final String self;
+    private final Handler handler;
+    private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread dispatcher;
+    // messages dropped because the queue was full, only changed by the connection's loop.
+    private volatile long dropped = 0;
+
+    /**
+     * Constructor, the runtime starts with start.
+     *
+     * @param connection : the bot's connection.
+     * @param self : the bot's name, its own messages are dropped.
+     * @param handler : what the bot does with other users' messages.
+     */
+    BotRuntime(ServerConnection connection, String self, Handler handler) {
+        this.connection = connection;
+        this.self = self;
+        this.handler = handler;
+        dispatcher = new Thread(this::dispatch, "bot-dispatcher");
+    }
+
+    /**
+     * Starts the dispatcher and has the connection hand its messages over.
+     */
+    void start() {
+        dispatcher.start();
+        connection.listen(this);
+    }
+
+    /**
+     * Halts the thread until the connection has closed and the dispatcher has dealt with every message before that.
+     */
+    void await() throws InterruptedException {
+        dispatcher.join();
+    }
+
+    /**
+     * @return : the messages dropped because the handler fell behind.
+     */
+    long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public void received(String message) {
+        if (!queue.offer(message)) {
+            dropped++;
+        }
+    }
+
+    @Override
+    public void closed(boolean reconnecting) {
+        if (!reconnecting) {
+            // the dispatcher has to be told even when the queue is full
+            while (!queue.offer(END)) {
+                queue.poll();
+            }
+        }
+    }
+
+    /**
+     * The dispatcher's loop, runs until the connection has closed.
+     */
+    private void dispatch() {
+        long nextTick = System.currentTimeMillis() + TICK_MILLIS;
+        try {
+            while (true) {
+                String message = queue.poll(Math.max(0, nextTick - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (message == END) {
+                    return;
+                }
+                if (message != null) {
+                    deliver(message);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    handler.tick(now);
+                    nextTick = now + TICK_MILLIS;
+                }
+                if (queue.isEmpty()) {
+                    // one write for everything answered since the queue was last empty
+                    connection.flush();
+                }
+            }
+        } catch (SocketException e) {
+            // the connection has closed
+            System.out.println("Lost connection to server.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // the bot is stopping
+        }
+    }
+
+    /**
+     * Splits a message into its sender and text, the server puts the sender's name in square brackets in front, and
+     * hands it to the handler unless the bot sent it or it has no sender.
+     *
+     * @param message : the message as it was received.
+     */
+    private void deliver(String message) throws IOException {
+        int end = message.indexOf("] ");
+        if (!message.startsWith("[") || end < 0) {
+            return;
+        }
+        String sender = message.substring(1, end);
+        if (sender.equals(self)) {
+            return;
+        }
+        try {
+            handler.handle(sender, message.substring(end + 2));
+        } catch (RuntimeException e) {
+            // one bad message doesn't stop the bot
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring of the most recent broadcast messages, shared by every client of the server.
+ * Each message gets a global sequence number when it is published, which gives all clients the same order. Every
+ * client reads the ring at its own cursor, so a message is stored once however many clients it is sent to, and
+ * neither publishing nor reading takes a lock.
+ *
+ * A slot is only ever written by the sender that claimed its sequence number. Readers check the slot's sequence
+ * before and after reading it, so they notice if a sender has already reused the slot for a newer message.
+ *
+ * For the server's metrics each slot also keeps when its message was published and how many recipients it still has
+ * to be written to, so the write to the last recipient can be timed without anything being allocated per message.
+ *
+ */
+class BroadcastRing {
+
+    /**
+     * Returned by get when the message has been overwritten by a newer one, the reader has fallen a whole ring behind.
+     */
+    static final ByteBuffer LAPPED = ByteBuffer.allocate(0);
+    /**
+     * Returned by writtenTo when the message wasn't written to its last recipient, System.nanoTime can be negative.
+     */
+    static final long NOT_LAST = Long.MIN_VALUE;
+
+    private final int mask;
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    // state of each slot: 2 * sequence while that sequence is being written, 2 * sequence + 1 once it is published.
+    private final AtomicLongArray states;
+    // when each slot's message was published, written before its state says it is published so readers see it.
+    private final long[] publishedAt;
+    // recipients each slot's message hasn't been written to yet.
+    private final AtomicIntegerArray unwritten;
+    // next sequence number to hand out.
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity : the number of messages kept, rounded up to a power of two.
+     */
+    BroadcastRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+        states = new AtomicLongArray(size);
+        publishedAt = new long[size];
+        unwritten = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            // lower than any state a real sequence can have
+            states.set(i, -1);
+        }
+    }
+
+    /**
+     * @return : the number of slots in the ring.
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Claims the next sequence number and stores the message in its slot, without timing its writes.
+     *
+     * @param frame : the encoded message, it must not be changed after it is published.
+     * @return : the sequence number of the message.
+     */
+    long publish(ByteBuffer frame) {
+        return publish(frame, 0);
+    }
+
+    /**
+     * Claims the next sequence number and stores the message in its slot.
+     *
+     * @param frame : the encoded message, it must not be changed after it is published.
+     * @param recipients : the number of clients the message will be written to, 0 if its writes aren't timed.
+     * @return : the sequence number of the message.
+     */
+    long publish(ByteBuffer frame, int recipients) {
+        long sequence = next.getAndIncrement();
+        int index = (int) (sequence & mask);
+        // the sender a whole ring ahead of us has to finish with the slot first, this only waits when more senders
+        // than slots are publishing at once.
+        long previous = 2 * (sequence - capacity()) + 1;
+        while (states.get(index) < previous) {
+            Thread.onSpinWait();
+        }
+        states.set(index, 2 * sequence);
+        slots.set(index, frame);
+        publishedAt[index] = System.nanoTime();
+        unwritten.set(index, recipients);
+        states.set(index, 2 * sequence + 1);
+        return sequence;
+    }
+
+    /**
+     * Reads the message with the given sequence number.
+     *
+     * @param sequence : the sequence number to read.
+     * @return : the message, null if it hasn't been published yet or LAPPED if it has already been overwritten.
+     */
+    ByteBuffer get(long sequence) {
+        int index = (int) (sequence & mask);
+        long published = 2 * sequence + 1;
+        long state = states.get(index);
+        if (state < published) {
+            return null;
+        }
+        if (state > published) {
+            return LAPPED;
+        }
+        ByteBuffer frame = slots.get(index);
+        // a sender may have started reusing the slot while it was read
+        return states.get(index) == published ? frame : LAPPED;
+    }
+
+    /**
+     * Counts one more recipient a message has been written to. Messages skipped by a recipient that fell too far
+     * behind count as written, since the recipient is done with them.
+     *
+     * @param sequence : the sequence number of the message.
+     * @return : the System.nanoTime the message was published at if this was its last recipient, NOT_LAST if it
+     *          wasn't, if its writes aren't timed or if the slot has already been reused.
+     */
+    long writtenTo(long sequence) {
+        int index = (int) (sequence & mask);
+        long published = 2 * sequence + 1;
+        if (states.get(index) != published) {
+            return NOT_LAST;
+        }
+        long at = publishedAt[index];
+        // a sender reusing the slot meanwhile has reset the count for its own message, so check the slot again
+        if (unwritten.decrementAndGet(index) != 0 || states.get(index) != published) {
+            return NOT_LAST;
+        }
+        return at;
+    }
+
+    /**
+     * @return : the sequence number the next published message will get.
+     */
+    long next() {
+        return next.get();
+    }
+}
@@ -1,150 +1,161 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.SocketException;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Bot class that connects to the server and listens to any input that is not from the bot.
+ * Bot class that connects to the server and listens to any input that is not from the bot. It runs on a BotRuntime,
+ * so it only answers messages as they arrive, and talks to every user who greets it at once, each user's conversation
+ * kept in a bounded Conversations cache.
  */
-public class ChatBot extends Client{
+public class ChatBot extends Client implements BotRuntime.Handler {
 
-    private String answer;
-    // used to only start a conversation if the user first types Hello.
-    private boolean startConversation = false;
+    // most conversations kept at once, the one heard from longest ago is forgotten to make room.
+    static final int MAX_CONVERSATIONS = 10_000;
+    // how long a conversation is kept without hearing from its user.
+    static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
+    // responses for the default case
+    private static final String[] DEFAULTS = {"Do you feel strongly about discussing such things ?",
+            "Does talking about this bother you ?",
+            "That is interesting. Please continue.",
+            "Tell me more about that.",
+            "What does that suggest to you ?",
+            "Please go on.",
+            "I'm not sure I understand you fully."
+            };
+
+    // responses for yes case
+    private static final String[] YES = {"I understand.",
+            "You seem to be quite positive.",
+            "I see.",
+            "You are sure"};
+
+    // responses for no case
+    private static final String[] NO = {"Why 'no' ?",
+            "Are you saying no just to be negative?",
+            "You are being a bit negative.",
+            "Why not ?"};
+
+    // responses for why,where, who, how , etc.
+    private static final String[] WHY = {"Have you asked such questions before ?",
+            "Are such questions much on your mind ? ",
+            "What answer would please you most ?",
+            "Does that question interest you ?",
+            "Have you asked anyone else ?",
+            "What is it you really want to know ?",
+            "Why do you ask ?",
+            "What do you think ?",
+            "What comes to mind when you ask that ?",
+            "What is it you really want to know ?"};
+
+    private final Conversations conversations = new Conversations(MAX_CONVERSATIONS, IDLE_MILLIS);
+    // used to randomly select a response from a list.
+    private final Random random = new Random();
+    private BotRuntime runtime;
+
+    /**
+     * Starts answering the server's messages as they arrive.
+     */
+    @Override
+    public void read() {
+        runtime = new BotRuntime(connection, name, this);
+        runtime.start();
+    }
+
+    /**
+     * The bot only writes to answer a message, so this waits until the connection has closed, then says how many
+     * messages it had to drop.
+     */
     @Override
     public void write() {
         try {
-            PrintWriter send = new PrintWriter(serverSocket.getOutputStream(), true);
-            send.println(answer);
-            if (answer.equals("goodbye.")){
-                // send exit command to server so that it knows the bot is leaving
-                send.println("/Exit");
-            } else {
-                // get response
-                read();
+            runtime.await();
+            if (runtime.dropped() > 0) {
+                System.out.println("Dropped " + runtime.dropped() + " messages the bot couldn't keep up with.");
             }
-        } catch (SocketException e){
-            // if the disconnected from server.
-            System.out.println("Lost connection to server.");
-        } catch (IOException e) {
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Answers a user's message. A conversation only starts once the user greets the bot with Hello, and the bot leaves
+     * the server when a user says bye.
+     *
+     * @param sender : the user's name.
+     * @param text : the message.
+     * @throws IOException : thrown if the connection has failed.
+     */
     @Override
-    public void read() {
-        try {
-            BufferedReader receive = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            String message = receive.readLine();
-            // word list, used to check if the message came from the bot.
-            String[] messageList = message.split(" ");
-            while (messageList[0].equals("[Bot]") || !startConversation) {
-                if (messageList[1].equals("Hello")){
-                    startConversation = true;
-                } else {
-                    message = receive.readLine();
-                    messageList = message.split(" ");
-                }
-            }
-            // remove the name tag and send only the message as a string.
-            messageList[0] = "";
-            getAnswer(String.join(" ", messageList).trim());
-            write();
-        } catch (SocketException | NullPointerException e){
-            // exception is thrown if the server doesn't close properly or messageList is empty caused by server quitting
-            // before bot got input.
-            System.out.println(e);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                // if connection stops close the server socket.
-                serverSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    public void handle(String sender, String text) throws IOException {
+        long now = System.currentTimeMillis();
+        if (conversations.get(sender, now) == null) {
+            // only start a conversation if the user first types Hello.
+            if (!text.split(" ")[0].equals("Hello")) {
+                return;
             }
+            conversations.start(sender, now);
+        }
+        String answer = getAnswer(text.trim());
+        connection.send(answer);
+        if (answer.equals("goodbye.")) {
+            // send exit command to server so that it knows the bot is leaving
+            connection.send("/Exit");
         }
     }
 
+    /**
+     * Forgets the conversations that have gone quiet.
+     *
+     * @param now : the current time in milliseconds.
+     */
+    @Override
+    public void tick(long now) {
+        conversations.evictIdle(now);
+    }
+
     /**
      * Used to get a random response based on the input the bot receives.
      *
      * @param input : the string received from the user.
+     * @return : the answer.
      */
-    private void getAnswer(String input){
-        // used to randomly select a response from a list.
-        Random random = new Random();
-        // responses for the default case
-        List<String> defaults = Arrays.asList("Do you feel strongly about discussing such things ?",
-                "Does talking about this bother you ?",
-                "That is interesting. Please continue.",
-                "Tell me more about that.",
-                "What does that suggest to you ?",
-                "Please go on.",
-                "I'm not sure I understand you fully."
-                );
-
-        // responses for yes case
-        List<String> yesList = Arrays.asList("I understand.",
-                "You seem to be quite positive.",
-                "I see.",
-                "You are sure");
-
-        // responses for no case
-        List<String> noList = Arrays.asList("Why 'no' ?",
-                "Are you saying no just to be negative?",
-                "You are being a bit negative.",
-                "Why not ?");
-
-        // responses for why,where, who, how , etc.
-        List<String> whyList = Arrays.asList("Have you asked such questions before ?",
-                "Are such questions much on your mind ? ",
-                "What answer would please you most ?",
-                "Does that question interest you ?",
-                "Have you asked anyone else ?",
-                "What is it you really want to know ?",
-                "Why do you ask ?",
-                "What do you think ?",
-                "What comes to mind when you ask that ?",
-                "What is it you really want to know ?");
-
+    private String getAnswer(String input){
         // turns the string into lower case letters only
         String message = input.replaceAll("/[^A-Za-z]/", "").toLowerCase();
         switch (message){
             case "hello":
-                answer = "Please tell me your problem. Be specific and go line by line.";
-                break;
+                return "Please tell me your problem. Be specific and go line by line.";
             case "yes":
             case "ye":
             case "yeah":
-                answer = yesList.get(random.nextInt(yesList.size()));
-                break;
+                return pick(YES);
             case "no":
             case "i dont know":
-                answer = noList.get(random.nextInt(noList.size()));
-                break;
+                return pick(NO);
             case "bye":
                 // the bot will leave the server.
-                answer = "goodbye.";
-                break;
+                return "goodbye.";
             case "why":
             case "when":
             case "what":
             case "how":
             case "where":
             case "who":
-                answer = whyList.get(random.nextInt(whyList.size()));
-                break;
+                return pick(WHY);
             default:
-                answer = defaults.get(random.nextInt(defaults.size()));
+                return pick(DEFAULTS);
         }
     }
 
+    /**
+     * @param responses : the responses to pick from.
+     * @return : a random response.
+     */
+    private String pick(String[] responses) {
+        return responses[random.nextInt(responses.length)];
+    }
+
     public static void main(String[] args){
         ChatBot chatBot = new ChatBot();
         chatBot.setName("Bot");
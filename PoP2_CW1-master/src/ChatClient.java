@@ -1,110 +1,96 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.SocketException;
 
 
 public class ChatClient extends Client {
 
-    // socket and thread used to close the connection and join the thread to the main thread.
-    private Thread readThread;
+    // one reader for the whole run, so a line it has buffered isn't lost to another.
+    private final BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+    // set once the user has typed /Exit, so the connection closing isn't reported as the server's doing.
+    private volatile boolean leaving = false;
 
     /**
      * Write method used to write to the console and send the input to the server.
-     * This method runs on the main thread of the process.
-     * Has some validation to deal with the user quitting.
+     * The console is read on its own thread and the main thread waits until the connection has closed, so the client
+     * finishes when the server goes away without the console thread having to be stopped.
      *
      */
     @Override
     public void write(){
-        // main thread used to write
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        Thread console = new Thread(this::type, "console");
+        // left waiting for a line once the connection has closed
+        console.setDaemon(true);
+        console.start();
+        try {
+            connection.awaitClosed();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // exit var used to escape while loop if user types exit command
+    /**
+     * Sends every line typed on the console until the user types /Exit or the console is closed.
+     * Has some validation to deal with the user quitting.
+     */
+    private void type() {
         try {
-            PrintWriter send = new PrintWriter(serverSocket.getOutputStream(), true);
             String inputString;
-            // while loop only runs while connected to the server
-            while (true) {
-                // exit the loop straight away, prevents the loop from running twice
-                inputString = input.readLine();
-                if (inputString.equals("/Exit")){
-                    readThread.interrupt();
-                    send.println("/Exit");
-                    break;
-                } else {
-                    // send input if enters loop
-                    send.println(inputString);
-                }
+            while ((inputString = console.readLine()) != null && !inputString.equals("/Exit")) {
+                // send input straight away since a person is waiting for it, the loop writes it without holding up the console
+                connection.sendTyped(inputString);
+                connection.flush();
             }
-            // close the read thread before the main thread finishes.
-            readThread.join();
-        } catch (IOException | InterruptedException e) {
+            // the connection closes once /Exit has been written
+            leaving = true;
+            connection.exit();
+            connection.flush();
+        } catch (SocketException e){
+            // socket exception is thrown once the connection has closed.
+            System.out.println("Lost connection to server.");
+        } catch (IOException e) {
             e.printStackTrace();
         }
-
     }
 
     /**
-     * read method used to read server output. Runs on a secondary thread to allow to read and write simultaneously.
-     * Deals with Socket exception errors when the server ends before the user quits.
-     * Also deals with the user trying to exit the server.
+     * read method used to print server output. Messages are printed by the connection's loop as they arrive.
+     * Deals with the server closing before the user quits, and with -reconnect tells the user when the connection is
+     * being made again.
      */
     public void read() {
-        // secondary thread to read server output
-        readThread = new Thread(() -> {
-            try {
-                BufferedReader receive = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-                String received;
-                while (!Thread.interrupted()) {
-                    // while connected to the server read the output
-                    received = receive.readLine();
-                    if (received == null){
-                        System.out.println("Server Closed.");
-                        break;
-                    }
-                    System.out.println(received);
-                }
-            } catch (SocketException e){
-                // socket exception is thrown if the server doesn't close properly.
-                System.out.println("Lost connection to server.");
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    // if connection stops close the server socket.
-                    serverSocket.close();
-                    // server closed so no need to keep running.
-                    System.exit(0);
-                } catch (IOException e) {
-                    e.printStackTrace();
+        connection.listen(new ServerConnection.Listener() {
+            @Override
+            public void received(String message) {
+                System.out.println(message);
+            }
+
+            @Override
+            public void reconnected() {
+                System.out.println("Reconnected to: " + connection.address());
+            }
+
+            @Override
+            public void closed(boolean reconnecting) {
+                if (reconnecting) {
+                    System.out.println("Lost connection to server, connecting again...");
+                } else if (!leaving) {
+                    System.out.println("Server Closed.");
                 }
             }
         });
-        readThread.start();
     }
 
     @Override
     public void setServerName() {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-
-        // exit var used to escape while loop if user types exit command
         try {
-            PrintWriter send = new PrintWriter(serverSocket.getOutputStream(), true);
             System.out.println("Enter your Name: ");
-            send.println("/setName " + input.readLine());
+            connection.setName(console.readLine());
+            connection.flush();
         } catch (SocketException e) {
             // socket exception is thrown if the server doesn't close properly.
             System.out.println("Lost connection to server.");
-            try {
-                // if connection stops close the server socket.
-                serverSocket.close();
-                // server closed so no need to keep running.
-                System.exit(0);
-            } catch (IOException exception) {
-                exception.printStackTrace();
-            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Durable history of the messages sent in every room, kept with -logDir so clients that join late can be sent what
+ * they missed with /history or straight away with -replay. Each room has its own log in its own directory, the rooms
+ * of hosted DoD games aren't logged.
+ *
+ * Senders never write to the log. A message is already in its room's ring, so a sender only marks the room as having
+ * new messages, and a single writer thread copies them from the ring into the room's log after the members have been
+ * told. The log is an extra reader of the ring that never holds a sender up: if it falls a whole ring behind, the
+ * messages it missed are counted as lost. The writer forces what it has appended to disk at most every -logSyncMillis,
+ * so one sync covers every message logged since the last, or after every batch with 0.
+ *
+ * A room's log is only kept open while the room exists. Once the room is removed the writer logs and syncs what is
+ * left of it and drops the log, whose mappings go once nothing reads from them, and it is opened again from its files
+ * the next time the room is used.
+ *
+ */
+class ChatLog {
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int keptSegments;
+    private final long syncNanos;
+
+    // the log of every room that has been logged or read since it was last removed.
+    private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+    // rooms with messages the writer hasn't logged yet, each in it once.
+    private final ConcurrentLinkedQueue<Room> pending = new ConcurrentLinkedQueue<>();
+    // rooms removed since the writer last looked, their logs are closed once the rest of their messages are logged.
+    private final ConcurrentLinkedQueue<Room> removed = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    // set while the writer is parked, so senders only wake it when it needs waking.
+    private volatile boolean waiting = false;
+    private volatile boolean running = true;
+
+    // counters shown by STATS, only changed by the writer.
+    private volatile long logged = 0;
+    private volatile long bytes = 0;
+    private volatile long lost = 0;
+    private final LatencyHistogram syncs = new LatencyHistogram("log sync");
+
+    /**
+     * Constructor, starts the writer.
+     *
+     * @param directory : the directory every room's log is kept in, created if it doesn't exist.
+     * @param options : the segment size, segments kept and sync interval.
+     * @throws IOException : thrown if the directory can't be created.
+     */
+    private ChatLog(Path directory, ServerOptions options) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        segmentBytes = options.logSegmentMB * 1024 * 1024;
+        keptSegments = options.logSegments;
+        syncNanos = TimeUnit.MILLISECONDS.toNanos(options.logSyncMillis);
+        writer = new Thread(this::write, "chat-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the log if the server was started with -logDir.
+     *
+     * @param options : the server's settings.
+     * @return : the log, null if history isn't kept or the directory can't be created.
+     */
+    static ChatLog open(ServerOptions options) {
+        if (options.logDir == null) {
+            return null;
+        }
+        try {
+            return new ChatLog(Paths.get(options.logDir), options);
+        } catch (IOException e) {
+            System.out.println("Could not open the chat log in " + options.logDir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Called by a sender after publishing a message to a room, marks the room for the writer. Never waits.
+     *
+     * @param room : the room the message was published to.
+     */
+    void published(Room room) {
+        if (room.game || !room.logQueued.compareAndSet(false, true)) {
+            return;
+        }
+        pending.add(room);
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Called when a room is removed because its last member has left, so the writer closes its log. Never waits.
+     *
+     * @param room : the room removed.
+     */
+    void removed(Room room) {
+        if (room.game) {
+            return;
+        }
+        removed.add(room);
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Queues a room's most recent messages for a client alone, used by /history and when a client joins a room with
+     * -replay. They are written to the client before anything else it is waiting for.
+     *
+     * @param session : the client.
+     * @param room : the room.
+     * @param count : the number of messages, at most as many as the client's queue holds.
+     * @param before : the sequence number in the room's ring the messages end before.
+     * @return : the number of messages queued.
+     */
+    int replay(Session session, Room room, int count, long before) {
+        count = Math.min(count, session.outbound.capacity());
+        if (room.game || count <= 0) {
+            return 0;
+        }
+        List<ByteBuffer> frames = history(room, count, before);
+        for (ByteBuffer frame : frames) {
+            session.outbound.reply(frame);
+        }
+        return frames.size();
+    }
+
+    /**
+     * @param room : a room that isn't a game's.
+     * @param count : the number of messages wanted.
+     * @param before : the sequence number in the room's ring the messages end before.
+     * @return : the messages, oldest first.
+     */
+    private List<ByteBuffer> history(Room room, int count, long before) {
+        RoomLog log = log(room.name);
+        if (log == null) {
+            return new ArrayList<>();
+        }
+        return log.last(count, room.messages, before);
+    }
+
+    /**
+     * Stops the writer once it has logged and synced every message already published, used when the server shuts
+     * down.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return : a summary of the log for STATS.
+     */
+    String stats() {
+        return "chat log " + directory + ": open rooms " + logs.size() + ", logged " + logged + " (" + bytes
+                + " bytes), lost " + lost + "\n" + syncs.summary();
+    }
+
+    /**
+     * The writer's loop: logs the messages of every marked room and closes the logs of removed rooms, then syncs once
+     * the interval has passed and waits for more.
+     */
+    private void write() {
+        List<RoomLog> unsynced = new ArrayList<>();
+        long lastSync = System.nanoTime();
+        while (true) {
+            boolean stopping = !running;
+            Room room;
+            while ((room = pending.poll()) != null) {
+                RoomLog log = drain(room);
+                if (log != null && !unsynced.contains(log)) {
+                    unsynced.add(log);
+                }
+                if (System.nanoTime() - lastSync >= syncNanos) {
+                    lastSync = sync(unsynced);
+                }
+            }
+            while ((room = removed.poll()) != null) {
+                close(room, unsynced);
+            }
+            if (!unsynced.isEmpty() && (stopping || System.nanoTime() - lastSync >= syncNanos)) {
+                lastSync = sync(unsynced);
+            }
+            if (stopping) {
+                return;
+            }
+            waiting = true;
+            // a room could have been marked before waiting was set, check again before parking
+            if (pending.isEmpty() && removed.isEmpty() && running) {
+                if (unsynced.isEmpty()) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, lastSync + syncNanos - System.nanoTime());
+                }
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Copies a room's new messages from its ring into its log.
+     *
+     * @param room : a marked room.
+     * @return : the room's log, null if it can't be opened.
+     */
+    private RoomLog drain(Room room) {
+        // unmarked first, so a message published from now on marks the room again
+        room.logQueued.set(false);
+        BroadcastRing ring = room.messages;
+        long sequence = room.logged;
+        long next = ring.next();
+        if (sequence == next) {
+            // nothing new, the log isn't opened again for a room that has been removed
+            return null;
+        }
+        if (next - sequence > ring.capacity()) {
+            lost += next - ring.capacity() - sequence;
+            sequence = next - ring.capacity();
+        }
+        RoomLog log = log(room.name);
+        try {
+            while (sequence < next && log != null) {
+                ByteBuffer frame = ring.get(sequence);
+                if (frame == null) {
+                    // still being published, its sender marks the room again once it is
+                    break;
+                }
+                if (frame == BroadcastRing.LAPPED) {
+                    lost++;
+                } else {
+                    log.append(frame);
+                    logged++;
+                    bytes += frame.limit();
+                }
+                sequence++;
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write to the chat log of " + room.name + ": " + e.getMessage());
+        }
+        if (log == null) {
+            lost += next - sequence;
+            sequence = next;
+        }
+        room.logged = sequence;
+        if (log != null) {
+            log.publish(ring, sequence);
+        }
+        return log;
+    }
+
+    /**
+     * Logs what is left of a removed room and closes its log, unless a room of the same name has been made since and
+     * logged to it.
+     *
+     * @param room : the room removed.
+     * @param unsynced : the logs appended to since the last sync, the closed log is taken out of it.
+     */
+    private void close(Room room, List<RoomLog> unsynced) {
+        drain(room);
+        RoomLog log = logs.get(room.name);
+        if (log == null || !log.closable(room.messages)) {
+            return;
+        }
+        log.sync();
+        unsynced.remove(log);
+        logs.remove(room.name, log);
+    }
+
+    /**
+     * Forces every log with unsynced messages to disk and times how long it took.
+     *
+     * @param unsynced : the logs appended to since the last sync, emptied.
+     * @return : when the sync finished.
+     */
+    private long sync(List<RoomLog> unsynced) {
+        long start = System.nanoTime();
+        boolean forced = false;
+        for (RoomLog log : unsynced) {
+            forced |= log.sync();
+        }
+        unsynced.clear();
+        long end = System.nanoTime();
+        if (forced) {
+            syncs.record(end - start);
+        }
+        return end;
+    }
+
+    /**
+     * @param room : a room's name.
+     * @return : the room's log, opened the first time, null if it can't be read.
+     */
+    private RoomLog log(String room) {
+        RoomLog log = logs.get(room);
+        if (log != null) {
+            return log;
+        }
+        synchronized (logs) {
+            log = logs.get(room);
+            if (log == null) {
+                try {
+                    log = new RoomLog(directory.resolve(fileName(room)), segmentBytes, keptSegments);
+                    logs.put(room, log);
+                } catch (IOException e) {
+                    System.out.println("Could not read the chat log of " + room + ": " + e.getMessage());
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Room names can hold any character, so only letters, digits, - and _ are kept in the directory's name and every
+     * other byte is written as %XX.
+     *
+     * @param room : a room's name.
+     * @return : the name of the room's directory.
+     */
+    static String fileName(String room) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                name.append((char) b);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return name.toString();
+    }
+}
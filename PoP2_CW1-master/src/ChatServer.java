@@ -1,9 +1,12 @@
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketException;
-import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Threaded chat server, allows clients to connect to it on default 14001 unless specified another
@@ -11,28 +14,59 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class ChatServer {
 
-    // Hash map and set to keep record of client sockets, output streams and threads used for the connection
-    private final HashMap<Socket, List<Object>> clients;
-    private final HashSet<Thread> activeThreads;
+    // size of each reader's buffer.
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // most names listed by /who.
+    static final int WHO_SHOWN = 50;
 
-    private ServerSocket serverSocket;
-    // linked queue that deals with synchronization.
-    private final LinkedBlockingQueue<String> messages;
+    // registry of the connected clients' sessions, and a scope owning the threads used for them
+    private final SessionRegistry clients;
+    private final ServerOptions options;
+    private final TaskScope activeThreads;
 
-    private boolean exit = false;
+    private ServerSocketChannel serverSocket;
+    // rooms clients can join, a message is published once to its room's ring and only sent to the room's members.
+    private final Rooms rooms;
+    // DoD games hosted by the server, run on their own threads and answered in their rooms.
+    private final Games games;
+    // counters and latency histograms shown by STATS.
+    private final ServerMetrics metrics = new ServerMetrics();
+    // history of every room's messages, written off the senders' threads, null without -logDir.
+    private final ChatLog log;
+    // stops every reader while too many bytes are waiting to be written to clients, null without -inflightMB.
+    private final InflightBudget budget;
+    // other servers sharing the rooms and names, null without -peerPort or -peers.
+    private final Federation peers;
+    // pings quiet clients and closes idle ones, null without -idleSeconds.
+    private final TimingWheel wheel;
+
+    private volatile boolean exit = false;
 
     /**
      * Constructor, starts up the server socket and instantiates main class variables
      *
-     * @param port : The port used to bind the server socket to
+     * @param options : the port used to bind the server socket to and the other settings given on the command line
      */
-    public ChatServer(int port){
-        clients = new HashMap<>();
-        messages = new LinkedBlockingQueue<>();
-        activeThreads = new HashSet<>();
+    public ChatServer(ServerOptions options){
+        this.options = options;
+        clients = new SessionRegistry();
+        log = ChatLog.open(options);
+        rooms = new Rooms(options, log);
+        wheel = TimingWheel.open(options);
+        // readers check the budget themselves before every read
+        budget = InflightBudget.open(options, rooms, wheel, () -> { });
+        // game output is sent without waiting for slow clients, a game's thread is shared with other games
+        games = new Games(rooms, (room, frame) -> sendToRoom(room, frame, false), session -> { },
+                options.gameThreads);
+        activeThreads = new TaskScope();
+        // a peer's messages are only published here, and its link must not wait for slow clients. Writers are woken
+        // by a reply themselves.
+        peers = Federation.open(options, clients, (name, frame) -> publish(rooms.get(name), frame, false),
+                session -> { });
 
         try {
-            serverSocket = new ServerSocket(port);
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(options.port));
             System.out.println("Starting Server.");
         } catch (IOException e) {
             e.printStackTrace();
@@ -41,69 +75,97 @@ public class ChatServer {
 
     /**
      * Runs on main thread of the server instance.
-     * Allows to write to console and validates the input to allow only EXIT as valid command to kill the server.
+     * Allows to write to console and validates the input to allow EXIT as the command to kill the server, QUEUES
+     * to show how far behind each client's outbound queue is and STATS to show the server's counters and latencies.
      * Calls connectionHandlingThread to start a listening thread.
      *
      */
     public void start() {
         try{
-            // create thread object and start it to allow clients to connect to server
+            // start the accept loop in the task scope to allow clients to connect to server
             // private class is used to allow to easily close the thread when closing the server
-            ConnectionHandling connectionHandlingThread = new ConnectionHandling();
+            activeThreads.fork(new ConnectionHandling());
             System.out.println("Listening for connections...");
-            connectionHandlingThread.start();
+            if (options.statsFile != null) {
+                metrics.dumpEvery(options.statsFile, options.statsSeconds, this::stats);
+            }
 
             // allows input to console on main thread
             BufferedReader serverInput = new BufferedReader(new InputStreamReader(System.in));
             String command = serverInput.readLine();
-            while (!command.equals("EXIT")){
+            while (command != null && !command.equals("EXIT")){
+                if (command.equals("QUEUES")){
+                    printQueues();
+                } else if (command.equals("STATS")){
+                    System.out.println(stats());
+                }
                 // constantly checks if EXIT is give to close server
                 command = serverInput.readLine();
             }
 
             // exit var used, stops infinite loop in read threads.
             exit = true;
-            // close all client sockets
-            for (Socket socket: clients.keySet()){
-                socket.close();
+            if (budget != null) {
+                // readers waiting for the budget carry on and find their sockets closed
+                budget.close();
             }
-            // halts main thread until all read threads are finished so all client sockets are closed.
-            for (Thread thread: activeThreads){
-                thread.join();
+            // close all client sockets and the server socket so that the read and accept loops finish.
+            for (Session session: clients.snapshot()){
+                session.close();
             }
-            // close server socket and wait halt main thread so that listening thread finishes.
             serverSocket.close();
-            connectionHandlingThread.join();
+            // halts main thread until every task in the scope is finished so all client sockets are closed.
+            activeThreads.close();
+            games.shutdown();
+            if (wheel != null) {
+                wheel.close();
+            }
+            if (peers != null) {
+                peers.close();
+            }
+            if (log != null) {
+                // everything already sent is logged and synced before the server stops
+                log.close();
+            }
             System.out.println("Connection handling thread finished.");
 
-        } catch (InterruptedException | IOException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Inner class; creates a single thread to allow the server to listen for clients.
+     * Inner class; the task run in the scope to allow the server to listen for clients.
      * Has a infinite loop which constantly accepts new client connections.
-     * On accepting client connection, it starts another thread for that connection to accept data from the connection.
+     * On accepting client connection, it forks another task for that connection to accept data from the connection.
      *
      */
-    private class ConnectionHandling extends Thread{
+    private class ConnectionHandling implements Runnable{
         public void run(){
             try {
                 // loop runs until the thread is interrupted.
-                while (!interrupted()) {
+                while (!Thread.interrupted()) {
                     // waits until a connection is made
-                    Socket clientSocket = serverSocket.accept();
+                    SocketChannel clientSocket = serverSocket.accept();
                     try {
-                        System.out.println("Connection accepted from: " + clientSocket.getInetAddress().getHostAddress()
-                        + " : " + clientSocket.getPort());
-                        listenToClient(clientSocket);
+                        // the writer already batches messages, so don't let the socket hold them back as well
+                        clientSocket.socket().setTcpNoDelay(true);
+                        Session session = new Session(clientSocket, options.newOutboundQueue(rooms.lobby().messages), metrics);
+                        session.setFlushDelay(options.flushMicros);
+                        session.limiter = options.newRateLimiter();
+                        if (wheel != null) {
+                            // watched from the start, so a client that never sends anything is closed too
+                            session.heartbeat = wheel.add(session, () -> session.outbound.reply(Frames.PING),
+                                    () -> expire(session));
+                        }
+                        System.out.println("Connection accepted from: " + session.address);
+                        listenToClient(session);
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 }
-            } catch (SocketException e) {
-                // main wait to get out of loop. The SocketException ends the loop when the server socket it closed.
+            } catch (ClosedChannelException e) {
+                // main wait to get out of loop. The exception ends the loop when the server socket it closed.
                 System.out.println("Closing Server Socket");
             } catch (IOException e) {
                 e.printStackTrace();
@@ -113,37 +175,321 @@ public class ChatServer {
 
     /**
      * Deals with the data received for every client. Every client will be connected to the server via its own thread.
-     * Thread is started using anonymous inner class which reads the data received and sends to all client output streams.
+     * The task is forked into the scope as a lambda which reads the data received and queues it for all clients.
+     * The client is added to the registry as a client using lines of text as soon as it connects and given a writer
+     * task, which is the only thing writing to its socket, so a client that stops reading only fills its own queue.
+     * Its first byte can switch it to the binary protocol, the writer holds its messages back until that byte arrives or
+     * Session.HANDSHAKE_WAIT_MILLIS has passed, so a client that only listens is still sent everything.
      *
-     * @param socket : the client socket for each individual socket connection
+     * @param session : the session of each individual socket connection
      * @throws IOException : the exception thrown by getting the input and output stream.
      */
-    private void listenToClient(Socket socket) throws IOException {
+    private void listenToClient(Session session) throws IOException {
         // input and output stream of the client socket connected
-        InputStreamReader inStream = new InputStreamReader(socket.getInputStream());
-        PrintWriter outStream = new PrintWriter(socket.getOutputStream(), true);
-
-        // adds the socket and PrintWriter object to a hash map allowing the object to be found via the socket.
-        clients.put(socket, new ArrayList<>());
-        clients.get(socket).add(outStream);
+        InputStream inStream = session.channel.socket().getInputStream();
+        OutputStream outStream = session.channel.socket().getOutputStream();
 
-        BufferedReader input = new BufferedReader(inStream);
-
-        //anonymous thread to read client input and send back to all clients
-        Thread readThread = new Thread(() -> {
+        //task to read client input and send back to all clients, the scope removes it once it finishes
+        activeThreads.fork(() -> {
+            WireDecoder decoder = new WireDecoder(Wire.MAX_MESSAGE);
+            ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE).limit(0);
+            // adds the session to the registry so that it is sent every message from now on.
+            clients.add(session);
+            rooms.join(session, Rooms.LOBBY);
+            // task that writes the client's queued messages to its socket
+            Thread writeThread = activeThreads.fork(() -> write(session, outStream));
             try {
+                while (!decoder.detect(input)) {
+                    fill(session, inStream, input);
+                }
+                Compressor compressor = decoder.isCompressed() ? options.newCompressor(metrics) : null;
+                if (!session.settle(decoder.isBinary(), compressor)) {
+                    // messages have already been written to it as lines of text
+                    if (compressor != null) {
+                        compressor.end();
+                    }
+                    throw new ProtocolException("Handshake after the client was sent lines of text");
+                }
+
                 // loop is stopped only when thread is interrupted caused by the client requesting to exit, or when exit
                 // var turns true since the server is shutting down.
                 while (!exit && !Thread.interrupted()) {
-                    read(socket, input);
+                    read(session, decoder, input, inStream);
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                // the client left before sending anything, or sent the handshake too late
+                System.out.println("Closing connection to client: " + session.address);
+                remove(session);
+                session.close();
+            } finally {
+                // nothing else will be sent to the client so its writer can stop
+                writeThread.interrupt();
             }
         });
-        // start the thread and add it to the set of active threads.
-        readThread.start();
-        activeThreads.add(readThread);
+    }
+
+    /**
+     * Reads whatever the client has sent next into the input buffer, once the decoder has used all of it.
+     *
+     * @param session : the client, heard from if anything is read.
+     * @param inStream : the client socket's input stream.
+     * @param input : the reader's buffer.
+     * @throws IOException : thrown if the client has closed its socket.
+     */
+    private static void fill(Session session, InputStream inStream, ByteBuffer input) throws IOException {
+        int count = inStream.read(input.array());
+        if (count < 0) {
+            // the client closed its socket without /Exit
+            throw new SocketException("Connection closed by client");
+        }
+        if (session.heartbeat != null) {
+            session.heartbeat.heard();
+        }
+        input.position(0).limit(count);
+    }
+
+    /**
+     * write method used by listenToClient method. Reads the client's messages from the ring and writes them to its
+     * socket until the client leaves, falls too far behind or the server shuts down.
+     * Messages are collected into one batch and written together once no more are waiting, the batch reaches the
+     * flush size or the client's flush delay passes, whichever comes first. With no delay a client still gets every
+     * message that arrived while the last batch was being written in one go, without waiting for anything.
+     *
+     * @param session : the session to write to, closed if writing fails.
+     * @param outStream : the client socket's output stream.
+     */
+    private void write(Session session, OutputStream outStream) {
+        byte[] batch = new byte[options.flushBytes];
+        int batched = 0;
+        int messagesBatched = 0;
+        long deadline = 0;
+        try {
+            while (!exit) {
+                ByteBuffer frame;
+                if (batched == 0) {
+                    frame = session.outbound.take();
+                    deadline = System.nanoTime() + session.getFlushDelayNanos();
+                } else {
+                    // waits for more messages until the deadline, with no delay only what is already waiting is taken
+                    long remaining = deadline - System.nanoTime();
+                    frame = remaining > 0 ? session.outbound.take(remaining) : session.outbound.poll();
+                }
+                if (frame == null && session.outbound.isOverflowed()){
+                    // the client fell too far behind, closing the socket makes its read loop finish too.
+                    System.out.println("Outbound queue full, disconnecting client: " + session.address);
+                    session.close();
+                    break;
+                }
+                if (frame != null && !session.isSettled()) {
+                    // only this client's protocol's part of the message is written
+                    session.awaitProtocol();
+                }
+                int offset = frame == null ? 0 : Frames.offset(frame, session.binary);
+                int length = frame == null ? 0 : Frames.length(frame, session.binary);
+                if (frame != null && session.compressor != null && session.compressor.applies(length)) {
+                    // compressed for this client alone, batched like any other message before the next is compressed
+                    frame = session.compressor.compress(frame, offset, length);
+                    offset = 0;
+                    length = frame.limit();
+                }
+                if (frame == null || batched + length > batch.length) {
+                    // nothing more arrived in time or the message doesn't fit, write what has been collected
+                    outStream.write(batch, 0, batched);
+                    session.sentMessages(messagesBatched, batched);
+                    session.outbound.written(metrics);
+                    batched = 0;
+                    messagesBatched = 0;
+                    if (frame == null) {
+                        continue;
+                    }
+                    deadline = System.nanoTime() + session.getFlushDelayNanos();
+                }
+                if (length >= batch.length) {
+                    // too big to batch, written straight from the shared array
+                    writeLarge(outStream, frame, offset, length, batch);
+                    session.sentMessages(1, length);
+                    session.outbound.copied();
+                    session.outbound.written(metrics);
+                    continue;
+                }
+                // absolute copy, replayed messages are read straight from the chat log's mapping
+                frame.get(offset, batch, batched, length);
+                batched += length;
+                messagesBatched++;
+                session.outbound.copied();
+            }
+        } catch (InterruptedException e) {
+            // the read loop finished so the client has left.
+        } catch (IOException e) {
+            // the client has gone, closing the socket makes its read loop finish too.
+            session.close();
+        } finally {
+            if (session.compressor != null) {
+                session.compressor.end();
+            }
+        }
+    }
+
+    /**
+     * Writes a message too big to batch. A message replayed from the chat log has no array of its own, so it is copied
+     * through the batch a part at a time.
+     *
+     * @param outStream : the client socket's output stream.
+     * @param frame : the message.
+     * @param offset : where the bytes sent to the client start.
+     * @param length : the number of bytes sent to the client.
+     * @param batch : the writer's batch, empty.
+     * @throws IOException : thrown if the client has gone.
+     */
+    private static void writeLarge(OutputStream outStream, ByteBuffer frame, int offset, int length, byte[] batch)
+            throws IOException {
+        if (frame.hasArray()) {
+            outStream.write(frame.array(), frame.arrayOffset() + offset, length);
+            return;
+        }
+        for (int done = 0; done < length; done += batch.length) {
+            int part = Math.min(batch.length, length - done);
+            frame.get(offset + done, batch, 0, part);
+            outStream.write(batch, 0, part);
+        }
+    }
+
+    /**
+     * Publishes a message to a room's ring once and wakes the writer of every client in the room. A client that is now
+     * too far behind with the disconnect or block policy has its socket closed, which ends its read loop. The chat log
+     * is only told the room has a new message, it copies the message from the ring on its own thread.
+     *
+     * If the sender is interrupted while waiting with the block policy its interrupt flag is set again.
+     *
+     * @param room : the room the message is sent in, nothing is sent if the sender has already left.
+     * @param frame : the encoded line, built by Frames.
+     */
+    private void sendToRoom(Room room, ByteBuffer frame) {
+        sendToRoom(room, frame, true);
+    }
+
+    /**
+     * Publishes a message to a room, see sendToRoom above, and sends it to the peers.
+     *
+     * @param room : the room the message is sent in, nothing is sent if the sender has already left.
+     * @param frame : the encoded line, built by Frames.
+     * @param mayBlock : false if the sender must not wait, the block policy then disconnects straight away.
+     */
+    private void sendToRoom(Room room, ByteBuffer frame, boolean mayBlock) {
+        publish(room, frame, mayBlock);
+        if (peers != null) {
+            peers.relay(room, frame);
+        }
+    }
+
+    /**
+     * Publishes a message to the members of a room on this server only, see sendToRoom above.
+     *
+     * @param room : the room the message is sent in, nothing is sent if nobody is in it here.
+     * @param frame : the encoded line, built by Frames.
+     * @param mayBlock : false if the sender must not wait, the block policy then disconnects straight away.
+     */
+    private void publish(Room room, ByteBuffer frame, boolean mayBlock) {
+        if (room == null) {
+            return;
+        }
+        Session[] members = room.members.snapshot();
+        long sequence = room.messages.publish(frame, members.length);
+        for (Session session: members){
+            try {
+                if (!session.outbound.published(room.messages, sequence, mayBlock)){
+                    session.close();
+                }
+            } catch (InterruptedException e) {
+                // the sender is stopping, the rest of the room is still told about the message
+                Thread.currentThread().interrupt();
+                mayBlock = false;
+            }
+        }
+        if (log != null) {
+            log.published(room);
+        }
+    }
+
+    /**
+     * Removes a session that has left from the registry, its game and its room.
+     *
+     * @param session : the session leaving.
+     */
+    private void remove(Session session) {
+        clients.remove(session);
+        games.leave(session);
+        rooms.leave(session);
+    }
+
+    /**
+     * Renames a client, unless the name is taken here or on a peer.
+     *
+     * @param session : the client.
+     * @param name : the name it asked for.
+     */
+    private void setName(Session session, String name) {
+        if (!clients.rename(session, name)) {
+            session.outbound.reply(Frames.line("The name " + name + " is taken."));
+        }
+    }
+
+    /**
+     * Closes a client the timing wheel found idle, the same way as /Exit. Run by the wheel's thread, so nothing waits
+     * for slow clients.
+     *
+     * @param session : the client.
+     */
+    private void expire(Session session) {
+        System.out.println("Idle for too long, disconnecting client: " + session.address);
+        sendToRoom(session.room, Frames.line(session.address + " has left."), false);
+        // closing the socket ends the client's read loop
+        session.close();
+        remove(session);
+    }
+
+    /**
+     * Applies a /joingame command, in the form /joingame id.
+     *
+     * @param session : the session joining.
+     * @param wordList : the command split on spaces.
+     */
+    private void joinGame(Session session, String[] wordList) {
+        try {
+            games.join(session, Long.parseLong(wordList[1]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            session.outbound.reply(Frames.line("Use /joingame followed by a game's id."));
+        }
+    }
+
+    /**
+     * Sends a client's message to everyone in its room and times how long it took to be queued for all of them.
+     *
+     * @param session : the sender.
+     * @param message : the message.
+     * @param readAt : the System.nanoTime the message was read at.
+     */
+    private void chat(Session session, String message, long readAt) {
+        sendToRoom(session.room, Frames.chat(session.getNameTag(), message));
+        metrics.readToEnqueue.record(System.nanoTime() - readAt);
+    }
+
+    /**
+     * @return : the server's counters and latencies, printed by STATS.
+     */
+    private String stats() {
+        return metrics.report(clients, rooms, games) + (budget == null ? "" : "\n" + budget.stats())
+                + (log == null ? "" : "\n" + log.stats()) + (peers == null ? "" : "\n" + peers.stats())
+                + (wheel == null ? "" : "\n" + wheel.stats());
+    }
+
+    /**
+     * Prints the counters and outbound queue of every client, so the clients that are lagging behind can be found.
+     */
+    private void printQueues() {
+        for (Session session: clients.snapshot()){
+            System.out.println(session.stats());
+        }
     }
 
     /**
@@ -151,65 +497,121 @@ public class ChatServer {
      * the data back. Also deals with the exceptions caused by closing sockets and validates the input from clients to
      * allow them to leave the server. Server will then close the connection to the client and the thread used for it.
      *
-     * @param socket : allows the socket for the current thread to be closed.
-     * @param input : Buffered reader object used to write message to a linkedBlockingQueue which is used to send the
-     *              messages back to the clients in the correct order.
-     * @throws InterruptedException : thrown by put method used to put the message in a linkedBlockingQueue.
+     * @param session : allows the socket for the current thread to be closed.
+     * @param decoder : splits what the client sends into messages, with whichever protocol the client uses.
+     * @param input : the reader's buffer of bytes the decoder hasn't used yet.
+     * @param inStream : the client socket's input stream, read from when the decoder needs more bytes.
      */
-    private void read(Socket socket, BufferedReader input) throws InterruptedException {
+    private void read(Session session, WireDecoder decoder, ByteBuffer input, InputStream inStream) {
         try {
-            // put the message read from the client to the linkedBlockingQueue
-            // use of linked blocking queue allows messages to be uniform between different threads so that all clients
-            // receive all messages.
-            messages.put(input.readLine());
-            ArrayList<PrintWriter> outputStreams = new ArrayList<>();
-            for (List<Object> list: clients.values()){
-                outputStreams.add((PrintWriter) list.get(0));
-            }
-            for (PrintWriter outputStream: outputStreams){
-                if (messages.peek() != null && messages.peek().equals("/Exit")){
-                    try {
-                        outputStream.println(socket.getInetAddress().getHostAddress() + " : "  +
-                                socket.getPort() + " has left.");
-
-                        // close the clients socket
-                        socket.close();
-
-                        // interrupt the thread so that while loop stops and allow the thread end
-                        // interrupt exception doesnt get thrown.#
-                        Thread.currentThread().interrupt();
-
-                        // remove the client socket and its output stream and remove the thread the set of active threads.
-                        activeThreads.remove(Thread.currentThread());
-                        clients.remove(socket);
-                        System.out.println("Closing connection to client: " + socket.getInetAddress().getHostAddress()
-                                + " : " + socket.getPort());
-                        break;
-                    } catch (IOException e) {
-                        e.printStackTrace();
+            // the message read from the client is published to the ring, which gives it a sequence number so that all
+            // clients receive all messages in the same order.
+            while (!decoder.next(input)) {
+                // nothing more is read from any client while too much is waiting to be written
+                if (budget != null) {
+                    budget.awaitOpen();
+                }
+                fill(session, inStream, input);
+            }
+            long readAt = System.nanoTime();
+            session.receivedMessage(decoder.messageBytes());
+            int opcode = decoder.opcode();
+            String message = decoder.text();
+            boolean exiting = opcode == Wire.EXIT || (opcode == Wire.COMMAND && message.equals("/Exit"));
+            long wait = exiting ? 0 : overLimit(session, decoder.messageBytes());
+            if (wait < 0) {
+                return;
+            }
+            if (exiting){
+                // let every client know before the socket is closed
+                sendToRoom(session.room, Frames.line(session.address + " has left."));
+
+                // close the clients socket
+                session.close();
+
+                // interrupt the thread so that while loop stops and allow the thread end
+                // interrupt exception doesnt get thrown.#
+                Thread.currentThread().interrupt();
+
+                // remove the client's session.
+                remove(session);
+                System.out.println("Closing connection to client: " + session.address);
+            } else if (opcode == Wire.PONG){
+                // the client answered a ping, hearing from it was enough
+            } else if (opcode == Wire.SET_NAME){
+                // no name given, keep the current one
+                if (!message.isEmpty()){
+                    setName(session, message);
+                }
+            } else if (opcode == Wire.COMMAND){
+                String[] wordList = message.split(" ");
+                if (wordList[0].equals("/setName")){
+                    // no name given, keep the current one
+                    if (wordList.length > 1){
+                        setName(session, wordList[1]);
                     }
-                } else if (messages.peek() != null){
-                    String[] wordList = messages.peek().split(" ");
-                    if (wordList[0].equals("/setName")){
-                        if (clients.get(socket).size() == 1){
-                            clients.get(socket).add(wordList[1]);
-                        } else {
-                            clients.get(socket).set(1, wordList[1]);
-                        }
+                } else if (wordList[0].equals("/pong")){
+                    // the answer to a ping from a client using lines of text
+                } else if (wordList[0].equals("/who")){
+                    // the names in use here and on the peers
+                    session.outbound.reply(Frames.line(clients.who(WHO_SHOWN)));
+                } else if (wordList[0].equals("/setOverflow")){
+                    // the client picks what happens when it can't keep up with the messages sent to it
+                    String rejected = session.outbound.setOverflow(wordList);
+                    if (rejected != null) {
+                        session.outbound.reply(Frames.line(rejected));
+                    }
+                } else if (wordList[0].equals("/setFlush")){
+                    // the client picks how long its messages can be held back to be written together
+                    String rejected = session.setFlushDelay(wordList);
+                    if (rejected != null) {
+                        session.outbound.reply(Frames.line(rejected));
+                    }
+                } else if (wordList[0].equals("/join")){
+                    // the client only gets the new room's messages from now on
+                    String rejected = Rooms.checkName(wordList.length > 1 ? wordList[1] : "");
+                    if (rejected != null) {
+                        session.outbound.reply(Frames.line(rejected));
                     } else {
-                        // send item at the from of the queue with the name of the client
-                        outputStream.println(String.format("[%s] %s", clients.get(socket).get(1), messages.peek()));
+                        games.leave(session);
+                        rooms.join(session, wordList[1]);
                     }
-
+                } else if (wordList[0].equals("/leave")){
+                    games.leave(session);
+                    rooms.join(session, Rooms.LOBBY);
+                } else if (wordList[0].equals("/history")){
+                    // the room's most recent messages, sent to the client alone
+                    rooms.history(session, wordList);
+                } else if (wordList[0].equals("/newgame")){
+                    // starts a game hosted by the server, the client plays it in the game's room
+                    games.create(session, wordList.length > 1 ? wordList[1] : Games.DEFAULT_MAP);
+                } else if (wordList[0].equals("/joingame")){
+                    joinGame(session, wordList);
+                } else if (wordList[0].equals("/game")){
+                    // the rest of the line is the DoD command, such as MOVE N
+                    games.play(session, message.substring(wordList[0].length()).trim());
+                } else {
+                    // not a command the server knows, send it like any other message
+                    chat(session, message, readAt);
                 }
+            } else if (opcode == Wire.CHAT){
+                // send the message to every client in the same room with the name of the client
+                chat(session, message, readAt);
             }
-            // only remove the message from the queue once it has sent it to all clients
-            messages.poll();
-        } catch (SocketException e) {
+            if (wait > 0) {
+                // the client isn't read from until it is back within its limits, so TCP holds it back
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        } catch (InterruptedException e) {
+            // the server is shutting down
+            Thread.currentThread().interrupt();
+        } catch (SocketException | ClosedChannelException | ProtocolException e) {
             // socket exception happens when all sockets get closed by the server when shutting down or when the
             // client quits without /Exit so thread needs so interrupt flag needs to be raised to stop while loop.
-            System.out.println("Closing connection to client: " + socket.getInetAddress().getHostAddress() + " : " +
-                    socket.getPort());
+            // a client sending something that isn't a message is disconnected the same way.
+            System.out.println("Closing connection to client: " + session.address);
+            remove(session);
+            session.close();
             Thread.currentThread().interrupt();
         } catch (IOException e) {
             e.printStackTrace();
@@ -218,27 +620,60 @@ public class ChatServer {
 
     }
 
+    /**
+     * Applies the client's rate limit to a message it has sent. A client over its limit with the delay action has the
+     * message handled and then isn't read from for a while, with drop the message is ignored and with kick the client
+     * is disconnected.
+     *
+     * @param session : the sender.
+     * @param bytes : the size of the message.
+     * @return : how long to wait before reading from the client again, -1 if the message mustn't be handled.
+     */
+    private long overLimit(Session session, int bytes) {
+        if (session.limiter == null) {
+            return 0;
+        }
+        long wait = session.limiter.acquire(bytes, options.rateAction == RateLimiter.Action.DELAY);
+        if (wait == 0) {
+            return 0;
+        }
+        switch (options.rateAction) {
+            case DROP:
+                metrics.rateDropped.increment();
+                return -1;
+            case KICK:
+                metrics.rateKicked.increment();
+                System.out.println("Over its rate limit, disconnecting client: " + session.address);
+                remove(session);
+                session.close();
+                // ends the read loop, the messages already read are never handled
+                Thread.currentThread().interrupt();
+                return -1;
+            default:
+                metrics.rateDelayed.increment();
+                return wait;
+        }
+    }
+
     /**
      * Main method when running
-     * @param args : checks for -csp allowing to change the port
+     * @param args : checks for -csp allowing to change the port, -nio to run the non-blocking server, -queue,
+     *              -overflow and -blockMillis for the outbound queues and -flushMicros and -flushBytes for batching
+     *              writes, -statsFile and -statsSeconds to write STATS to a file, -logDir, -logSegmentMB,
+     *              -logSegments, -logSyncMillis and -replay to keep the rooms' history, -rateMessages, -rateBytes,
+     *              -rateAction and -inflightMB to limit how fast clients are read, -compressMin and -compressLevel for
+     *              clients that ask for compression, -pingSeconds and -idleSeconds to ping quiet clients and close idle
+     *              ones, -node, -peerPort and -peers to link up with other servers
      */
     public static void main(String[] args){
-        int port = 14001;
-        for (int i=0; i<args.length; i++) {
-            if (args[i].equals("-csp")){
-                try {
-                    if (Integer.parseInt(args[i++]) >= 1024 && Integer.parseInt(args[i++]) <= 49151) {
-                        // port gets changed if -csp flag is given but the port doesn't get validated.
-                        port = Integer.parseInt(args[i++]);
-                    }
-                } catch (NumberFormatException e) {
-                    System.out.println("Incorrect Port supplied. Run with a valid Port or no port at all.");
-                }
-            }
+        ServerOptions options = ServerOptions.parse(args);
+        if (options.nonBlocking) {
+            NioChatServer nioChatServer = new NioChatServer(options);
+            nioChatServer.start();
+        } else {
+            // create chatServer object and start running it by calling the start method.
+            ChatServer chatServer = new ChatServer(options);
+            chatServer.start();
         }
-
-        // create chatServer object and start running it by calling the start method.
-        ChatServer chatServer = new ChatServer(port);
-        chatServer.start();
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,5 @@
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
@@ -11,8 +9,16 @@ import java.net.UnknownHostException;
  */
 abstract class Client {
 
-    // socket and thread used to close the connection and join the thread to the main thread.
-    Socket serverSocket;
+    // sends and receives messages with the protocol picked by -binary, served by one of the JVM's client loops.
+    ServerConnection connection;
+    // true to use the binary protocol instead of lines of text.
+    boolean binary = false;
+    // true to have the server's long messages compressed, with the binary protocol, -compress.
+    boolean compressed = false;
+    // true to connect again whenever the connection to the server is lost, -reconnect.
+    boolean reconnect = false;
+    // room joined after connecting, -room, null to stay in the lobby.
+    String room = null;
     // Client Name
     String name = "Name";
 
@@ -39,8 +45,8 @@ abstract class Client {
      */
     public void setServerName(){
         try {
-            PrintWriter send = new PrintWriter(serverSocket.getOutputStream(), true);
-            send.println("/setName " + name);
+            connection.setName(name);
+            connection.flush();
         } catch (SocketException e){
             // if the disconnected from server.
             System.out.println("Lost connection to server.");
@@ -48,6 +54,35 @@ abstract class Client {
             e.printStackTrace();
         }
     }
+    /**
+     * Joins the room given with -room, if any.
+     */
+    void joinRoom(){
+        if (room == null) {
+            return;
+        }
+        try {
+            connection.sendTyped("/join " + room);
+            connection.flush();
+        } catch (IOException e) {
+            System.out.println("Lost connection to server.");
+        }
+    }
+
+    /**
+     * Connects to the server with the protocol picked by -binary, without sending anything else. Halts the thread
+     * until the connection is made, everything after that is done by the connection's loop.
+     *
+     * @param address : the server's address.
+     * @param port : the server's port.
+     * @throws IOException : thrown if the server can't be reached.
+     */
+    void connect(String address, int port) throws IOException {
+        connection = new ServerConnection(ClientLoop.next(), address, port, binary || compressed, compressed);
+        connection.reconnecting = reconnect;
+        connection.open();
+    }
+
     /**
      * Start method used to get the port and address of the connection. Connects the client to the server and starts to
      * read and write data to and from the server. Method is to be used in the main class of the client.
@@ -60,26 +95,39 @@ abstract class Client {
         // common ports that should not be passed, if given then uses default port
 
         for (int i=0; i<args.length; i++) {
-            if (args[i].equals("-cca")) {
+            if (args[i].equals("-cca") && i + 1 < args.length) {
                 // get ip from the array of arguments.
-                address = args[i++];
-            }
-            if (args[i].equals("-ccp")) {
+                address = args[++i];
+            } else if (args[i].equals("-ccp") && i + 1 < args.length) {
                 try {
-                    if (Integer.parseInt(args[i++]) >= 1024 && Integer.parseInt(args[i++]) <= 49151) {
+                    int given = Integer.parseInt(args[++i]);
+                    if (given >= 1024 && given <= 49151) {
                         // get port from list of parameters.
-                        port = Integer.parseInt(args[i++]);
+                        port = given;
                     }
                 } catch (NumberFormatException e) {
                     e.printStackTrace();
                 }
+            } else if (args[i].equals("-room") && i + 1 < args.length) {
+                // join a room rather than staying in the lobby
+                room = args[++i];
+            } else if (args[i].equals("-binary")) {
+                // use the length prefixed binary protocol
+                binary = true;
+            } else if (args[i].equals("-compress")) {
+                // binary protocol with the server's long messages compressed
+                compressed = true;
+            } else if (args[i].equals("-reconnect")) {
+                // connect again rather than quitting when the server goes away
+                reconnect = true;
             }
         }
         // start the server socket on given address.
         try {
-            serverSocket = new Socket(address, port);
-            System.out.println("Connected to: " + serverSocket.getInetAddress().getHostAddress() + " : " + serverSocket.getPort());
+            connect(address, port);
+            System.out.println("Connected to: " + connection.address());
             setServerName();
+            joinRoom();
             read();
             write();
         } catch (UnknownHostException e) {
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector thread serving the connections of clients to the server, so a JVM can hold thousands of connections with
+ * a thread per core rather than two threads per connection. The loops are shared by every client of the JVM and
+ * started the first time they are needed, a new connection is given to each in turn. Each loop connects, reads and
+ * writes for its connections and runs tasks handed to it by other threads, such as writing newly sent messages.
+ *
+ */
+class ClientLoop extends Thread {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ClientLoop[] LOOPS = new ClientLoop[Runtime.getRuntime().availableProcessors()];
+    private static final AtomicInteger NEXT = new AtomicInteger();
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // stops every queued task from waking the selector again before it has run.
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // shared by every connection of the loop, their decoders copy what they need out of it.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // connections waiting to be connected again or for a connection to be made, and the earliest time one is due.
+    private final List<ServerConnection> waiting = new ArrayList<>();
+    private long nextTimer = Long.MAX_VALUE;
+
+    /**
+     * @return : the next loop in turn, started if it hasn't been yet.
+     * @throws IOException : thrown if the loop's selector can't be opened.
+     */
+    static ClientLoop next() throws IOException {
+        int index = Math.floorMod(NEXT.getAndIncrement(), LOOPS.length);
+        synchronized (LOOPS) {
+            if (LOOPS[index] == null) {
+                LOOPS[index] = new ClientLoop(index);
+                LOOPS[index].start();
+            }
+            return LOOPS[index];
+        }
+    }
+
+    private ClientLoop(int index) throws IOException {
+        super("client-loop-" + index);
+        // the loops never stop a client from exiting
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Queues a task to run on this loop, waking the selector if it is called from another thread.
+     *
+     * @param task : the task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a connection's channel with this loop, only called by the loop.
+     *
+     * @param channel : the connection's channel, non-blocking.
+     * @param ops : the events to wait for.
+     * @param connection : the connection, told about the events.
+     * @return : the channel's key.
+     * @throws IOException : thrown if the channel has been closed.
+     */
+    SelectionKey register(SocketChannel channel, int ops, ServerConnection connection) throws IOException {
+        return channel.register(selector, ops, connection);
+    }
+
+    /**
+     * Has a connection's timer run at its timerAt, only called by the loop. A connection has one timer at a time, so
+     * one already waiting is just moved.
+     *
+     * @param connection : the connection, its timerAt already set.
+     */
+    void timer(ServerConnection connection) {
+        if (!waiting.contains(connection)) {
+            waiting.add(connection);
+        }
+        nextTimer = Math.min(nextTimer, connection.timerAt);
+    }
+
+    /**
+     * Runs the timer of every connection whose time has come.
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        nextTimer = Long.MAX_VALUE;
+        for (int i = waiting.size() - 1; i >= 0; i--) {
+            // a timer can start another, which is added to the end of the list
+            if (i >= waiting.size()) {
+                continue;
+            }
+            ServerConnection connection = waiting.get(i);
+            if (now - connection.timerAt >= 0) {
+                waiting.remove(i);
+                connection.timerDue();
+            } else {
+                nextTimer = Math.min(nextTimer, connection.timerAt);
+            }
+        }
+    }
+
+    /**
+     * Waits for events, no longer than until the next timer. The selector only waits in milliseconds, so shorter
+     * delays are rounded up to one.
+     */
+    private void select() throws IOException {
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+        } else if (nextTimer == Long.MAX_VALUE) {
+            selector.select();
+        } else {
+            long wait = nextTimer - System.nanoTime();
+            if (wait <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                // only wait for events if there is nothing left to do
+                select();
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    ServerConnection connection = (ServerConnection) key.attachment();
+                    if (key.isConnectable()) {
+                        connection.finishConnect();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (nextTimer != Long.MAX_VALUE && System.nanoTime() - nextTimer >= 0) {
+                    runTimers();
+                }
+            }
+        } catch (IOException e) {
+            // the selector has failed, nothing the loop serves can carry on
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the long messages sent to a client that asked for compression when it connected, see Wire. Each client
+ * has its own zlib stream for the whole connection, so a message is compressed against the last 32 KB sent to the
+ * client: a DoD map or a replayed history repeats a lot of what came before it and shrinks far more than it would
+ * on its own. Short messages are sent as they are, compressing them costs more than it saves.
+ *
+ * A compressed message can't be shared with other clients, so this costs CPU for every recipient. The Deflater and
+ * the output array are only made for the first long message and reused for the rest, and only the client's writer
+ * uses them.
+ *
+ */
+class Compressor {
+
+    // bytes reserved in front of the output for the DEFLATE frame's header.
+    private static final int HEADER = Wire.MAX_VARINT + 1;
+
+    private final int minimum;
+    private final int level;
+    private final ServerMetrics metrics;
+    // the client's stream, null until the first long message.
+    private Deflater deflater;
+    private byte[] output;
+
+    /**
+     * Constructor
+     *
+     * @param minimum : the shortest message compressed, in bytes as a binary client is sent it.
+     * @param level : the Deflater level, 1 for fastest to 9 for smallest.
+     * @param metrics : the server's metrics, which count the bytes saved and the time spent.
+     */
+    Compressor(int minimum, int level, ServerMetrics metrics) {
+        this.minimum = minimum;
+        this.level = level;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param length : the bytes of a message a binary client is sent, from Frames.length.
+     * @return : true if the message is long enough to be compressed.
+     */
+    boolean applies(int length) {
+        return length >= minimum;
+    }
+
+    /**
+     * Compresses a message into a DEFLATE frame.
+     *
+     * @param frame : the message, built by Frames or replayed from the chat log, not changed.
+     * @param offset : where its binary frame starts, from Frames.offset.
+     * @param length : the length of its binary frame, from Frames.length.
+     * @return : the DEFLATE frame, whole from index 0. Its array is reused by the next call, so it must have been
+     *          written or copied by then.
+     */
+    ByteBuffer compress(ByteBuffer frame, int offset, int length) {
+        long start = System.nanoTime();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            output = new byte[HEADER + length + 64];
+        }
+        // the opcode and payload are compressed, the length in front of them is replaced by the DEFLATE frame's
+        int inner = offset;
+        while ((frame.get(inner) & 0x80) != 0) {
+            inner++;
+        }
+        inner++;
+        deflater.setInput(frame.duplicate().limit(offset + length).position(inner));
+        int end = HEADER;
+        while (true) {
+            end += deflater.deflate(output, end, output.length - end, Deflater.SYNC_FLUSH);
+            if (end < output.length) {
+                break;
+            }
+            // a full output can mean there is more to come
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        int payload = end - HEADER + 1;
+        int headerStart = HEADER - 1 - Wire.varintLength(payload);
+        Wire.writeVarint(payload, output, headerStart);
+        output[HEADER - 1] = (byte) Wire.DEFLATE;
+        metrics.compressed(length, end - headerStart, System.nanoTime() - start);
+        return ByteBuffer.wrap(output, headerStart, end - headerStart).slice();
+    }
+
+    /**
+     * Frees the stream's native memory, called by the client's writer once the client has gone.
+     */
+    void end() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The ChatBot's conversations, one per user who has greeted it, so one bot can talk to thousands of users at once.
+ * Kept in access order, so the first conversation is always the one heard from longest ago: once there are too many
+ * it is forgotten to make room, and conversations that have gone quiet are forgotten from the front until one that
+ * hasn't is reached, without looking at the rest. Memory stays bounded however many users come and go.
+ * Only used by the bot's dispatcher thread.
+ *
+ */
+class Conversations {
+
+    /**
+     * Inner class; what the bot remembers about one user.
+     *
+     */
+    static final class Conversation {
+        // time the user was last heard from, in milliseconds.
+        long heardAt;
+    }
+
+    private final int capacity;
+    private final long idleMillis;
+    private final LinkedHashMap<String, Conversation> conversations;
+    // conversations forgotten to make room or for being idle.
+    private long evicted = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity : most conversations kept at once.
+     * @param idleMillis : how long a conversation is kept without hearing from its user.
+     */
+    Conversations(int capacity, long idleMillis) {
+        this.capacity = capacity;
+        this.idleMillis = idleMillis;
+        conversations = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<String, Conversation> eldest) {
+                if (size() > Conversations.this.capacity) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Finds a user's conversation and marks it as heard from now.
+     *
+     * @param user : the user's name.
+     * @param now : the current time in milliseconds.
+     * @return : the conversation, null if the user has none.
+     */
+    Conversation get(String user, long now) {
+        Conversation conversation = conversations.get(user);
+        if (conversation != null) {
+            conversation.heardAt = now;
+        }
+        return conversation;
+    }
+
+    /**
+     * Starts a conversation with a user, replacing any the user had.
+     *
+     * @param user : the user's name.
+     * @param now : the current time in milliseconds.
+     * @return : the new conversation.
+     */
+    Conversation start(String user, long now) {
+        Conversation conversation = new Conversation();
+        conversation.heardAt = now;
+        conversations.put(user, conversation);
+        return conversation;
+    }
+
+    /**
+     * Forgets every conversation whose user hasn't been heard from for the idle time.
+     *
+     * @param now : the current time in milliseconds.
+     */
+    void evictIdle(long now) {
+        Iterator<Conversation> oldest = conversations.values().iterator();
+        while (oldest.hasNext()) {
+            if (now - oldest.next().heardAt < idleMillis) {
+                // every conversation after it was heard from later
+                return;
+            }
+            oldest.remove();
+            evicted++;
+        }
+    }
+
+    /**
+     * @return : the number of conversations going on.
+     */
+    int size() {
+        return conversations.size();
+    }
+
+    /**
+     * @return : the conversations forgotten so far to make room or for being idle.
+     */
+    long evicted() {
+        return evicted;
+    }
+}
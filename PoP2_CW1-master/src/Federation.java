@@ -0,0 +1,460 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Links the server to other chat servers so their clients share one chat, set up with -peerPort and -peers. Every
+ * server takes its own clients, and a message sent in a room is published to the room's members here and sent once
+ * to every peer, which publishes it to the members it has in a room of the same name. Names are shared the same way
+ * through the SessionRegistry, so a name can only be used once across all the servers.
+ *
+ * Every server only sends what its own clients do, so each pair of servers has to be linked: either server can list
+ * the other with -peers and the other accepts the link on its -peerPort. Everything a server sends carries its node
+ * name, the time it started and a sequence number. Records are numbered and queued on the links in one go, so a peer
+ * gets a server's records in the order they were numbered and drops any that isn't newer than the last it had from
+ * that server, which only a record that arrives twice can be. A message's order is
+ * kept among the messages of the server it was sent to, messages sent to different servers at the same moment can
+ * be published in a different order on each. The rooms of hosted DoD games aren't shared.
+ *
+ */
+class Federation {
+
+    private static final byte HELLO = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte CLAIM = 3;
+    private static final byte RELEASE = 4;
+    // how long a lost or refused link waits before it is connected again.
+    private static final long REDIAL_MILLIS = 1000;
+    // where a record's sequence number is, after its type and epoch.
+    private static final int SEQUENCE_OFFSET = 1 + 8;
+
+    // name of this server, -node.
+    final String node;
+    private final byte[] nodeBytes;
+    // tells the sequence numbers of a server apart from those it used before it was started again.
+    private final long epoch = System.currentTimeMillis();
+    // held while a record is numbered and queued, so no record can be queued on a link behind a newer one.
+    private final Object sendLock = new Object();
+    private long nextSequence = 0;
+
+    private final SessionRegistry clients;
+    // publishes a message from a peer to the members here of the room with the given name, never waiting.
+    private final BiConsumer<String, ByteBuffer> deliver;
+    // run after a reply has been queued for a client from a link's thread, so it gets written.
+    private final Consumer<Session> replied;
+    private final CopyOnWriteArrayList<PeerLink> links = new CopyOnWriteArrayList<>();
+    // newest record had from every node, {epoch, sequence}.
+    private final HashMap<String, long[]> seen = new HashMap<>();
+    private ServerSocket listener;
+    private volatile boolean running = true;
+
+    // counters shown by STATS.
+    private final LongAdder relayedOut = new LongAdder();
+    private final LongAdder relayedIn = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder linksLost = new LongAdder();
+
+    /**
+     * Constructor, starts accepting and connecting links.
+     *
+     * @param options : the node name, peer port and peers.
+     * @param clients : the server's registry of all its clients, which shares its names from now on.
+     * @param deliver : publishes a message from a peer to a room here.
+     * @param replied : run after a reply is queued for a client.
+     */
+    private Federation(ServerOptions options, SessionRegistry clients, BiConsumer<String, ByteBuffer> deliver,
+                       Consumer<Session> replied) {
+        node = options.node != null ? options.node : "node-" + options.port;
+        nodeBytes = node.getBytes(StandardCharsets.UTF_8);
+        this.clients = clients;
+        this.deliver = deliver;
+        this.replied = replied;
+        clients.federate(this);
+        if (options.peerPort > 0) {
+            try {
+                listener = new ServerSocket();
+                listener.bind(new InetSocketAddress(options.peerPort));
+                start("peer-listener", this::listen);
+            } catch (IOException e) {
+                System.out.println("Could not listen for peers on " + options.peerPort + ": " + e.getMessage());
+            }
+        }
+        for (String peer : options.peers) {
+            int colon = peer.lastIndexOf(':');
+            try {
+                InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1)));
+                start("peer-dialer " + peer, () -> dial(address));
+            } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                System.out.println("Peer must be given as host:port, ignoring " + peer);
+            }
+        }
+        System.out.println("Federated as " + node + ".");
+    }
+
+    /**
+     * @param options : the server's settings.
+     * @param clients : the server's registry of all its clients.
+     * @param deliver : publishes a message from a peer to a room here.
+     * @param replied : run after a reply is queued for a client.
+     * @return : the federation, null if the server wasn't started with -peerPort or -peers.
+     */
+    static Federation open(ServerOptions options, SessionRegistry clients, BiConsumer<String, ByteBuffer> deliver,
+                           Consumer<Session> replied) {
+        if (options.peerPort == 0 && options.peers.isEmpty()) {
+            return null;
+        }
+        return new Federation(options, clients, deliver, replied);
+    }
+
+    /**
+     * Sends a message published to a room here to every peer, unless it is a game's. The message is encoded once for
+     * all of them.
+     *
+     * @param room : the room.
+     * @param frame : the message, built by Frames.
+     */
+    void relay(Room room, ByteBuffer frame) {
+        if (room == null || room.game || links.isEmpty()) {
+            return;
+        }
+        byte[] name = room.name.getBytes(StandardCharsets.UTF_8);
+        int offset = Frames.offset(frame, false);
+        // the line break isn't sent, the peer adds its own
+        int length = Frames.length(frame, false) - 1;
+        ByteBuffer record = record(MESSAGE, 2 + name.length + length);
+        putBytes(record, name);
+        frame.get(offset, record.array(), record.position(), length);
+        send(record.array());
+        relayedOut.increment();
+    }
+
+    /**
+     * Tells every peer a client here has taken a name, called by the registry.
+     *
+     * @param name : the name.
+     * @param claimedAt : when it was taken.
+     */
+    void claimed(String name, long claimedAt) {
+        send(claim(name, claimedAt));
+    }
+
+    /**
+     * Tells every peer a client here has given a name up, called by the registry.
+     *
+     * @param name : the name.
+     */
+    void released(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = record(RELEASE, 2 + bytes.length);
+        putBytes(record, bytes);
+        send(record.array());
+    }
+
+    /**
+     * Closes every link and stops taking new ones, used when the server shuts down.
+     */
+    void close() {
+        running = false;
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        for (PeerLink link : links) {
+            link.close();
+        }
+    }
+
+    /**
+     * @return : a summary for STATS.
+     */
+    String stats() {
+        List<String> peers = new ArrayList<>();
+        for (PeerLink link : links) {
+            peers.add(link.node);
+        }
+        return "federation " + node + ": peers " + peers + ", relayed out " + relayedOut.sum() + ", in "
+                + relayedIn.sum() + ", duplicates dropped " + duplicates.sum() + ", links lost " + linksLost.sum();
+    }
+
+    /**
+     * The listener's loop, each accepted link is served on its own thread.
+     */
+    private void listen() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                start("peer " + socket.getRemoteSocketAddress(), () -> {
+                    try {
+                        serve(new PeerLink(socket));
+                    } catch (IOException e) {
+                        // the peer went before it was linked
+                    }
+                });
+            } catch (IOException e) {
+                // the listener is closed when the server shuts down
+            }
+        }
+    }
+
+    /**
+     * A dialer's loop, keeps a link to one peer and connects it again whenever it is lost.
+     *
+     * @param address : the peer's -peerPort.
+     */
+    private void dial(InetSocketAddress address) {
+        while (running) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(address, (int) REDIAL_MILLIS);
+                serve(new PeerLink(socket));
+            } catch (IOException e) {
+                // the peer isn't up yet or has gone, try again later
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serves a link until it is lost: says hello, takes the peer in, tells it every name used here and then handles
+     * whatever it sends.
+     *
+     * @param link : a newly connected link.
+     */
+    private void serve(PeerLink link) {
+        try {
+            link.send(record(HELLO, 0).array());
+            ByteBuffer hello = link.read();
+            if (hello.get() != HELLO) {
+                throw new IOException("No hello from peer " + link.address);
+            }
+            link.epoch = hello.getLong();
+            hello.getLong();
+            link.node = getString(hello);
+            if (!join(link)) {
+                return;
+            }
+            while (true) {
+                receive(link, link.read());
+            }
+        } catch (IOException | RuntimeException e) {
+            // the link was closed, or the peer sent something that isn't a record
+        } finally {
+            link.close();
+            if (links.remove(link)) {
+                linksLost.increment();
+                clients.forget(link.node);
+                System.out.println("Lost the link to peer " + link.node + ".");
+            }
+        }
+    }
+
+    /**
+     * Adds a link whose hello has been read and tells the peer every name used here.
+     *
+     * @param link : the link.
+     * @return : false if the link goes to this server itself or to a peer already linked, it isn't used.
+     */
+    private boolean join(PeerLink link) {
+        synchronized (links) {
+            if (link.node.equals(node)) {
+                return false;
+            }
+            for (PeerLink other : links) {
+                if (other.node.equals(link.node)) {
+                    if (other.epoch == link.epoch) {
+                        return false;
+                    }
+                    // the peer has started again before its old link was found to be lost
+                    links.remove(other);
+                    other.close();
+                }
+            }
+            // names the peer had before it was started again have gone with it
+            clients.forget(link.node);
+            links.add(link);
+        }
+        System.out.println("Linked to peer " + link.node + " at " + link.address + ".");
+        // the registry is locked meanwhile, so the peer hears of every later rename after these
+        clients.localNames((name, claimedAt) -> send(link, claim(name, claimedAt)));
+        return true;
+    }
+
+    /**
+     * Handles a record from a peer, unless it has already been had.
+     *
+     * @param link : the link it came on.
+     * @param record : the record.
+     */
+    private void receive(PeerLink link, ByteBuffer record) {
+        byte type = record.get();
+        long epoch = record.getLong();
+        long sequence = record.getLong();
+        String origin = getString(record);
+        if (!firstTime(origin, epoch, sequence)) {
+            duplicates.increment();
+            return;
+        }
+        switch (type) {
+            case MESSAGE:
+                String room = getString(record);
+                relayedIn.increment();
+                deliver.accept(room, Frames.text(record.array(), record.position(), record.remaining()));
+                break;
+            case CLAIM:
+                long claimedAt = record.getLong();
+                String name = getString(record);
+                Session lost = clients.claimed(name, origin, claimedAt);
+                if (lost != null) {
+                    lost.outbound.reply(Frames.line("The name " + name
+                            + " was taken on another server first, set another with /setName."));
+                    replied.accept(lost);
+                }
+                break;
+            case RELEASE:
+                clients.released(getString(record), origin);
+                break;
+            default:
+                throw new IllegalStateException("Unknown record " + type + " from peer " + link.node);
+        }
+    }
+
+    /**
+     * A node's records only come over its one link, in the order they were numbered, so a record that isn't newer than
+     * the last one had has been had already. Numbers skipped by records lost with an earlier link are never waited for.
+     *
+     * @param origin : the node a record was first sent by.
+     * @param epoch : when that node started.
+     * @param sequence : the record's sequence number.
+     * @return : true the first time the record is had, false if it has been had already.
+     */
+    private boolean firstTime(String origin, long epoch, long sequence) {
+        synchronized (seen) {
+            long[] state = seen.get(origin);
+            if (state == null || epoch > state[0]) {
+                seen.put(origin, new long[]{epoch, sequence});
+                return true;
+            }
+            if (epoch < state[0] || sequence <= state[1]) {
+                return false;
+            }
+            state[1] = sequence;
+            return true;
+        }
+    }
+
+    /**
+     * Numbers a record and sends it to every linked peer.
+     *
+     * @param record : the record.
+     */
+    private void send(byte[] record) {
+        synchronized (sendLock) {
+            number(record);
+            for (PeerLink link : links) {
+                link.send(record);
+            }
+        }
+    }
+
+    /**
+     * Numbers a record and sends it to one peer.
+     *
+     * @param link : the peer's link.
+     * @param record : the record.
+     */
+    private void send(PeerLink link, byte[] record) {
+        synchronized (sendLock) {
+            number(record);
+            link.send(record);
+        }
+    }
+
+    /**
+     * Gives a record the next sequence number, only called holding the send lock.
+     *
+     * @param record : the record, not yet queued on any link.
+     */
+    private void number(byte[] record) {
+        ByteBuffer.wrap(record).putLong(SEQUENCE_OFFSET, ++nextSequence);
+    }
+
+    /**
+     * @param name : a name taken here.
+     * @param claimedAt : when it was taken.
+     * @return : the record announcing it.
+     */
+    private byte[] claim(String name, long claimedAt) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = record(CLAIM, 8 + 2 + bytes.length);
+        record.putLong(claimedAt);
+        putBytes(record, bytes);
+        return record.array();
+    }
+
+    /**
+     * Starts a record with what every record carries: its type, this server's epoch, its sequence number, given when
+     * it is sent, and its node name.
+     *
+     * @param type : the record's type.
+     * @param bodyLength : the bytes that follow.
+     * @return : a buffer positioned at the body, with exactly room for it.
+     */
+    private ByteBuffer record(byte type, int bodyLength) {
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 8 + 2 + nodeBytes.length + bodyLength);
+        record.put(type).putLong(epoch).putLong(0);
+        putBytes(record, nodeBytes);
+        return record;
+    }
+
+    /**
+     * Writes a string as its length and its UTF-8 bytes.
+     *
+     * @param record : the record.
+     * @param bytes : the string's bytes.
+     */
+    private static void putBytes(ByteBuffer record, byte[] bytes) {
+        record.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * @param record : a record positioned at a string written by putBytes.
+     * @return : the string.
+     */
+    private static String getString(ByteBuffer record) {
+        int length = record.getShort() & 0xFFFF;
+        String text = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return text;
+    }
+
+    /**
+     * Starts a daemon thread.
+     *
+     * @param name : the thread's name.
+     * @param task : what it runs.
+     */
+    private static void start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,185 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the encoded lines the server broadcasts. Each line is encoded to UTF-8 straight into the one array that is
+ * sent, exactly once however many clients it goes to, without formatting an intermediate string first.
+ * Frames are shared by every recipient, so once built they must never be changed; writers only read them with
+ * absolute indexes and never move their position.
+ *
+ * The same array serves clients of both protocols. The text is followed by a line break for line clients and
+ * preceded by the binary frame header, written right before it in a few reserved bytes, for binary clients; the first
+ * byte says where the header starts. offset and length give each protocol's part of the array.
+ *
+ */
+final class Frames {
+
+    // bytes reserved in front of the text: where the binary header starts, then room for the header itself.
+    private static final int HEADER = 1 + Wire.MAX_VARINT + 1;
+
+    // sent to a client that has been quiet for a while: a PING frame, or the line /ping. Shared by every client.
+    static final ByteBuffer PING = control(Wire.PING, "/ping");
+
+    private Frames() {
+    }
+
+    /**
+     * Encodes the "[name] " tag put in front of a client's messages, done once when the client sets its name.
+     *
+     * @param name : the client's name, null if it hasn't set one.
+     * @return : the encoded tag.
+     */
+    static byte[] nameTag(String name) {
+        return ("[" + name + "] ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a "[name] message" line.
+     *
+     * @param nameTag : the sender's encoded tag from nameTag.
+     * @param message : the message the sender typed.
+     * @return : the encoded line, ending in a line break.
+     */
+    static ByteBuffer chat(byte[] nameTag, String message) {
+        byte[] frame = new byte[HEADER + nameTag.length + utf8Length(message) + 1];
+        System.arraycopy(nameTag, 0, frame, HEADER, nameTag.length);
+        int end = encode(message, frame, HEADER + nameTag.length);
+        return finish(frame, end);
+    }
+
+    /**
+     * Builds a line sent by the server itself, such as a client having left.
+     *
+     * @param text : the text of the line.
+     * @return : the encoded line, ending in a line break.
+     */
+    static ByteBuffer line(String text) {
+        byte[] frame = new byte[HEADER + utf8Length(text) + 1];
+        int end = encode(text, frame, HEADER);
+        return finish(frame, end);
+    }
+
+    /**
+     * Builds a message with its own binary opcode, for the server's messages that aren't for the user.
+     *
+     * @param opcode : the opcode sent to binary clients.
+     * @param text : the line sent to other clients, also the binary payload.
+     * @return : the encoded message.
+     */
+    private static ByteBuffer control(int opcode, String text) {
+        ByteBuffer frame = line(text);
+        frame.put(HEADER - 1, (byte) opcode);
+        return frame;
+    }
+
+    /**
+     * Builds a line from text that is already encoded, such as a message relayed by another server.
+     *
+     * @param utf8 : array holding the text in UTF-8.
+     * @param offset : where the text starts.
+     * @param length : the number of bytes of text.
+     * @return : the encoded line, ending in a line break.
+     */
+    static ByteBuffer text(byte[] utf8, int offset, int length) {
+        byte[] frame = new byte[HEADER + length + 1];
+        System.arraycopy(utf8, offset, frame, HEADER, length);
+        return finish(frame, HEADER + length);
+    }
+
+    /**
+     * @param frame : a frame built by chat or line.
+     * @param binary : true for a binary client.
+     * @return : where the bytes sent to the client start in the frame's array.
+     */
+    static int offset(ByteBuffer frame, boolean binary) {
+        return binary ? frame.get(0) : HEADER;
+    }
+
+    /**
+     * @param frame : a frame built by chat or line.
+     * @param binary : true for a binary client.
+     * @return : the number of bytes sent to the client.
+     */
+    static int length(ByteBuffer frame, boolean binary) {
+        // binary clients get the header but not the line break
+        return binary ? frame.limit() - 1 - frame.get(0) : frame.limit() - HEADER;
+    }
+
+    /**
+     * Ends the text with a line break and writes the binary header right before it.
+     *
+     * @param frame : the frame's array, the text already encoded after the reserved bytes.
+     * @param end : the index after the text.
+     * @return : the finished frame.
+     */
+    private static ByteBuffer finish(byte[] frame, int end) {
+        frame[end] = '\n';
+        int payload = end - HEADER + 1;
+        int start = HEADER - 1 - Wire.varintLength(payload);
+        Wire.writeVarint(payload, frame, start);
+        frame[HEADER - 1] = (byte) Wire.CHAT;
+        frame[0] = (byte) start;
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * @param text : the text to measure.
+     * @return : the number of bytes the text takes in UTF-8.
+     */
+    static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced with '?', the same as String.getBytes
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes text as UTF-8 into an array that has room for it.
+     *
+     * @param text : the text to encode.
+     * @param destination : the array to encode into.
+     * @param offset : where in the array to start.
+     * @return : the index after the last byte written.
+     */
+    private static int encode(String text, byte[] destination, int offset) {
+        int position = offset;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                destination[position++] = (byte) c;
+            } else if (c < 0x800) {
+                destination[position++] = (byte) (0xC0 | (c >> 6));
+                destination[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                destination[position++] = (byte) (0xF0 | (codePoint >> 18));
+                destination[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                destination[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                destination[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                destination[position++] = '?';
+            } else {
+                destination[position++] = (byte) (0xE0 | (c >> 12));
+                destination[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                destination[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+}
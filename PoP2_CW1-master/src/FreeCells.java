@@ -0,0 +1,135 @@
+import java.util.function.LongPredicate;
+import java.util.random.RandomGenerator;
+
+/**
+ * Picks a random free tile of a map to put a player on, without counting the free tiles first. A tile is picked at
+ * random from a set of candidates and picked again if it isn't free, which gives every free tile the same chance.
+ * The candidates are all the map's tiles when at least a quarter of them are floor, so it takes four picks or fewer
+ * on average and costs no memory. On maps with fewer floor tiles the candidates are the floor tiles themselves: the
+ * floor tiles of every block of BLOCK tiles are counted once when the map is read and kept in a Fenwick tree, and a
+ * pick is a number under their total, which the tree turns into the block to look in and how many of its floor tiles
+ * to skip. A pick then costs a walk down the tree, O(log blocks), and a look through at most one block, rather than
+ * O(1), and only a count per block is kept, however many tiles are floor, so a map much bigger than the heap can still
+ * be played on. The only tiles a counted tile can stop being free for are the players standing on it, so moving a
+ * player never changes the counts. Gold that is picked up leaves a new floor tile, which is added to its block's count
+ * in O(log blocks).
+ *
+ * A tile can also be turned down by a condition, such as being too close to another player. If none of a number of
+ * picks is free and meets the condition, the free tiles are gone through to find out which ones do, and one of those
+ * is picked.
+ *
+ */
+final class FreeCells {
+
+    // random picks made before going through every free tile instead.
+    private static final int MAX_PICKS = 64;
+    // tiles counted together, a power of two that divides the grid's pages so a block is never split between two.
+    private static final int BLOCK_BITS = 10;
+    private static final int BLOCK = 1 << BLOCK_BITS;
+
+    private final Grid grid;
+    // Fenwick tree of the floor tiles in each block, null if every tile is a candidate. tree[i] holds the blocks from
+    // i - (i & -i) up to i - 1.
+    private long[] tree;
+    // the floor tiles counted in all the blocks.
+    private long total = 0;
+
+    /**
+     * Constructor, counts the map's floor tiles a block at a time and keeps the counts if there are too few for
+     * picking from every tile.
+     *
+     * @param grid : the map's tiles.
+     */
+    FreeCells(Grid grid) {
+        this.grid = grid;
+        long[] counted = new long[(int) ((grid.size() + BLOCK - 1) >>> BLOCK_BITS) + 1];
+        for (int b = 1; b < counted.length; b++) {
+            counted[b] = grid.count(Grid.Tile.FLOOR, (long) (b - 1) << BLOCK_BITS, BLOCK);
+            total += counted[b];
+        }
+        if (total * 4 < grid.size()) {
+            // each node adds itself to its parent, which has been given its own block by then
+            for (int i = 1; i < counted.length; i++) {
+                int parent = i + (i & -i);
+                if (parent < counted.length) {
+                    counted[parent] += counted[i];
+                }
+            }
+            tree = counted;
+        }
+    }
+
+    /**
+     * Adds a tile that has just become floor, such as where gold was picked up.
+     *
+     * @param index : the tile's index.
+     */
+    void freed(long index) {
+        if (tree == null) {
+            return;
+        }
+        total++;
+        for (int i = (int) (index >>> BLOCK_BITS) + 1; i < tree.length; i += i & -i) {
+            tree[i]++;
+        }
+    }
+
+    /**
+     * @param n : a number under the floor tiles counted in all the blocks.
+     * @return : the index of the floor tile it stands for, -1 if a player is standing on one of the tiles counted in
+     *          its block so it has fewer floor tiles now.
+     */
+    private long candidate(long n) {
+        // the most blocks from the start that have no more than n floor tiles, the tile is in the block after them
+        int blocks = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>>= 1) {
+            int next = blocks + step;
+            if (next < tree.length && tree[next] <= n) {
+                blocks = next;
+                n -= tree[next];
+            }
+        }
+        return grid.nth(Grid.Tile.FLOOR, (long) blocks << BLOCK_BITS, BLOCK, (int) n);
+    }
+
+    /**
+     * @param random : where the picks come from.
+     * @return : the index of a free tile, each with the same chance, -1 if there is none.
+     */
+    long pick(RandomGenerator random) {
+        return pick(random, index -> true);
+    }
+
+    /**
+     * @param random : where the picks come from.
+     * @param allowed : the condition a tile has to meet as well as being free.
+     * @return : the index of a free tile meeting the condition, each with the same chance, -1 if there is none.
+     */
+    long pick(RandomGenerator random, LongPredicate allowed) {
+        if (grid.size() == 0 || tree != null && total == 0) {
+            return -1;
+        }
+        for (int i = 0; i < MAX_PICKS; i++) {
+            long index = tree == null ? random.nextLong(grid.size()) : candidate(random.nextLong(total));
+            if (index >= 0 && grid.tileAt(index) == Grid.Tile.FLOOR && allowed.test(index)) {
+                return index;
+            }
+        }
+        // few or none of the free tiles meet the condition, so find out which do
+        long matching = 0;
+        for (long i = grid.next(Grid.Tile.FLOOR, 0); i >= 0; i = grid.next(Grid.Tile.FLOOR, i + 1)) {
+            if (allowed.test(i)) {
+                matching++;
+            }
+        }
+        if (matching == 0) {
+            return -1;
+        }
+        long skip = random.nextLong(matching);
+        for (long i = grid.next(Grid.Tile.FLOOR, 0); ; i = grid.next(Grid.Tile.FLOOR, i + 1)) {
+            if (allowed.test(i) && skip-- == 0) {
+                return i;
+            }
+        }
+    }
+}
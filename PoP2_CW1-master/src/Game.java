@@ -0,0 +1,40 @@
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A DoD game hosted by the server. The player who starts it plays P and the next to join plays the chaser, the two
+ * take turns and everything the game says is sent to the game's room.
+ * The engine is only ever used by the game's shard, a single thread, so it needs no locking. Who plays which side is
+ * also set from the players' own threads, so those fields are volatile.
+ *
+ */
+class Game {
+
+    final long id;
+    final String mapName;
+    // room the players are moved to, the game's output is sent there.
+    final Room room;
+    // thread every command of the game runs on, shared with the other games of the shard.
+    final ExecutorService shard;
+
+    volatile Session player;
+    volatile Session chaser;
+
+    // only used on the shard, null until the map has been read.
+    GameLogic engine;
+    boolean finished = false;
+
+    /**
+     * Constructor
+     *
+     * @param id : the game's id, used with /joingame.
+     * @param mapName : the map to play on, "default" for the built in one.
+     * @param room : the game's room.
+     * @param shard : the thread the game runs on.
+     */
+    Game(long id, String mapName, Room room, ExecutorService shard) {
+        this.id = id;
+        this.mapName = mapName;
+        this.room = room;
+        this.shard = shard;
+    }
+}
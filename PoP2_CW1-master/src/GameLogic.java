@@ -1,16 +1,12 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.SocketException;
-import java.util.Arrays;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 /**
  * Contains the main logic part of the game, as it processes.
  *
  */
-public class GameLogic extends Client{
+public class GameLogic extends Client implements BotRuntime.Handler {
 
 	private Map map;
 	private final HumanPlayer player;
@@ -23,6 +19,8 @@ public class GameLogic extends Client{
 
 	// needed to only run a greeting then the client joins the server.
     private boolean greeted = false;
+    // hands the players' commands to handle, when playing over a connection.
+    private BotRuntime runtime;
 
 	/**
 	 * Default constructor
@@ -58,6 +56,23 @@ public class GameLogic extends Client{
 	    // place both players randomly on the map
 	    map.placePlayerOnMap('P');
 	    map.placePlayerOnMap('B');
+	}
+
+	/**
+	 * Constructor used by the server to host a game, the map is given rather than asked for on the console and the
+	 * game is played through turn rather than over a connection.
+	 *
+	 * @param map : the map to play on, already read.
+	 */
+	GameLogic(Map map) {
+        player = new HumanPlayer();
+        chaser = new HumanPlayer();
+        this.map = map;
+        greeted = true;
+
+	    // place both players randomly on the map
+	    map.placePlayerOnMap('P');
+	    map.placePlayerOnMap('B');
 
 	}
 
@@ -102,7 +117,7 @@ public class GameLogic extends Client{
             message = pickup();
         } else if (action.equals("QUIT")) {
             // break the loop and leave the game
-            quitGame();
+            message = quitGame();
         } else {
             // invalid command
             message = "Invalid";
@@ -110,14 +125,41 @@ public class GameLogic extends Client{
         // alternate turns
         playersTurn = !playersTurn;
 
-        // when the player can't be found on the map end the game as the bot caught the player
-        if (Arrays.equals(map.getPos('P'), new int[]{0,0})){
+        // when either can't be found on the map end the game as the bot caught the player. The player walking into
+        // the bot hides it, and its next move would start from [0, 0], off the edge of the map.
+        if (!map.isOnMap('P') || !map.isOnMap('B')){
             message = quitGame();
         }
 
         return message;
     }
 
+    /**
+     * Plays one turn for whoever's turn it is, used by games hosted on the server.
+     *
+     * @param input : the command of the player whose turn it is.
+     * @return : the result of the command, followed by whose turn is next unless the game has ended.
+     */
+    String turn(String input) {
+        if (playersTurn) {
+            player.setInput(input);
+        } else {
+            chaser.setInput(input);
+        }
+        String message = loop();
+        if (!gameRunning) {
+            return message;
+        }
+        return message + "\n" + (playersTurn ? "Player's turn:" : "Chaser's turn:");
+    }
+
+    /**
+     * @return : true if it is the player's turn, false if it is the chaser's.
+     */
+    boolean isPlayersTurn() {
+        return playersTurn;
+    }
+
     /**
      * *original DoD code*
      *
@@ -205,7 +247,6 @@ public class GameLogic extends Client{
      */
     protected String look(char player) {
         int[] playerPos = map.getPos(player);
-        char[][] mapArr = map.getMap();
         // used to add characters to a string iteratively
         StringBuilder result = new StringBuilder();
 
@@ -214,7 +255,8 @@ public class GameLogic extends Client{
             // same thing but for the columns now
             for (int x=playerPos[0]-2; x<playerPos[0]+3; x++){
                 try{
-                    result.append(mapArr[y][x]);
+                    // only the tiles around the player are read, rather than a copy of the whole map
+                    result.append(map.getAtPos(new int[]{x, y}));
                 }
                 catch (IndexOutOfBoundsException e) {
                     // the sides of the map only have 1 # so it will create a indexOutOfBoundsException
@@ -239,8 +281,8 @@ public class GameLogic extends Client{
     protected String pickup() {
         int[] posArr = map.getPos('P');
         // if the player position is the same as a gold position remove the gold position and increment player gold
-        if (map.getGoldPositions().contains(Arrays.asList(posArr[0],posArr[1]))){
-            map.removeGold(Arrays.asList(posArr[0],posArr[1]));
+        if (map.isGold(posArr)){
+            map.removeGold(posArr);
             player.addGold();
             return "Success. " + gold();
         }
@@ -257,7 +299,7 @@ public class GameLogic extends Client{
         gameRunning = false;
         int[] playerPos = map.getPos('P');
         // check if win condition ias been met.
-        if (map.getExitPositions().contains(Arrays.asList(playerPos[0], playerPos[1])) && player.getGold() >= map.getGoldRequired()) {
+        if (map.isExit(playerPos) && player.getGold() >= map.getGoldRequired()) {
             return "Player Won!, DoD client is Leaving Server";
         }
         else {
@@ -307,43 +349,21 @@ public class GameLogic extends Client{
     }
 
     /**
-     * sends who's turn it is and the result of a player making an action to the server.
-     * If the game is not running it closes exits the server.
+     * The DoD client only writes to answer a player's command, so this waits until the connection has closed, which it
+     * does once the game has ended.
      *
      */
     @Override
     void write() {
         try {
-            PrintWriter send = new PrintWriter(serverSocket.getOutputStream(), true);
-            if (gameRunning()) {
-                send.println(loop());
-                // game could have ended in the loop method.
-                if (gameRunning) {
-                    if (playersTurn) {
-                        send.println("Player's turn:");
-                    } else {
-                        send.println("Chaser's turn:");
-                    }
-                }
-                // get response
-                read();
-            } else {
-                // send exit command to server so that it knows the DoDClient is leaving
-                send.println("/Exit");
-            }
-        } catch (SocketException e){
-            // if the disconnected from server.
-            System.out.println("Lost connection to server.");
-        } catch (IOException e) {
+            runtime.await();
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
-
     }
 
     /**
-     * sends greeting when joins the server.
-     * on all other method calls it will filter out input from itself, and set the player input based on which player's
-     * turn is next.
+     * sends greeting when joins the server, then plays the commands of the players as they arrive.
      *
      */
     @Override
@@ -352,36 +372,28 @@ public class GameLogic extends Client{
             // let the users know the DoD client has connected, done in read() as this called before write in the client class
             greeting();
         }
-        try {
-            BufferedReader receive = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            String message = receive.readLine();
-            // ignore messages from itself
-            while (message.startsWith("[DoD]")) {
-                message = receive.readLine();
-            }
-            // removes the name tag
-            message = message.replaceAll("\\[(.*?)] ", "");
-            // updates relevant players input
-            if (playersTurn){
-                player.setInput(message);
-            } else {
-                chaser.setInput(message);
-            }
-            // send to server
-            write();
-        } catch (SocketException e){
-            // exception is thrown if the server doesn't close properly or messageList is empty caused by server quitting
-            // before bot got input.
-            System.out.println("Lost Connection To Server.");
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                // if connection stops close the server socket.
-                serverSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        runtime = new BotRuntime(connection, name, this);
+        runtime.start();
+    }
+
+    /**
+     * Plays a command for whoever's turn it is, messages from the DoD client itself never arrive here. Sends the result
+     * and whose turn is next, and leaves the server once the game has ended.
+     *
+     * @param sender : the user who sent the command, players take turns so it isn't checked.
+     * @param text : the command.
+     * @throws IOException : thrown if the connection has failed.
+     */
+    @Override
+    public void handle(String sender, String text) throws IOException {
+        if (!gameRunning()) {
+            return;
+        }
+        // with the binary protocol the result and whose turn is next go in one message
+        connection.send(turn(text));
+        if (!gameRunning()) {
+            // send exit command to server so that it knows the DoDClient is leaving
+            connection.exit();
         }
     }
 
@@ -390,8 +402,9 @@ public class GameLogic extends Client{
      */
     public void greeting(){
         try {
-            PrintWriter send = new PrintWriter(serverSocket.getOutputStream(), true);
-            send.println("Connected.\nPlayer's Turn:");
+            // with the binary protocol both lines go in one message
+            connection.send("Connected.\nPlayer's Turn:");
+            connection.flush();
         } catch (SocketException e){
             // if the disconnected from server.
             System.out.println("Lost connection to server.");
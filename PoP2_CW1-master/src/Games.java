@@ -0,0 +1,223 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Every DoD game hosted by the server. Games run on a fixed number of shards, each a single thread that runs the
+ * commands of every game given to it in the order they arrive, so thousands of games can run at once without a
+ * thread each and no game's engine is ever used by two threads.
+ * Commands are handed to the shard and answered by sending to the game's room, so the client's reader or event loop
+ * never waits for a game. Mistakes, such as a game that doesn't exist or a move made out of turn, are answered with a
+ * reply to the client alone.
+ *
+ */
+class Games {
+
+    // map used when /newgame is given no name.
+    static final String DEFAULT_MAP = "default";
+    // start of the name of every game's room, followed by the game's id.
+    static final String ROOM_PREFIX = "game-";
+
+    private final ConcurrentHashMap<Long, Game> games = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ExecutorService[] shards;
+    private final Rooms rooms;
+    // sends a message to a room with the server's own broadcast, from a shard.
+    private final BiConsumer<Room, ByteBuffer> output;
+    // run after a reply is queued for a client, which may be on a shard.
+    private final Consumer<Session> replied;
+
+    /**
+     * Constructor, starts the shards.
+     *
+     * @param rooms : the server's rooms, every game gets its own.
+     * @param output : used by the shards to send a game's output to its room.
+     * @param replied : run after a reply is queued for a client.
+     * @param threads : the number of shards.
+     */
+    Games(Rooms rooms, BiConsumer<Room, ByteBuffer> output, Consumer<Session> replied, int threads) {
+        this.rooms = rooms;
+        this.output = output;
+        this.replied = replied;
+        shards = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < shards.length; i++) {
+            String name = "game-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Starts a game and moves the session to its room as the player. The map is read on the game's shard.
+     *
+     * @param session : the session starting the game.
+     * @param mapName : the name of a map file without .txt, or default.
+     * @return : the game, null if there is no such map.
+     */
+    Game create(Session session, String mapName) {
+        if (!mapName.equalsIgnoreCase(DEFAULT_MAP) && !mapExists(mapName)) {
+            reply(session, "No map called " + mapName + ".");
+            return null;
+        }
+        leave(session);
+        long id = nextId.getAndIncrement();
+        Room room = rooms.join(session, ROOM_PREFIX + id, true);
+        Game created = new Game(id, mapName, room, shards[(int) (id % shards.length)]);
+        created.player = session;
+        session.game = created;
+        games.put(id, created);
+
+        created.shard.execute(() -> {
+            Map map = created.mapName.equalsIgnoreCase(DEFAULT_MAP) ? new Map() : new Map(created.mapName + ".txt");
+            if (map.getMapName() == null) {
+                send(created, "Game " + created.id + " couldn't read its map.");
+                end(created);
+                return;
+            }
+            created.engine = new GameLogic(map);
+            send(created, "Game " + created.id + " started on " + map.getMapName() + ", /joingame " + created.id
+                    + " to play as the chaser.\nPlayer's turn:");
+        });
+        return created;
+    }
+
+    /**
+     * Moves the session to a game's room as its chaser.
+     *
+     * @param session : the session joining.
+     * @param id : the game's id.
+     * @return : the game, null if there is no such game or it already has a chaser.
+     */
+    Game join(Session session, long id) {
+        Game game = games.get(id);
+        if (game == null) {
+            reply(session, "No game " + id + ".");
+            return null;
+        }
+        synchronized (game) {
+            if (game.chaser != null || game.player == session) {
+                reply(session, "Game " + id + " already has both players.");
+                return null;
+            }
+            leave(session);
+            game.chaser = session;
+        }
+        session.game = game;
+        rooms.join(session, game.room.name, true);
+        game.shard.execute(() -> send(game, (session.getName() == null ? session.address : session.getName())
+                + " is the chaser."));
+        return game;
+    }
+
+    /**
+     * Hands a command to the session's game, run on the game's shard.
+     *
+     * @param session : the session playing.
+     * @param action : the DoD command, such as MOVE N or LOOK.
+     */
+    void play(Session session, String action) {
+        Game game = session.game;
+        if (game == null) {
+            reply(session, "Not in a game, start one with /newgame or join one with /joingame.");
+            return;
+        }
+        game.shard.execute(() -> {
+            if (game.finished || game.engine == null) {
+                return;
+            }
+            // the player plays P and the chaser B, each only on their own turn
+            if ((game.engine.isPlayersTurn() ? game.player : game.chaser) != session) {
+                reply(session, "Not your turn.");
+                return;
+            }
+            send(game, game.engine.turn(action));
+            if (!game.engine.gameRunning()) {
+                end(game);
+            }
+        });
+    }
+
+    /**
+     * Takes the session out of its game, which ends the game. Used when it leaves the game's room or the server.
+     *
+     * @param session : the session leaving.
+     */
+    void leave(Session session) {
+        Game game = session.game;
+        if (game == null) {
+            return;
+        }
+        session.game = null;
+        game.shard.execute(() -> {
+            if (!game.finished) {
+                send(game, "A player has left, game " + game.id + " is over.");
+                end(game);
+            }
+        });
+    }
+
+    /**
+     * @return : the number of games running.
+     */
+    int size() {
+        return games.size();
+    }
+
+    /**
+     * Stops the shards, used when the server shuts down.
+     */
+    void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdownNow();
+        }
+        for (ExecutorService shard : shards) {
+            try {
+                shard.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Ends a game, run on its shard. The players stay in its room until they /leave.
+     */
+    private void end(Game game) {
+        game.finished = true;
+        games.remove(game.id);
+        Session player = game.player;
+        Session chaser = game.chaser;
+        if (player != null && player.game == game) {
+            player.game = null;
+        }
+        if (chaser != null && chaser.game == game) {
+            chaser.game = null;
+        }
+    }
+
+    private void send(Game game, String text) {
+        output.accept(game.room, Frames.line("[Game " + game.id + "] " + text));
+    }
+
+    private void reply(Session session, String text) {
+        session.outbound.reply(Frames.line(text));
+        replied.accept(session);
+    }
+
+    /**
+     * Only names of files in the working directory are allowed, so a client can't read any other file.
+     */
+    private static boolean mapExists(String mapName) {
+        return mapName.matches("[A-Za-z0-9_-]{1,64}") && Files.isRegularFile(Paths.get(mapName + ".txt"));
+    }
+}
@@ -0,0 +1,405 @@
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The tiles of a map, stored as one byte per tile, row after row, rather than a char array per row. A 10000 x 10000
+ * map takes 100MB instead of 200MB and every row is next to the one before it, so looking through the map only reads
+ * memory in order and the loops counting or finding tiles compare bytes the JIT can vectorise.
+ * The tiles are kept in pages of PAGE tiles, each only made the first time one of its tiles is read or changed. A map
+ * read from a MapFile fills a page from the file then, so a map much bigger than the heap can be played on as long as
+ * the players only visit part of it. Counting and finding tiles reads the pages not made yet straight from the file,
+ * through one spare page, or only the part of a page looked at, without keeping them.
+ * Every row is as wide as the widest one, a position is checked against the width and height before it is used, so
+ * a position off the map throws an IndexOutOfBoundsException just like an array of rows did.
+ *
+ */
+final class Grid {
+
+    /**
+     * The tiles a map is made of, each stored as its code.
+     */
+    enum Tile {
+        // past the end of a row shorter than the widest one, code 0 so a new grid is all NONE.
+        NONE('\0'),
+        WALL('#'),
+        FLOOR('.'),
+        GOLD('G'),
+        EXIT('E'),
+        PLAYER('P'),
+        BOT('B');
+
+        private static final Tile[] CODES = values();
+
+        final char glyph;
+        final byte code;
+
+        Tile(char glyph) {
+            this.glyph = glyph;
+            code = (byte) ordinal();
+        }
+
+        /**
+         * @param glyph : a map char.
+         * @return : the tile it stands for, characters that aren't tiles are walls.
+         */
+        static Tile of(char glyph) {
+            switch (glyph) {
+                case '\0':
+                    return NONE;
+                case '.':
+                    return FLOOR;
+                case 'G':
+                    return GOLD;
+                case 'E':
+                    return EXIT;
+                case 'P':
+                    return PLAYER;
+                case 'B':
+                    return BOT;
+                default:
+                    return WALL;
+            }
+        }
+    }
+
+    // tiles in a page.
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE = 1 << PAGE_BITS;
+
+    private final int width;
+    private final int height;
+    private final long size;
+    // the pages of tiles' codes, the tile at [x, y] is at index y * width + x, null until a page is first used.
+    private final byte[][] pages;
+    // where the tiles come from, null if the grid starts all NONE.
+    private final MapFile file;
+    // a page read from the file for counting or finding tiles but not kept, and which page it is.
+    private byte[] spare;
+    private int sparePage = -1;
+    // a part of a page read from the file for counting or finding tiles, when reading all of it would be wasted.
+    private byte[] run;
+    // a single tile read from the file by tileAt.
+    private final byte[] one = new byte[1];
+
+    /**
+     * Constructor, every tile starts as NONE.
+     *
+     * @param width : the number of columns.
+     * @param height : the number of rows.
+     */
+    Grid(int width, int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Constructor, for a map read from a file a page at a time.
+     *
+     * @param file : the map file.
+     */
+    Grid(MapFile file) {
+        this(file.width(), file.height(), file);
+    }
+
+    private Grid(int width, int height, MapFile file) {
+        this.width = width;
+        this.height = height;
+        this.file = file;
+        size = (long) width * height;
+        pages = new byte[(int) ((size + PAGE - 1) >>> PAGE_BITS)][];
+    }
+
+    /**
+     * @param rows : the map as an array of rows, as wide as the first one.
+     * @return : a grid with the same tiles.
+     */
+    static Grid of(char[][] rows) {
+        Grid grid = new Grid(rows.length == 0 ? 0 : rows[0].length, rows.length);
+        for (int y = 0; y < rows.length; y++) {
+            Objects.checkFromIndexSize(0, rows[y].length, grid.width);
+            for (int x = 0; x < rows[y].length; x++) {
+                grid.set(x, y, rows[y][x]);
+            }
+        }
+        return grid;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    /**
+     * @param x : the column.
+     * @param y : the row.
+     * @return : the index of the tile.
+     * @throws IndexOutOfBoundsException : thrown if the position is off the map.
+     */
+    long index(int x, int y) {
+        return (long) Objects.checkIndex(y, height) * width + Objects.checkIndex(x, width);
+    }
+
+    /**
+     * @param index : the index of a tile.
+     * @return : its column.
+     */
+    int x(long index) {
+        return (int) (index % width);
+    }
+
+    /**
+     * @param index : the index of a tile.
+     * @return : its row.
+     */
+    int y(long index) {
+        return (int) (index / width);
+    }
+
+    /**
+     * @return : the number of tiles.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Reads a tile without making its page if it hasn't been made, for looking at tiles all over the map.
+     *
+     * @param index : the index of a tile.
+     * @return : the tile.
+     */
+    Tile tileAt(long index) {
+        byte[] page = pages[(int) (index >>> PAGE_BITS)];
+        if (page != null) {
+            return Tile.CODES[page[(int) index & (PAGE - 1)]];
+        }
+        if (file == null) {
+            return Tile.NONE;
+        }
+        file.read(x(index), y(index), one, 0, 1);
+        return Tile.CODES[one[0]];
+    }
+
+    Tile tile(int x, int y) {
+        long index = index(x, y);
+        return Tile.CODES[page(index)[(int) index & (PAGE - 1)]];
+    }
+
+    char get(int x, int y) {
+        return tile(x, y).glyph;
+    }
+
+    void set(int x, int y, Tile tile) {
+        long index = index(x, y);
+        page(index)[(int) index & (PAGE - 1)] = tile.code;
+    }
+
+    void set(int x, int y, char glyph) {
+        set(x, y, Tile.of(glyph));
+    }
+
+    /**
+     * @param tile : the tile to count.
+     * @return : how many times it is on the map.
+     */
+    long count(Tile tile) {
+        long count = 0;
+        for (int p = 0; p < pages.length; p++) {
+            count += count(tile, (long) p << PAGE_BITS, PAGE);
+        }
+        return count;
+    }
+
+    /**
+     * @param tile : the tile to count.
+     * @param from : the index of the first tile counted.
+     * @param length : the number of tiles counted, all of them in the same page as from.
+     * @return : how many times it is among them.
+     */
+    int count(Tile tile, long from, int length) {
+        byte code = tile.code;
+        length = (int) Math.min(length, size - from);
+        byte[] page = tiles(from, length);
+        int start = page == run ? 0 : (int) from & (PAGE - 1);
+        int end = start + length;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (page[i] == code) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param tile : the tile to look for.
+     * @param from : the index of the first tile looked at.
+     * @param length : the number of tiles looked at, all of them in the same page as from.
+     * @param n : how many such tiles to skip.
+     * @return : the index of the tile after skipping n of them, -1 if there aren't that many.
+     */
+    long nth(Tile tile, long from, int length, int n) {
+        byte code = tile.code;
+        length = (int) Math.min(length, size - from);
+        byte[] page = tiles(from, length);
+        int start = page == run ? 0 : (int) from & (PAGE - 1);
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            if (page[i] == code && n-- == 0) {
+                return from - start + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tile : the tile to look for.
+     * @param from : the index to start looking from.
+     * @return : the index of the first such tile at or after from, -1 if there is none.
+     */
+    long next(Tile tile, long from) {
+        byte code = tile.code;
+        from = Math.max(from, 0);
+        for (int p = (int) (from >>> PAGE_BITS); p < pages.length; p++) {
+            byte[] page = peek(p);
+            int end = tilesIn(p);
+            for (int i = p == (int) (from >>> PAGE_BITS) ? (int) from & (PAGE - 1) : 0; i < end; i++) {
+                if (page[i] == code) {
+                    return ((long) p << PAGE_BITS) + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tile : the tile to look for.
+     * @return : the index of the last such tile, -1 if there is none.
+     */
+    long last(Tile tile) {
+        byte code = tile.code;
+        for (int p = pages.length - 1; p >= 0; p--) {
+            byte[] page = peek(p);
+            for (int i = tilesIn(p) - 1; i >= 0; i--) {
+                if (page[i] == code) {
+                    return ((long) p << PAGE_BITS) + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return : the map as an array of rows, a copy the grid doesn't see changes to.
+     */
+    char[][] toChars() {
+        char[][] rows = new char[height][width];
+        for (int p = 0; p < pages.length; p++) {
+            byte[] page = peek(p);
+            long index = (long) p << PAGE_BITS;
+            int end = tilesIn(p);
+            for (int i = 0; i < end; i++, index++) {
+                rows[y(index)][x(index)] = Tile.CODES[page[i]].glyph;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @param index : the index of a tile.
+     * @return : the page it is in, made now if it hasn't been yet.
+     */
+    private byte[] page(long index) {
+        int p = (int) (index >>> PAGE_BITS);
+        byte[] page = pages[p];
+        if (page == null) {
+            if (p == sparePage) {
+                // already read, kept from now on
+                page = spare;
+                spare = null;
+                sparePage = -1;
+            } else {
+                page = read(p, new byte[PAGE]);
+            }
+            pages[p] = page;
+        }
+        return page;
+    }
+
+    /**
+     * @param p : a page.
+     * @return : the page, or its tiles read into the spare page if it hasn't been made, which isn't kept.
+     */
+    private byte[] peek(int p) {
+        if (pages[p] != null) {
+            return pages[p];
+        }
+        if (p != sparePage) {
+            if (spare == null) {
+                spare = new byte[PAGE];
+            }
+            sparePage = p;
+            read(p, spare);
+        }
+        return spare;
+    }
+
+    /**
+     * @param from : the index of the first tile.
+     * @param length : the number of tiles, all of them on the map and in the same page as from.
+     * @return : the page they are in, as peek gives it, or the run array with just them at its start if the page
+     *          isn't kept and they are only part of it.
+     */
+    private byte[] tiles(long from, int length) {
+        int p = (int) (from >>> PAGE_BITS);
+        if (pages[p] != null || p == sparePage || length == tilesIn(p)) {
+            return peek(p);
+        }
+        if (run == null || run.length < length) {
+            run = new byte[length];
+        }
+        return read(from, length, run);
+    }
+
+    /**
+     * @param p : a page.
+     * @param page : the array to put its tiles in.
+     * @return : the array, with the page's tiles from the file, or all NONE if the grid has no file.
+     */
+    private byte[] read(int p, byte[] page) {
+        return read((long) p << PAGE_BITS, tilesIn(p), page);
+    }
+
+    /**
+     * @param index : the index of the first tile.
+     * @param end : the number of tiles.
+     * @param page : the array to put them in, from its start.
+     * @return : the array, with the tiles from the file, or all NONE if the grid has no file.
+     */
+    private byte[] read(long index, int end, byte[] page) {
+        if (file == null) {
+            Arrays.fill(page, 0, end, Tile.NONE.code);
+            return page;
+        }
+        int at = 0;
+        while (at < end) {
+            // the rest of the page, or up to the end of the row
+            int x = x(index);
+            int count = Math.min(end - at, width - x);
+            file.read(x, y(index), page, at, count);
+            at += count;
+            index += count;
+        }
+        return page;
+    }
+
+    /**
+     * @param p : a page.
+     * @return : how many tiles of the map it holds, fewer than PAGE if it is the last one.
+     */
+    private int tilesIn(int p) {
+        return (int) Math.min(PAGE, size - ((long) p << PAGE_BITS));
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * A client's place in the TimingWheel. The client is pinged once it has sent nothing for -pingSeconds and closed once
+ * it has sent nothing for -idleSeconds, so a client whose connection has gone without being closed, or which has
+ * stopped answering, doesn't keep its session and its reader for ever.
+ *
+ * Hearing from the client only stores the wheel's current tick, so it costs the same however often the client sends
+ * and never allocates. The wheel only looks at the heartbeat when its deadline comes and then moves it on to the
+ * deadline counted from when the client was last heard from, at most a couple of times every -idleSeconds.
+ *
+ */
+class Heartbeat {
+
+    final Session session;
+    private final TimingWheel wheel;
+    // sends the client a ping, run by the wheel's thread.
+    final Runnable ping;
+    // closes the client the way /Exit does, run by the wheel's thread.
+    final Runnable expire;
+
+    // tick the client was last heard from at, set by its reader.
+    volatile long heardAt;
+
+    // everything below is only used by the wheel's thread.
+    // tick the heartbeat is due at, and the next heartbeat in the same slot.
+    long due;
+    Heartbeat next;
+    // tick the client was last pinged at, -1 if never. A heardAt no earlier means it has answered.
+    long pingedAt = -1;
+
+    /**
+     * Constructor
+     *
+     * @param wheel : the wheel it is in.
+     * @param session : the client.
+     * @param ping : sends it a ping.
+     * @param expire : closes it.
+     */
+    Heartbeat(TimingWheel wheel, Session session, Runnable ping, Runnable expire) {
+        this.wheel = wheel;
+        this.session = session;
+        this.ping = ping;
+        this.expire = expire;
+        heardAt = wheel.tick();
+    }
+
+    /**
+     * Called by the client's reader whenever something is read from it.
+     */
+    void heard() {
+        long now = wheel.tick();
+        // written once a tick however much is read
+        if (heardAt != now) {
+            heardAt = now;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-wide limit on the bytes waiting to be written to clients, set with -inflightMB. A monitor thread adds up
+ * every client's waiting messages every few milliseconds, and once they pass the limit the server stops reading from
+ * every socket until the clients have been sent enough of them to be back under three quarters of it. Clients then
+ * can't send faster than the server writes, TCP holds them back instead.
+ *
+ * Messages are shared by every recipient, so what is counted is the work owed rather than memory: a message waiting
+ * for a hundred clients counts a hundred times. A client with a full queue isn't counted: its own overflow policy
+ * already deals with it, by dropping its oldest messages, disconnecting it or making senders wait a bounded time. Once
+ * reading has been paused for SHED_MILLIS, the client owing the most is treated the same way if it owes more than a
+ * quarter of the limit by itself, its overflow policy is applied to it as if its queue were full. So a burst only
+ * pauses reading for a moment as before, but one client that has stopped reading can't keep every other client from
+ * being read.
+ *
+ * A client can't be heard from while reading is paused, so the timing wheel is told not to close anyone as idle
+ * until they have had time to be read again.
+ *
+ */
+class InflightBudget {
+
+    // how often the waiting bytes are added up.
+    private static final long CHECK_MILLIS = 10;
+    // a client owing more than this share of the limit by itself has its overflow policy applied once reading has
+    // been paused for SHED_MILLIS.
+    private static final int LAGGARD_SHARE = 4;
+    private static final long SHED_MILLIS = 500;
+
+    private final long limit;
+    private final Rooms rooms;
+    // told when reading is paused and resumed, null without -idleSeconds.
+    private final TimingWheel wheel;
+    // run when reading is paused or resumed, such as the event loops updating their connections.
+    private final Runnable changed;
+    private final Thread monitor;
+
+    private volatile boolean paused = false;
+    // counters shown by STATS, only changed by the monitor.
+    private volatile long waiting = 0;
+    private volatile long lagging = 0;
+    private volatile long shed = 0;
+    private volatile long pauses = 0;
+    private volatile long pausedNanos = 0;
+    private long pausedAt;
+    // the client owing the most by the last count, if it owes more than its share, and how much. Only used by the
+    // monitor.
+    private Session heaviest;
+    private long heaviestBytes;
+    // bytes from every message of a room's ring to its newest, reused for every room.
+    private long[] fromMessage = new long[0];
+
+    /**
+     * Constructor, starts the monitor.
+     *
+     * @param megabytes : the limit in megabytes.
+     * @param rooms : the server's rooms, whose members' queues are added up.
+     * @param wheel : the server's timing wheel, null if it has none.
+     * @param changed : run by the monitor when reading is paused or resumed.
+     */
+    InflightBudget(long megabytes, Rooms rooms, TimingWheel wheel, Runnable changed) {
+        this.limit = megabytes * 1024 * 1024;
+        this.rooms = rooms;
+        this.wheel = wheel;
+        this.changed = changed;
+        monitor = new Thread(this::monitor, "inflight-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * @param options : the server's settings.
+     * @param rooms : the server's rooms.
+     * @param wheel : the server's timing wheel, null if it has none.
+     * @param changed : run when reading is paused or resumed.
+     * @return : the budget, null if the server wasn't started with -inflightMB.
+     */
+    static InflightBudget open(ServerOptions options, Rooms rooms, TimingWheel wheel, Runnable changed) {
+        return options.inflightMB > 0 ? new InflightBudget(options.inflightMB, rooms, wheel, changed) : null;
+    }
+
+    /**
+     * @return : true while no socket should be read from.
+     */
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Halts a reader while reading is paused.
+     *
+     * @throws InterruptedException : thrown if the reader is interrupted while waiting.
+     */
+    void awaitOpen() throws InterruptedException {
+        if (!paused) {
+            return;
+        }
+        synchronized (this) {
+            while (paused) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Stops the monitor and lets every waiting reader carry on, used when the server shuts down.
+     */
+    void close() {
+        monitor.interrupt();
+        synchronized (this) {
+            paused = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return : a summary for STATS.
+     */
+    String stats() {
+        long total = pausedNanos + (paused ? System.nanoTime() - pausedAt : 0);
+        return "inflight: waiting " + waiting + " bytes of " + limit + " (clients left to their overflow policy "
+                + lagging + ", shed " + shed + " times), reads paused " + pauses + " times for "
+                + LatencyHistogram.format(total) + (paused ? " (paused now)" : "");
+    }
+
+    /**
+     * The monitor's loop, pauses and resumes reading as the waiting bytes pass the limit and fall back under it.
+     */
+    private void monitor() {
+        try {
+            while (true) {
+                TimeUnit.MILLISECONDS.sleep(CHECK_MILLIS);
+                waiting = waitingBytes();
+                if (paused && heaviest != null
+                        && System.nanoTime() - pausedAt > TimeUnit.MILLISECONDS.toNanos(SHED_MILLIS)) {
+                    // the client holding most of it deals with its own backlog, the others carry on being read
+                    heaviest.outbound.shed();
+                    shed++;
+                    waiting -= heaviestBytes;
+                }
+                if (!paused && waiting > limit) {
+                    pausedAt = System.nanoTime();
+                    pauses++;
+                    paused = true;
+                    if (wheel != null) {
+                        wheel.pauseReads(true);
+                    }
+                    changed.run();
+                } else if (paused && waiting <= limit / 4 * 3) {
+                    pausedNanos += System.nanoTime() - pausedAt;
+                    synchronized (this) {
+                        paused = false;
+                        notifyAll();
+                    }
+                    if (wheel != null) {
+                        wheel.pauseReads(false);
+                    }
+                    changed.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            // the server is shutting down
+        }
+    }
+
+    /**
+     * Adds up the bytes of the messages every client is still to be sent, and the bytes its writer took from the ring
+     * but couldn't write yet. Each room's ring is walked once from its furthest behind member, so the cost doesn't
+     * grow with how many members are that far behind. Members with a full queue, or already shed, are left out. The
+     * member owing the most is noted for the monitor if it owes more than a quarter of the limit by itself.
+     *
+     * @return : the total, counting a message once per client waiting for it.
+     */
+    private long waitingBytes() {
+        long total = 0;
+        long left = 0;
+        heaviest = null;
+        heaviestBytes = limit / LAGGARD_SHARE;
+        for (Room room : rooms.all()) {
+            Session[] members = room.members.snapshot();
+            BroadcastRing ring = room.messages;
+            long next = ring.next();
+            long oldest = next;
+            for (Session member : members) {
+                long cursor = member.outbound.cursorIn(ring);
+                if (cursor >= 0 && !isLagging(member)) {
+                    oldest = Math.min(oldest, cursor);
+                }
+            }
+            oldest = Math.max(oldest, next - ring.capacity());
+            int count = (int) (next - oldest);
+            if (fromMessage.length < count + 1) {
+                fromMessage = new long[ring.capacity() + 1];
+            }
+            fromMessage[count] = 0;
+            for (int i = count - 1; i >= 0; i--) {
+                ByteBuffer frame = ring.get(oldest + i);
+                // messages still being published or already overwritten count as nothing
+                int size = frame == null || frame == BroadcastRing.LAPPED ? 0 : frame.limit();
+                fromMessage[i] = fromMessage[i + 1] + size;
+            }
+            for (Session member : members) {
+                if (isLagging(member)) {
+                    left++;
+                    continue;
+                }
+                long cursor = member.outbound.cursorIn(ring);
+                long owed = member.outbound.held();
+                if (cursor >= oldest && cursor <= next) {
+                    owed += fromMessage[(int) (cursor - oldest)];
+                }
+                if (owed > heaviestBytes) {
+                    heaviest = member;
+                    heaviestBytes = owed;
+                }
+                total += owed;
+            }
+        }
+        lagging = left;
+        return total;
+    }
+
+    /**
+     * @param member : a member of a room.
+     * @return : true if its own overflow policy deals with its backlog rather than the budget, because its queue is
+     *          full or it has been shed.
+     */
+    private static boolean isLagging(Session member) {
+        return member.outbound.depth() >= member.outbound.capacity() || member.outbound.isShed();
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds that any number of threads can record into at once, without a lock and
+ * without allocating. Like an HDR histogram, values are counted in buckets that are a power of two wide, each split
+ * into 32 sub-buckets, so every value is kept to within about 3% from a nanosecond up to about 18 minutes, in a
+ * fixed array of counters. Longer values are counted as the longest.
+ *
+ */
+class LatencyHistogram {
+
+    // sub-buckets per power of two, as a power of two.
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // highest power of two kept, 2^40 ns is about 18 minutes.
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param name : the name the histogram is printed with.
+     */
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Counts one latency.
+     *
+     * @param nanos : the latency.
+     */
+    void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Counts the same latency a number of times, such as for every message written in one write.
+     *
+     * @param nanos : the latency.
+     * @param times : how many times to count it.
+     */
+    void record(long nanos, int times) {
+        long value = Math.max(0, nanos);
+        counts.addAndGet(index(value), times);
+        long highest = max.get();
+        while (value > highest && !max.compareAndSet(highest, value)) {
+            highest = max.get();
+        }
+    }
+
+    /**
+     * @return : the number of latencies counted.
+     */
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile : the percentile wanted, such as 99.9.
+     * @return : the latency that many percent of the counted ones are at or under, in nanoseconds, 0 if none have
+     *          been counted. Counters keep changing while they are read, so this is only as exact as the buckets.
+     */
+    long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return : a one line summary, used by the STATS console command.
+     */
+    String summary() {
+        return name + ": count " + count() + ", p50 " + format(percentile(50)) + ", p99 " + format(percentile(99))
+                + ", p99.9 " + format(percentile(99.9)) + ", max " + format(max.get());
+    }
+
+    /**
+     * @param value : a latency, not negative.
+     * @return : the bucket it is counted in.
+     */
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT && value >= 2L << MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @param index : a bucket.
+     * @return : the highest value counted in the bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @param nanos : a latency.
+     * @return : the latency in the most readable unit.
+     */
+    static String format(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        } else if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < TimeUnit.SECONDS.toNanos(1)) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+
+/**
+ * A simulated client used by LoadGenerator. It connects like any other client but nobody types for it: the generator
+ * decides when it sends, and its reader only looks for the generator's own messages, which carry their sequence
+ * number and the time they were sent so their delivery can be timed at every client.
+ *
+ */
+class LoadClient extends Client {
+
+    // start of every message the generator sends, followed by its sequence number, its send time and padding.
+    static final String MARKER = "LG ";
+
+    private final LoadGenerator generator;
+    private volatile boolean closing = false;
+    // bytes read from the server already counted by the generator.
+    private long counted = 0;
+
+    /**
+     * Constructor
+     *
+     * @param generator : the generator the client reports to.
+     * @param number : the client's number, used in its name.
+     */
+    LoadClient(LoadGenerator generator, int number) {
+        this.generator = generator;
+        name = "load-" + number;
+    }
+
+    /**
+     * Connects, sets the client's name and joins the generator's room.
+     *
+     * @param address : the server's address.
+     * @param port : the server's port.
+     * @param reading : true to have messages handed to the client, false if the caller reads the connection itself.
+     * @throws IOException : thrown if the server can't be reached.
+     */
+    void open(String address, int port, boolean reading) throws IOException {
+        connect(address, port);
+        setServerName();
+        joinRoom();
+        if (reading) {
+            read();
+        }
+    }
+
+    /**
+     * Sends the generator's next message from this client.
+     */
+    @Override
+    void write() {
+        try {
+            String message = generator.nextMessage();
+            connection.send(message);
+            connection.flush();
+            generator.sent(message.length());
+        } catch (IOException e) {
+            generator.lost(this);
+        }
+    }
+
+    /**
+     * Has the connection's loop hand the server's messages to the client as they arrive, timing the generator's, so
+     * the swarm needs no thread of its own to read.
+     */
+    @Override
+    void read() {
+        connection.listen(new ServerConnection.Listener() {
+            @Override
+            public void received(String message) {
+                countBytes();
+                int at = message.indexOf(MARKER);
+                if (at >= 0) {
+                    generator.received(message, at + MARKER.length());
+                }
+            }
+
+            @Override
+            public void closed(boolean reconnecting) {
+                if (!closing) {
+                    generator.lost(LoadClient.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param command : a line sent the way a user would type it, such as /game LOOK.
+     * @throws IOException : thrown if the connection has failed.
+     */
+    void sendTyped(String command) throws IOException {
+        connection.sendTyped(command);
+        connection.flush();
+    }
+
+    /**
+     * Halts the thread until the server sends a message, used in DoD mode where the caller reads.
+     *
+     * @return : the message, null if the server has closed the connection.
+     * @throws IOException : thrown if the connection fails or times out.
+     */
+    String receive() throws IOException {
+        String message = connection.receive();
+        countBytes();
+        return message;
+    }
+
+    /**
+     * Tells the generator how many bytes have been read from the server since it was last told.
+     */
+    private void countBytes() {
+        long total = connection.bytesReceived();
+        generator.receivedBytes(total - counted);
+        counted = total;
+    }
+
+    /**
+     * Leaves the server with /Exit, the connection closes once it has been written.
+     */
+    void close() {
+        closing = true;
+        try {
+            connection.exit();
+            connection.flush();
+        } catch (IOException e) {
+            // already gone
+            connection.close();
+        }
+    }
+}
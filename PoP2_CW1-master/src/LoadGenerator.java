@@ -0,0 +1,524 @@
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headless load generator: opens a swarm of simulated clients to a server on this machine and reports how it copes.
+ * In chat mode every client joins the same room and the generator sends messages from them in turn at a fixed rate,
+ * whether or not the server keeps up, so a slow server shows up as latency rather than as a lower rate. Every message
+ * carries its send time, and every client that receives it times its delivery. With -churn clients are also
+ * disconnected and replaced all the time. In DoD mode the clients play hosted games in pairs as fast as the server
+ * answers, timing every turn.
+ *
+ * Run with: java LoadGenerator [-clients n] [-rate messages/s] [-size n | min-max | exp:mean] [-duration s]
+ *           [-churn clients/s] [-dod [-map name]] [-binary] [-compress] [-room name] [-cca address] [-ccp port]
+ *
+ */
+public class LoadGenerator {
+
+    // messages in flight whose recipients are counted, a power of two.
+    private static final int WINDOW = 1 << 16;
+    // longest a DoD client waits for the server before the turn counts as failed.
+    private static final int DOD_TIMEOUT_MILLIS = 10_000;
+    private static final String[] DOD_COMMANDS = {"MOVE N", "MOVE E", "MOVE S", "MOVE W", "LOOK", "PICKUP", "HELLO"};
+    private static final Pattern GAME_STARTED = Pattern.compile("Game (\\d+) started");
+
+    // settings, from the command line flags
+    private String address = "localhost";
+    private int port = 14001;
+    private boolean binary = false;
+    private boolean compressed = false;
+    private String room = null;
+    private int clients = 100;
+    private double rate = 1000;
+    private int minSize = 64;
+    private int maxSize = 64;
+    private boolean exponential = false;
+    private long durationSeconds = 10;
+    private double churn = 0;
+    private boolean dod = false;
+    private String map = Games.DEFAULT_MAP;
+
+    private AtomicReferenceArray<LoadClient> swarm;
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger nextClient = new AtomicInteger();
+    private volatile boolean running = true;
+
+    // chat mode
+    private final AtomicLong nextSequence = new AtomicLong();
+    // recipients each message in flight hasn't reached yet, by sequence number.
+    private final AtomicIntegerArray unreached = new AtomicIntegerArray(WINDOW);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    // bytes every client has read from the server, as they arrived before anything was inflated.
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final LatencyHistogram delivery = new LatencyHistogram("delivery to each recipient");
+    private final LatencyHistogram fanOut = new LatencyHistogram("fan-out to the last recipient");
+
+    // churn
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong lostConnections = new AtomicLong();
+    private final LatencyHistogram connectTime = new LatencyHistogram("connect");
+
+    // DoD mode
+    private final AtomicLong games = new AtomicLong();
+    private final AtomicLong finishedGames = new AtomicLong();
+    private final AtomicLong turns = new AtomicLong();
+    private final AtomicLong failedTurns = new AtomicLong();
+    private final LatencyHistogram turnTime = new LatencyHistogram("DoD turn");
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        if (generator.parse(args)) {
+            generator.run();
+        }
+    }
+
+    /**
+     * Reads the flags given to the generator.
+     *
+     * @param args : the args passed from the main method.
+     * @return : false if a flag isn't valid, which has been reported.
+     */
+    private boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "-cca":
+                        address = args[++i];
+                        break;
+                    case "-ccp":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "-binary":
+                        binary = true;
+                        break;
+                    case "-compress":
+                        compressed = true;
+                        break;
+                    case "-room":
+                        room = args[++i];
+                        break;
+                    case "-clients":
+                        clients = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-rate":
+                        rate = Math.max(1, Double.parseDouble(args[++i]));
+                        break;
+                    case "-size":
+                        parseSize(args[++i]);
+                        break;
+                    case "-duration":
+                        durationSeconds = Math.max(1, Long.parseLong(args[++i]));
+                        break;
+                    case "-churn":
+                        churn = Math.max(0, Double.parseDouble(args[++i]));
+                        break;
+                    case "-dod":
+                        dod = true;
+                        break;
+                    case "-map":
+                        map = args[++i];
+                        break;
+                    default:
+                        System.out.println("Unknown argument: " + args[i]);
+                        return false;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("Incorrect value for " + args[i - 1] + ".");
+                return false;
+            }
+        }
+        if (dod && clients < 2) {
+            clients = 2;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the message size distribution: a fixed size, a uniform range min-max or exp:mean for exponentially
+     * distributed sizes. Sizes are in characters and at least long enough for the marker, sequence number and time.
+     */
+    private void parseSize(String size) {
+        int longest = Wire.MAX_MESSAGE - 64;
+        if (size.startsWith("exp:")) {
+            exponential = true;
+            minSize = Integer.parseInt(size.substring("exp:".length()));
+            maxSize = longest;
+        } else if (size.contains("-")) {
+            minSize = Integer.parseInt(size.substring(0, size.indexOf('-')));
+            maxSize = Integer.parseInt(size.substring(size.indexOf('-') + 1));
+        } else {
+            minSize = Integer.parseInt(size);
+            maxSize = minSize;
+        }
+        minSize = Math.max(1, Math.min(minSize, longest));
+        maxSize = Math.max(minSize, Math.min(maxSize, longest));
+    }
+
+    /**
+     * Connects the swarm, runs the load for the duration and prints the report.
+     */
+    private void run() throws InterruptedException {
+        swarm = new AtomicReferenceArray<>(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            swarm.set(i, open(i));
+        }
+        System.out.println("Connected " + connected.get() + " of " + clients + " clients in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, "
+                + (dod ? "playing DoD in pairs" : "sending " + (long) rate + " messages/s") + " for " + durationSeconds
+                + "s.");
+
+        Thread[] workers;
+        if (dod) {
+            workers = new Thread[clients / 2];
+            for (int i = 0; i < workers.length; i++) {
+                int pair = i;
+                workers[i] = new Thread(() -> playPair(2 * pair, 2 * pair + 1), "dod-pair-" + i);
+            }
+        } else {
+            workers = new Thread[churn > 0 ? 2 : 1];
+            workers[0] = new Thread(this::sendAtRate, "sender");
+            if (churn > 0) {
+                workers[1] = new Thread(this::churn, "churn");
+            }
+        }
+        start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (long second = 1; second <= durationSeconds; second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            System.out.println(progress(second));
+        }
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        // give the last messages time to arrive before the clients leave, with churn some never reach everyone
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!dod && fanOut.count() < sent.get() && System.nanoTime() < drainUntil) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        for (int i = 0; i < clients; i++) {
+            LoadClient client = swarm.getAndSet(i, null);
+            if (client != null) {
+                client.close();
+            }
+        }
+        System.out.println(report(elapsed));
+    }
+
+    /**
+     * Connects one client, timing how long it takes.
+     *
+     * @param number : the client's number.
+     * @return : the client, null if it couldn't connect.
+     */
+    private LoadClient open(int number) {
+        LoadClient client = new LoadClient(this, number);
+        client.binary = binary;
+        client.compressed = compressed;
+        client.room = room;
+        long start = System.nanoTime();
+        try {
+            client.open(address, port, !dod);
+            if (dod) {
+                client.connection.setTimeout(DOD_TIMEOUT_MILLIS);
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            return null;
+        }
+        connectTime.record(System.nanoTime() - start);
+        connects.incrementAndGet();
+        connected.incrementAndGet();
+        return client;
+    }
+
+    /**
+     * Sends messages from the clients in turn at the configured rate until the run ends. A message that is late
+     * because the server held the sender up is sent straight away, so the rate is kept up over the run.
+     */
+    private void sendAtRate() {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long next = System.nanoTime();
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            LoadClient client = nextConnected();
+            if (client != null) {
+                client.write();
+            }
+            next += interval;
+        }
+    }
+
+    /**
+     * @return : the next connected client in turn, null if none are.
+     */
+    private LoadClient nextConnected() {
+        for (int tried = 0; tried < clients; tried++) {
+            LoadClient client = swarm.get(Math.floorMod(nextClient.getAndIncrement(), clients));
+            if (client != null) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Disconnects a random client and connects a new one in its place at the configured rate until the run ends.
+     */
+    private void churn() {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / churn);
+        long next = System.nanoTime();
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            int number = ThreadLocalRandom.current().nextInt(clients);
+            LoadClient client = swarm.getAndSet(number, null);
+            if (client != null) {
+                connected.decrementAndGet();
+                client.close();
+                disconnects.incrementAndGet();
+            }
+            swarm.set(number, open(number));
+            next += interval;
+        }
+    }
+
+    /**
+     * @return : the next message to send: the marker, a sequence number, the send time and padding up to a size picked
+     *          from the distribution. Every client connected now is expected to receive it.
+     */
+    String nextMessage() {
+        long sequence = nextSequence.getAndIncrement();
+        unreached.set((int) (sequence & (WINDOW - 1)), connected.get());
+        int size = pickSize();
+        StringBuilder message = new StringBuilder(Math.max(size, 48));
+        message.append(LoadClient.MARKER).append(sequence).append(' ').append(System.nanoTime()).append(' ');
+        while (message.length() < size) {
+            message.append('x');
+        }
+        return message.toString();
+    }
+
+    private int pickSize() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (exponential) {
+            return (int) Math.min(maxSize, Math.max(1, -minSize * Math.log(1 - random.nextDouble())));
+        }
+        return minSize == maxSize ? minSize : random.nextInt(minSize, maxSize + 1);
+    }
+
+    /**
+     * Counts a message sent by a client.
+     *
+     * @param length : its length in characters.
+     */
+    void sent(int length) {
+        sent.incrementAndGet();
+        bytesSent.addAndGet(length);
+    }
+
+    /**
+     * Counts bytes a client has read from the server.
+     *
+     * @param count : the bytes read since it last counted.
+     */
+    void receivedBytes(long count) {
+        bytesReceived.addAndGet(count);
+    }
+
+    /**
+     * Times a generator message received by a client.
+     *
+     * @param message : the message as received, with the sender's name in front.
+     * @param start : index in the message after the marker.
+     */
+    void received(String message, int start) {
+        long now = System.nanoTime();
+        int space = message.indexOf(' ', start);
+        int end = message.indexOf(' ', space + 1);
+        if (space < 0 || end < 0) {
+            return;
+        }
+        long sequence;
+        long sentAt;
+        try {
+            sequence = Long.parseLong(message, start, space, 10);
+            sentAt = Long.parseLong(message, space + 1, end, 10);
+        } catch (NumberFormatException e) {
+            // someone else's message that happens to contain the marker
+            return;
+        }
+        received.incrementAndGet();
+        delivery.record(now - sentAt);
+        if (unreached.decrementAndGet((int) (sequence & (WINDOW - 1))) == 0) {
+            fanOut.record(now - sentAt);
+        }
+    }
+
+    /**
+     * Counts a client whose connection failed while the run was going on.
+     *
+     * @param client : the client.
+     */
+    void lost(LoadClient client) {
+        for (int i = 0; i < clients; i++) {
+            if (swarm.compareAndSet(i, client, null)) {
+                connected.decrementAndGet();
+                lostConnections.incrementAndGet();
+                client.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Plays hosted DoD games with two clients until the run ends: the first starts a game and plays P, the second
+     * joins it as the chaser, and each sends a random command on its turn. A new game starts when one ends.
+     *
+     * @param first : number of the client playing P.
+     * @param second : number of the client playing the chaser.
+     */
+    private void playPair(int first, int second) {
+        LoadClient player = swarm.get(first);
+        LoadClient chaser = swarm.get(second);
+        if (player == null || chaser == null) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            while (running) {
+                player.sendTyped("/newgame " + map);
+                Matcher started = GAME_STARTED.matcher(readUntil(player, "/joingame"));
+                if (!started.find()) {
+                    failedTurns.incrementAndGet();
+                    return;
+                }
+                games.incrementAndGet();
+                chaser.sendTyped("/joingame " + started.group(1));
+                readUntil(chaser, "is the chaser");
+                readUntil(player, "is the chaser");
+                boolean playersTurn = true;
+                while (running) {
+                    LoadClient turn = playersTurn ? player : chaser;
+                    LoadClient other = playersTurn ? chaser : player;
+                    long start = System.nanoTime();
+                    turn.sendTyped("/game " + DOD_COMMANDS[random.nextInt(DOD_COMMANDS.length)]);
+                    String result = readUntilTurnEnds(turn);
+                    turnTime.record(System.nanoTime() - start);
+                    turns.incrementAndGet();
+                    readUntilTurnEnds(other);
+                    if (!result.contains("turn:")) {
+                        // someone won
+                        finishedGames.incrementAndGet();
+                        break;
+                    }
+                    playersTurn = result.contains("Player's turn:");
+                }
+                player.sendTyped("/leave");
+                chaser.sendTyped("/leave");
+            }
+        } catch (IOException e) {
+            // a turn timed out or the server went away
+            failedTurns.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param client : a DoD client.
+     * @param text : what to wait for.
+     * @return : the message containing the text, with the lines before it in the same message.
+     * @throws IOException : thrown if the connection fails, closes or times out.
+     */
+    private static String readUntil(LoadClient client, String text) throws IOException {
+        while (true) {
+            String message = client.receive();
+            if (message == null) {
+                throw new IOException("Server closed the connection");
+            }
+            if (message.contains(text)) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Reads until a turn has been answered: with lines of text the result and whose turn is next come as two
+     * messages, with the binary protocol as one.
+     *
+     * @return : the last message of the turn, whose turn is next or who won.
+     */
+    private static String readUntilTurnEnds(LoadClient client) throws IOException {
+        while (true) {
+            String message = client.receive();
+            if (message == null) {
+                throw new IOException("Server closed the connection");
+            }
+            if (message.contains("turn:") || message.contains("Won!") || message.contains(" is over")) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * @param second : seconds since the load started.
+     * @return : a one line summary of the run so far.
+     */
+    private String progress(long second) {
+        if (dod) {
+            return second + "s: " + connected.get() + " clients, " + games.get() + " games, " + turns.get() + " turns, "
+                    + failedTurns.get() + " failed";
+        }
+        return second + "s: " + connected.get() + " clients, sent " + sent.get() + ", received " + received.get()
+                + ", fan-out p99 " + LatencyHistogram.format(fanOut.percentile(99));
+    }
+
+    /**
+     * @param elapsed : how long the load ran, in nanoseconds.
+     * @return : the report printed at the end of the run.
+     */
+    private String report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        StringBuilder report = new StringBuilder("--- results\n");
+        report.append(String.format("clients %d, connects %d, disconnects %d, failed connects %d, lost connections %d%n",
+                clients, connects.get(), disconnects.get(), failures.get(), lostConnections.get()));
+        report.append(connectTime.summary()).append('\n');
+        report.append(String.format("read from the server %.1f KB (%.1f KB/s)%s%n", bytesReceived.get() / 1024.0,
+                bytesReceived.get() / seconds / 1024, compressed ? ", compressed" : ""));
+        if (dod) {
+            report.append(String.format("games %d, finished %d, turns %d (%.0f/s), failed %d%n", games.get(),
+                    finishedGames.get(), turns.get(), turns.get() / seconds, failedTurns.get()));
+            report.append(turnTime.summary());
+            return report.toString();
+        }
+        report.append(String.format("sent %d messages (%.0f/s, %.1f KB/s), received %d (%.0f/s)%n", sent.get(),
+                sent.get() / seconds, bytesSent.get() / seconds / 1024, received.get(), received.get() / seconds));
+        report.append(delivery.summary()).append('\n');
+        report.append(fanOut.summary()).append('\n');
+        report.append("messages not seen by every recipient: ").append(sent.get() - fanOut.count());
+        return report.toString();
+    }
+}
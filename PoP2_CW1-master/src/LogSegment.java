@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One file of a room's chat log, mapped into memory. Messages are appended as records, a 4 byte length and then the
+ * message's frame exactly as it was broadcast, so a logged message can be sent again straight from the mapping
+ * without being decoded or encoded. The file starts at FIRST_BYTES and is doubled whenever the next record doesn't
+ * fit, up to the segment's size, so a room that only ever logs a few messages doesn't take a whole segment of disk
+ * and address space. Growing leaves zeros after the last record, and a record's length is written after its frame,
+ * so a length of 0 always marks the end of the log.
+ *
+ * Every INDEX_INTERVAL-th record's position is kept in a sparse index, so finding any record only steps over the
+ * lengths of a few others. The index is only kept in memory and is built again from the file when it is opened.
+ *
+ * Only the log's writer appends, readers only read records it has published, with absolute reads that never move the
+ * buffer's position. Growing maps the file again, frames already read keep the old mapping, which still holds them.
+ *
+ */
+class LogSegment {
+
+    // records per entry of the sparse index.
+    static final int INDEX_INTERVAL = 64;
+    // bytes of the length in front of every record.
+    private static final int LENGTH_BYTES = 4;
+    // size of a new segment's file, doubled as records are appended.
+    static final int FIRST_BYTES = 64 * 1024;
+
+    // sequence number of the segment's first record, also its file name.
+    final long base;
+    final Path file;
+    // the largest the file grows to.
+    private final int size;
+    // replaced by the writer when the file grows, readers see the new mapping once the records in it are published.
+    private volatile MappedByteBuffer buffer;
+    // position of every INDEX_INTERVAL-th record.
+    private int[] index = new int[16];
+    // records in the segment and the position after the last one.
+    private int count = 0;
+    private int end = 0;
+    // position up to which the segment has been forced to disk.
+    private int synced = 0;
+
+    /**
+     * Constructor, maps the file and finds its records. A new file is created at FIRST_BYTES, or the whole size if
+     * that is smaller.
+     *
+     * @param file : the segment's file.
+     * @param base : the sequence number of its first record.
+     * @param size : the size in bytes the file can grow to, an existing file bigger than that keeps its own size.
+     * @throws IOException : thrown if the file can't be created or mapped.
+     */
+    LogSegment(Path file, long base, int size) throws IOException {
+        this.file = file;
+        this.base = base;
+        int existing = Files.exists(file) ? (int) Math.min(Files.size(file), Integer.MAX_VALUE) : 0;
+        this.size = Math.max(size, existing);
+        buffer = map(existing > 0 ? existing : Math.min(size, FIRST_BYTES));
+        int length;
+        while (end + LENGTH_BYTES <= buffer.capacity() && (length = buffer.getInt(end)) > 0
+                && end + LENGTH_BYTES + length <= buffer.capacity()) {
+            indexRecord();
+            end += LENGTH_BYTES + length;
+            count++;
+        }
+        synced = end;
+    }
+
+    /**
+     * Maps the file, making it longer first if it is shorter than the length. The mapping stays valid once the
+     * channel is closed.
+     *
+     * @param length : the bytes to map.
+     * @return : the mapping.
+     * @throws IOException : thrown if the file can't be created or mapped.
+     */
+    private MappedByteBuffer map(int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    /**
+     * Appends a message, growing the file if it doesn't fit yet. Only called by the log's writer.
+     *
+     * @param frame : the frame as broadcast, built by Frames.
+     * @return : false if the segment has no room left for it.
+     * @throws IOException : thrown if the file can't be grown.
+     */
+    boolean append(ByteBuffer frame) throws IOException {
+        int length = frame.limit();
+        long needed = (long) end + LENGTH_BYTES + length;
+        if (needed > size) {
+            return false;
+        }
+        if (needed > buffer.capacity()) {
+            buffer = map((int) Math.min(size, Math.max(needed, 2L * buffer.capacity())));
+        }
+        buffer.put(end + LENGTH_BYTES, frame, 0, length);
+        // the length goes last, a record without one is never read
+        buffer.putInt(end, length);
+        indexRecord();
+        end += LENGTH_BYTES + length;
+        count++;
+        return true;
+    }
+
+    /**
+     * Adds the record about to be written at the end to the sparse index, if it is due an entry.
+     */
+    private void indexRecord() {
+        if (count % INDEX_INTERVAL == 0) {
+            int entry = count / INDEX_INTERVAL;
+            if (entry == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[entry] = end;
+        }
+    }
+
+    /**
+     * Finds a record through the sparse index.
+     *
+     * @param record : the record's number in the segment, one that has been published.
+     * @return : the record's position.
+     */
+    int position(int record) {
+        int position = index[record / INDEX_INTERVAL];
+        for (int i = record % INDEX_INTERVAL; i > 0; i--) {
+            position = next(position);
+        }
+        return position;
+    }
+
+    /**
+     * @param position : a record's position.
+     * @return : the position of the record after it.
+     */
+    int next(int position) {
+        return position + LENGTH_BYTES + buffer.getInt(position);
+    }
+
+    /**
+     * @param position : a record's position.
+     * @return : the record's frame, sharing the mapping rather than copied.
+     */
+    ByteBuffer frame(int position) {
+        return buffer.slice(position + LENGTH_BYTES, buffer.getInt(position));
+    }
+
+    /**
+     * @return : the number of records in the segment.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Forces the records appended since the last sync to disk.
+     *
+     * @return : false if there was nothing to force.
+     */
+    boolean sync() {
+        if (synced == end) {
+            return false;
+        }
+        buffer.force(synced, end - synced);
+        synced = end;
+        return true;
+    }
+
+    /**
+     * Deletes the segment's file, its records can still be read from the mapping until nothing uses it.
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Could not delete log segment " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,10 +1,7 @@
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
 
 /**
  * Reads and contains in memory the map of the game.
@@ -12,8 +9,25 @@ import java.util.List;
  */
 public class Map {
 
-	/* Representation of the map */
-	private char[][] map;
+	/**
+	 * Inner class; where an actor is on the map and the character it is standing on.
+	 *
+	 */
+	private static final class Actor {
+		final char glyph;
+		// column and row, -1 until the actor is put on the map.
+		int x = -1;
+		int y = -1;
+		// last character on the pos before the actor was on it
+		char under;
+
+		Actor(char glyph) {
+			this.glyph = glyph;
+		}
+	}
+
+	/* Representation of the map, one byte per tile */
+	private Grid map;
 
 	/* Map name */
 	private String mapName = null;
@@ -21,18 +35,20 @@ public class Map {
 	/* Gold required for the human player to win */
 	private int goldRequired;
 
-	/* last character on a pos before a player was on it */
-	private char lastCharAtPlayerPos;
+	/* where the player and the bot are, kept in step with the map so they never have to be looked for */
+	private final Actor player = new Actor('P');
+	private final Actor bot = new Actor('B');
 
-	/* last character on a pos before a player was on it */
-	private char lastCharAtBotPos;
 
-
-	/* 2d list, rather than 2d array, easier to add the sub-lists to the list. Stores the
-	positions of the gold on the map. Used to decide whether the player is standing on a gold pos.
+	/* Stores the positions of the gold on the map, packed into longs so they are looked up without
+	scanning or boxing. Used to decide whether the player is standing on a gold pos.
 	 */
-	private final List<List<Integer>> goldPositions = new ArrayList<>();
-	private final List<List<Integer>> exitPositions = new ArrayList<>();
+	private final PositionSet goldPositions = new PositionSet();
+	private final PositionSet exitPositions = new PositionSet();
+
+	/* the empty positions players can be placed on, and where the random positions come from */
+	private FreeCells freeCells;
+	private RandomGenerator random = new SplittableRandom();
 
 	/**
 	 * Default constructor, creates the default map "Very small Labyrinth of doom".
@@ -40,7 +56,7 @@ public class Map {
 	public Map() {
 		mapName = "Very small Labyrinth of Doom";
 		goldRequired = 2;
-		map = new char[][]{
+		map = Grid.of(new char[][]{
 		{'#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#'},
 		{'#','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','#'},
 		{'#','.','.','.','.','.','.','G','.','.','.','.','.','.','.','.','.','E','.','#'},
@@ -50,10 +66,12 @@ public class Map {
 		{'#','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','#'},
 		{'#','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','.','#'},
 		{'#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#','#'}
-		};
+		});
 		// get the positions of gold and exits
 		addPositions('G', goldPositions);
 		addPositions('E', exitPositions);
+		addActors();
+		freeCells = new FreeCells(map);
 
 	}
 
@@ -68,6 +86,8 @@ public class Map {
 			// only if a valid map get the positions of gold and exits
 			addPositions('G', goldPositions);
 			addPositions('E', exitPositions);
+			addActors();
+			freeCells = new FreeCells(map);
 		}
 	}
 
@@ -79,10 +99,11 @@ public class Map {
     }
 
     /**
-     * @return : The map as stored in memory.
+     * @return : A copy of the map as an array of rows, changing it doesn't change the map. Reading single tiles with
+     * getAtPos doesn't copy the whole map.
      */
     protected char[][] getMap() {
-        return map;
+        return map.toChars();
     }
 
 
@@ -94,23 +115,80 @@ public class Map {
     }
 
 	/**
-	 * @return : the position of last occurrence of a character
+	 * @return : the position of last occurrence of a character, [0, 0] if there is none. The player and the bot are
+	 * found straight away, anything else is looked for on the whole map.
 	 *
 	 * @param object: the map char to look for
 	 */
     protected int[] getPos(char object) {
-    	int[] pos = new int[2];
-    	// iterate through the 2d array
-    	for (int y=0; y<map.length; y++){
-    		for (int x=0; x<map[y].length; x++){
-    			if (map[y][x] == object){
-    				// when desired object is reached save it.
-    				pos = new int[]{x,y};
-				}
+		Actor actor = actor(object);
+		if (actor != null && isOnMap(actor)) {
+			return new int[]{actor.x, actor.y};
+		}
+		int[] pos = find(object);
+		return pos == null ? new int[2] : pos;
+	}
+
+
+	/**
+	 * Checks if the player or the bot can be seen on the map, it can't once the other has walked onto it.
+	 *
+	 * @param player: the player or bot to check.
+	 * @return : true if it is on the map.
+	 */
+	protected boolean isOnMap(char player) {
+		return isOnMap(actor(player));
+	}
+
+
+	/**
+	 * @param actor: the player or the bot.
+	 * @return : true if its position has been set and its char is still there.
+	 */
+	private boolean isOnMap(Actor actor) {
+		return actor.x >= 0 && map.get(actor.x, actor.y) == actor.glyph;
+	}
+
+
+	/**
+	 * @param object: the player or bot char.
+	 * @return : the actor it stands for, null if it is neither.
+	 */
+	private Actor actor(char object) {
+		if (object == 'P') {
+			return player;
+		}
+		return object == 'B' ? bot : null;
+	}
+
+
+	/**
+	 * @param object: the map char to look for
+	 * @return : the position of last occurrence of the character, null if there is none.
+	 */
+	private int[] find(char object) {
+		Grid.Tile tile = Grid.Tile.of(object);
+		if (tile.glyph != object) {
+			// not a tile, so it can't be on the map
+			return null;
+		}
+		// the last occurrence of the character
+		long index = map.last(tile);
+		return index < 0 ? null : new int[]{map.x(index), map.y(index)};
+	}
+
+
+	/**
+	 * Sets the positions of a player and a bot that the map was read with, most maps have neither.
+	 */
+	private void addActors() {
+		for (Actor actor : new Actor[]{player, bot}) {
+			int[] pos = find(actor.glyph);
+			if (pos != null) {
+				actor.x = pos[0];
+				actor.y = pos[1];
 			}
 		}
-    	// return the last occurrence of the character
-		return pos;
 	}
 
 
@@ -120,9 +198,10 @@ public class Map {
 	 *
 	 * @param pos: A int array with a position in the form [column, row]
 	 * @return : return the character at given pos.
+	 * @throws IndexOutOfBoundsException : thrown if the position is off the map.
 	 */
 	protected char getAtPos(int[] pos) {
-		return map[pos[1]][pos[0]];
+		return map.get(pos[0], pos[1]);
 	}
 
 
@@ -130,16 +209,13 @@ public class Map {
 	 * updates the a 2d array, linked to an object on the map, with the positions in the form of [column, row]
 	 *
 	 * @param object: the object to look for.
-	 * @param posArray: the 2d array of positions to save the position to.
+	 * @param posArray: the set of positions to save the position to.
 	 */
-	private void addPositions(char object, List<List<Integer>> posArray) {
-		// iterate through the 2d map array
-		for(int y=0; y<map.length; y++){
-			for (int x=0; x<map[y].length; x++){
-				if (map[y][x] == object){
-					posArray.add(Arrays.asList(x,y));
-				}
-			}
+	private void addPositions(char object, PositionSet posArray) {
+		// go through the map from one of the tiles to the next
+		Grid.Tile tile = Grid.Tile.of(object);
+		for (long i = map.next(tile, 0); i >= 0; i = map.next(tile, i + 1)) {
+			posArray.add(map.x(i), map.y(i));
 		}
 	}
 
@@ -152,72 +228,51 @@ public class Map {
 	 * @param player: the player or bot to move
 	 */
 	protected void movePlayer(int[] pos, char player) {
-		char lastCharAtPos;
-		if (player == 'P'){
-			lastCharAtPos = lastCharAtPlayerPos;
-		} else {
-			lastCharAtPos = lastCharAtBotPos;
-		}
-		// iterate through the map
-    	for (int y=0; y<map.length; y++){
-    		for (int x=0; x< map[y].length; x++){
-    			if (map[y][x] == player){
-    				// the player is found so change it to the previous object that was in that position
-    				map[y][x] = lastCharAtPos;
-				}
-			}
-		}
-    	// next position is saved as previous position for the next call of movePlayer
-    	lastCharAtPos = map[pos[1]][pos[0]];
-		if (player == 'P'){
-			 lastCharAtPlayerPos = lastCharAtPos;
-		} else {
-			lastCharAtBotPos = lastCharAtPos;
+		Actor actor = player == 'P' ? this.player : bot;
+		if (isOnMap(actor)) {
+			// change the old position to the previous object that was in that position
+			map.set(actor.x, actor.y, actor.under);
 		}
+		// next position is saved as previous position for the next call of movePlayer, walking onto the other
+		// actor hides it until this one moves off again
+		actor.under = map.get(pos[0], pos[1]);
 		// change the next position to the player.
-    	map[pos[1]][pos[0]] = player;
+		map.set(pos[0], pos[1], player);
+		actor.x = pos[0];
+		actor.y = pos[1];
 	}
 
 
 	/**
-	 * getter for the goldPositions field.
-	 * @return: goldPositions as a 2d list in the form of [column, row]
+	 * @param pos: a position in the form [column, row]
+	 * @return : true if there is gold at the position that hasn't been picked up.
 	 */
-	protected List<List<Integer>> getGoldPositions() {
-    	return goldPositions;
+	protected boolean isGold(int[] pos) {
+		return goldPositions.contains(pos[0], pos[1]);
 	}
 
 	/**
-	 * getter for the exitPositions field.
-	 * @return: goldPositions as a 2d list in the form of [column, row]
+	 * @param pos: a position in the form [column, row]
+	 * @return : true if there is an exit at the position.
 	 */
-	protected List<List<Integer>> getExitPositions() {
-		return exitPositions;
+	protected boolean isExit(int[] pos) {
+		return exitPositions.contains(pos[0], pos[1]);
 	}
 
 
     /**
-     * Reads the map from file.
+     * Reads the map from file. The file is memory mapped and only its header and where its rows start are read now,
+     * the tiles are read a page at a time as they are used.
      *
      * @param fileName: Name of the map's file.
      */
     protected void readMap(String fileName) {
-		List<String> lines;
     	try {
-    		// reads all the lines of the file as a list
-    		lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+    		MapFile file = new MapFile(Paths.get(fileName));
     		// set the fields from the file data
-    		map = new char[lines.size()-2][lines.get(2).length()];
-			mapName = lines.get(0).replace("name ", "");
-			goldRequired = Integer.parseInt(lines.get(1).replace("win ", ""));
-
-			// update the map array with the correct chars
-			for (int row=2; row<lines.size(); row++) {
-				for (int column = 0; column < lines.get(row).length(); column++) {
-					map[row - 2][column] = lines.get(row).charAt(column);
-				}
-			}
-
+    		map = new Grid(file);
+			mapName = file.name();
+			goldRequired = file.goldRequired();
 		}
     	catch (IOException e) {
     		// catch the IOException created by an incorrect map name
@@ -227,43 +282,58 @@ public class Map {
     }
 
 
+	/**
+	 * Sets where the random positions players are placed on come from, a generator made with a seed places them the
+	 * same way every time.
+	 *
+	 * @param random: the random number generator.
+	 */
+	protected void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+
 	/**
 	 * Puts the player on the map array in a random valid position.
 	 *
 	 * @param player: Bot or player character.
 	 */
     protected void placePlayerOnMap(char player) {
-		// counts the empty positions in the map
-    	int counter = 0;
-		for (char[] value : map) {
-			for (char c : value) {
-				if (c == '.') {
-					counter++;
-				}
-			}
-		}
-		// get a random int from in the range of the amount of empty spaces
-		int randomInt = (int)(Math.random() * counter);
-
-		// iterate through the map and place the player at the correct position.
-		for (int i=0; i<map.length; i++){
-			for (int x=0; x< map[i].length; x++){
-				if (map[i][x] == '.') {
-					if (randomInt == 0){
-						// save the first previous character
-						if (player == 'P'){
-							lastCharAtPlayerPos = map[i][x];
-						} else {
-							lastCharAtBotPos = map[i][x];
-						}
-						map[i][x] = player;
-					}
-					// decrease the random int with every empty space, when its 0 place the player.
-					randomInt--;
-				}
-			}
+		placePlayerOnMap(player, 0);
+	}
 
+
+	/**
+	 * Puts the player on the map array in a random valid position, at least a number of moves away from the other
+	 * player if it is on the map.
+	 *
+	 * @param player: Bot or player character.
+	 * @param minDistance: the fewest moves, walls aside, the other player can be away, 0 for anywhere.
+	 * @return : true if the player was placed, false if no empty position is far enough away.
+	 */
+	protected boolean placePlayerOnMap(char player, int minDistance) {
+		Actor actor = player == 'P' ? this.player : bot;
+		Actor other = actor == this.player ? bot : this.player;
+		long index;
+		if (minDistance > 0 && isOnMap(other)) {
+			index = freeCells.pick(random,
+					i -> Math.abs(map.x(i) - other.x) + Math.abs(map.y(i) - other.y) >= minDistance);
+		} else {
+			index = freeCells.pick(random);
+		}
+		if (index < 0) {
+			return false;
+		}
+		if (isOnMap(actor)) {
+			// a player placed again is taken off where it was
+			map.set(actor.x, actor.y, actor.under);
 		}
+		// save the first previous character
+		actor.under = '.';
+		actor.x = map.x(index);
+		actor.y = map.y(index);
+		map.set(actor.x, actor.y, player);
+		return true;
 	}
 
 
@@ -271,13 +341,15 @@ public class Map {
 	 * updates the goldPositions field by removing positions, so that coins cannot be picked up
 	 * twice.
 	 *
-	 * @param pos: The position of the gold piece to be removed.
+	 * @param pos: The position of the gold piece to be removed in the form [column, row]
 	 */
-	protected void removeGold(List<Integer> pos) {
+	protected void removeGold(int[] pos) {
 		// if the player is on a gold position, update the gold positions and change the gold char to a empty space
-		if (lastCharAtPlayerPos == 'G'){
-			lastCharAtPlayerPos = '.';
-			goldPositions.remove(pos);
+		if (player.under == 'G'){
+			player.under = '.';
+			goldPositions.remove(pos[0], pos[1]);
+			// where the gold was is empty now
+			freeCells.freed(map.index(pos[0], pos[1]));
 		}
 	}
 }
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A map file, memory mapped rather than read, so a map of several gigabytes opens without copying it onto the heap.
+ * Opening it reads the name and win lines and goes through the file once to find where every row starts and how long
+ * it is. After that a Grid reads tiles from it one page at a time, only when a page is first needed, so only the
+ * parts of the map that are used take any memory and the operating system can drop the rest of the file from memory.
+ *
+ * Files larger than one mapping can hold are mapped in pieces of SEGMENT bytes. Each byte is one tile, map files are
+ * plain ASCII. A line break is \n or \r\n.
+ *
+ */
+final class MapFile {
+
+    // bytes in each mapping of the file, a mapping can hold less than 2GB.
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT = 1L << SEGMENT_BITS;
+
+    // bytes looked at in one go when finding the line breaks.
+    private static final int CHUNK = 64 * 1024;
+
+    // the code of the tile each byte stands for.
+    private static final byte[] CODES = new byte[256];
+
+    static {
+        for (int b = 0; b < CODES.length; b++) {
+            CODES[b] = Grid.Tile.of((char) b).code;
+        }
+    }
+
+    private final MappedByteBuffer[] segments;
+    private final String name;
+    private final int goldRequired;
+    // where each line starts in the file and how long it is, the rows of tiles are from the third line on.
+    private long[] lineStarts = new long[1024];
+    private int[] lineLengths = new int[1024];
+    private int lines = 0;
+    // the longest row's length.
+    private int width = 0;
+
+    /**
+     * Constructor, maps the file and reads its header and row index. The file is closed again straight away, the
+     * mapping stays valid until the MapFile is no longer used.
+     *
+     * @param path : the map file.
+     * @throws IOException : thrown if the file can't be read or doesn't have a name line, a win line and a row.
+     * @throws NumberFormatException : thrown if the win line doesn't end with a number.
+     */
+    MapFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start));
+            }
+
+            // every line break ends a line, and so does the end of the file if the last line has none
+            byte[] chunk = new byte[CHUNK];
+            long lineStart = 0;
+            for (long chunkStart = 0; chunkStart < size; chunkStart += CHUNK) {
+                int count = read(chunkStart, chunk, 0, (int) Math.min(CHUNK, size - chunkStart));
+                for (int i = 0; i < count; i++) {
+                    if (chunk[i] == '\n') {
+                        addLine(lineStart, chunkStart + i);
+                        lineStart = chunkStart + i + 1;
+                    }
+                }
+            }
+            if (lineStart < size) {
+                addLine(lineStart, size);
+            }
+            if (lines < 3) {
+                throw new IOException("Not a map: " + path);
+            }
+            name = line(0).replace("name ", "");
+            goldRequired = Integer.parseInt(line(1).replace("win ", ""));
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    int goldRequired() {
+        return goldRequired;
+    }
+
+    /**
+     * @return : the length of the longest row, shorter rows are filled up with NONE tiles.
+     */
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return lines - 2;
+    }
+
+    /**
+     * Reads the codes of a run of tiles in one row. Tiles past the end of the row are NONE.
+     *
+     * @param x : the column of the first tile.
+     * @param y : the row.
+     * @param into : the array to put the codes in.
+     * @param at : where in it the first one goes.
+     * @param count : the number of tiles, none of them past the map's width.
+     */
+    void read(int x, int y, byte[] into, int at, int count) {
+        int available = Math.max(0, Math.min(count, lineLengths[y + 2] - x));
+        read(lineStarts[y + 2] + x, into, at, available);
+        for (int i = at; i < at + available; i++) {
+            into[i] = CODES[into[i] & 0xFF];
+        }
+        Arrays.fill(into, at + available, at + count, Grid.Tile.NONE.code);
+    }
+
+    /**
+     * Copies bytes of the file, which can be in two mappings.
+     *
+     * @return : the number of bytes copied, count.
+     */
+    private int read(long offset, byte[] into, int at, int count) {
+        int copied = 0;
+        while (copied < count) {
+            MappedByteBuffer segment = segments[(int) (offset >>> SEGMENT_BITS)];
+            int index = (int) (offset & (SEGMENT - 1));
+            int length = Math.min(count - copied, segment.limit() - index);
+            segment.get(index, into, at + copied, length);
+            copied += length;
+            offset += length;
+        }
+        return count;
+    }
+
+    /**
+     * Adds a line to the index.
+     *
+     * @param start : where it starts.
+     * @param end : where its line break is, or the end of the file.
+     * @throws IOException : thrown if the line is too long to be a row.
+     */
+    private void addLine(long start, long end) throws IOException {
+        if (end > start && byteAt(end - 1) == '\r') {
+            end--;
+        }
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Line " + (lines + 1) + " is too long");
+        }
+        if (lines == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lines * 2);
+            lineLengths = Arrays.copyOf(lineLengths, lines * 2);
+        }
+        lineStarts[lines] = start;
+        lineLengths[lines] = (int) (end - start);
+        // the first two lines are the header
+        if (lines >= 2) {
+            width = Math.max(width, lineLengths[lines]);
+        }
+        lines++;
+    }
+
+    private byte byteAt(long offset) {
+        return segments[(int) (offset >>> SEGMENT_BITS)].get((int) (offset & (SEGMENT - 1)));
+    }
+
+    private String line(int line) {
+        byte[] bytes = new byte[lineLengths[line]];
+        read(lineStarts[line], bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1192 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking chat server, started instead of the threaded ChatServer when the -nio flag is given.
+ * A small fixed number of selector event loops (one per core) accept connections, decode lines and broadcast them, so
+ * no thread is started per client.
+ *
+ */
+public class NioChatServer {
+
+    // size of the read and write buffers shared by all connections of an event loop.
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // pending connections the OS is allowed to queue before they are accepted.
+    private static final int BACKLOG = 4096;
+
+    private final ServerOptions options;
+    private ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    // registry of the connected clients' sessions, used by the QUEUES command
+    private final SessionRegistry clients;
+    // rooms clients can join, each with its own ring that its members read in the same order at their own cursors.
+    private final Rooms rooms;
+    // DoD games hosted by the server, run on their own threads and answered in their rooms.
+    private final Games games;
+    // counters and latency histograms shown by STATS.
+    private final ServerMetrics metrics = new ServerMetrics();
+    // history of every room's messages, written off the event loops, null without -logDir.
+    private final ChatLog log;
+    // stops every loop reading while too many bytes are waiting to be written to clients, null without -inflightMB.
+    private final InflightBudget budget;
+    // other servers sharing the rooms and names, null without -peerPort or -peers.
+    private final Federation peers;
+    // pings quiet clients and closes idle ones, null without -idleSeconds.
+    private final TimingWheel wheel;
+
+    // used to hand new connections to the event loops in turn, only touched by the accepting loop.
+    private int nextLoop = 0;
+    private volatile boolean exit = false;
+
+    /**
+     * Constructor, opens the non-blocking server socket and creates one event loop per core.
+     *
+     * @param options : the port used to bind the server socket to and the other settings given on the command line
+     */
+    public NioChatServer(ServerOptions options){
+        this.options = options;
+        clients = new SessionRegistry();
+        log = ChatLog.open(options);
+        rooms = new Rooms(options, log);
+        games = new Games(rooms, this::broadcast, this::replied, options.gameThreads);
+        wheel = TimingWheel.open(options);
+        loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        budget = InflightBudget.open(options, rooms, wheel, () -> {
+            for (EventLoop loop : loops) {
+                loop.execute(loop::updateReads);
+            }
+        });
+
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(options.port), BACKLOG);
+            serverChannel.configureBlocking(false);
+            System.out.println("Starting Server (non-blocking, " + loops.length + " event loops).");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // a peer's messages are only published here
+        peers = Federation.open(options, clients, (name, frame) -> publish(rooms.get(name), frame), this::replied);
+    }
+
+    /**
+     * Runs on main thread of the server instance.
+     * Starts the event loops, then reads the console so that EXIT can be used to kill the server, QUEUES to show
+     * how far behind each client's outbound queue is and STATS to show the server's counters and latencies.
+     *
+     */
+    public void start() {
+        try {
+            // the first loop accepts connections as well as serving its own share of clients
+            loops[0].execute(() -> {
+                try {
+                    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            System.out.println("Listening for connections...");
+            if (options.statsFile != null) {
+                metrics.dumpEvery(options.statsFile, options.statsSeconds, this::stats);
+            }
+
+            // allows input to console on main thread
+            BufferedReader serverInput = new BufferedReader(new InputStreamReader(System.in));
+            String command = serverInput.readLine();
+            while (command != null && !command.equals("EXIT")) {
+                if (command.equals("QUEUES")) {
+                    for (Session session : clients.snapshot()) {
+                        System.out.println(session.stats());
+                    }
+                } else if (command.equals("STATS")) {
+                    System.out.println(stats());
+                }
+                command = serverInput.readLine();
+            }
+
+            // exit var used, stops the event loops which then close every client connection they own.
+            exit = true;
+            if (budget != null) {
+                budget.close();
+            }
+            serverChannel.close();
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+            for (EventLoop loop : loops) {
+                loop.join();
+            }
+            games.shutdown();
+            if (wheel != null) {
+                wheel.close();
+            }
+            if (peers != null) {
+                peers.close();
+            }
+            if (log != null) {
+                // everything already sent is logged and synced before the server stops
+                log.close();
+            }
+            System.out.println("Event loops finished.");
+
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return : the server's counters and latencies, printed by STATS.
+     */
+    private String stats() {
+        return metrics.report(clients, rooms, games) + (budget == null ? "" : "\n" + budget.stats())
+                + (log == null ? "" : "\n" + log.stats()) + (peers == null ? "" : "\n" + peers.stats())
+                + (wheel == null ? "" : "\n" + wheel.stats());
+    }
+
+    /**
+     * Publishes an encoded line to a room's ring and asks the event loops serving its members to write it to them.
+     * Every member of a room other than the lobby is served by the room's home loop, so only that loop is asked, and
+     * a loop only flushes its connections in the room.
+     * The chat log copies the line from the ring on its own thread.
+     *
+     * @param room : the room the line is sent in, nothing is sent if the sender has already left.
+     * @param frame : the encoded line, built by Frames.
+     */
+    private void broadcast(Room room, ByteBuffer frame) {
+        publish(room, frame);
+        if (peers != null) {
+            peers.relay(room, frame);
+        }
+    }
+
+    /**
+     * Publishes a line to the members of a room on this server only, see broadcast above.
+     *
+     * @param room : the room the line is sent in, nothing is sent if nobody is in it here.
+     * @param frame : the encoded line, built by Frames.
+     */
+    private void publish(Room room, ByteBuffer frame) {
+        if (room == null) {
+            return;
+        }
+        room.messages.publish(frame, room.members.snapshot().length);
+        flushSoon(room);
+        if (log != null) {
+            log.published(room);
+        }
+    }
+
+    /**
+     * Has a reply queued for a client by another thread, such as a game's shard or a peer link, written to it. The
+     * connection isn't known here, so its room is flushed by the loops serving it.
+     *
+     * @param session : the client replied to.
+     */
+    private void replied(Session session) {
+        Room room = session.room;
+        if (room != null) {
+            flushSoon(room);
+        }
+    }
+
+    /**
+     * Asks the event loops serving a room's members to write its waiting messages to them.
+     *
+     * @param room : the room.
+     */
+    private void flushSoon(Room room) {
+        if (room.home < 0) {
+            for (EventLoop loop : loops) {
+                loop.flushSoon(room);
+            }
+        } else {
+            loops[room.home % loops.length].flushSoon(room);
+        }
+    }
+
+    /**
+     * Accepts every pending connection and hands each one to an event loop. Runs on the first event loop.
+     *
+     * @throws IOException : thrown by accepting or configuring the client channel.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            Session session = new Session(channel, options.newOutboundQueue(rooms.lobby().messages), metrics);
+            session.setFlushDelay(options.flushMicros);
+            session.limiter = options.newRateLimiter();
+            Connection connection = new Connection(session, loop);
+            if (wheel != null) {
+                session.heartbeat = wheel.add(session, () -> connection.onLoop(connection::ping),
+                        () -> connection.onLoop(connection::expire));
+            }
+            System.out.println("Connection accepted from: " + connection.session.address);
+            // the channel has to be registered by the thread that owns the selector
+            loop.execute(connection::register);
+        }
+    }
+
+    /**
+     * Takes a connection out of a list by moving the last one into its place.
+     *
+     * @param connections : the list.
+     * @param index : where the connection is in the list.
+     * @return : the connection moved into its place, null if it was the last one.
+     */
+    private static Connection removeAt(List<Connection> connections, int index) {
+        Connection last = connections.remove(connections.size() - 1);
+        if (index == connections.size()) {
+            return null;
+        }
+        connections.set(index, last);
+        return last;
+    }
+
+    /**
+     * Inner class; a single selector thread. Serves reads and writes for every connection registered with it and runs
+     * tasks handed to it by other threads, such as registering a new connection or flushing new messages.
+     *
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // stops every queued task from waking the selector again before it has run.
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // messages from the ring are copied here before being written, so the shared messages are never changed.
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        // connections registered with this loop, only touched by the loop itself. Each connection knows where it is
+        // in the list, so it is taken out by moving the last one into its place.
+        private final List<Connection> owned = new ArrayList<>();
+        // the loop's connections filed under the room they are in, so a room's messages only flush its own members.
+        private final HashMap<Room, List<Connection>> members = new HashMap<>();
+        // rooms with messages published since their last flush, added to by any thread.
+        private final Set<Room> dirty = ConcurrentHashMap.newKeySet();
+        // set while a flush of the dirty rooms is queued, so many messages only cause one flush.
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final Runnable flushTask = this::flushAll;
+        // connections holding back messages or waiting for their first byte, flushed again once nextDeadline has
+        // passed, the earliest time one of them must be. Long.MAX_VALUE if none are.
+        private List<Connection> waiting = new ArrayList<>();
+        private List<Connection> due = new ArrayList<>();
+        private long nextDeadline = Long.MAX_VALUE;
+        // connections not read from until they are back within their rate limits, and the earliest time one is.
+        private final List<Connection> throttled = new ArrayList<>();
+        private long nextResume = Long.MAX_VALUE;
+
+        EventLoop(int index) throws IOException {
+            super("event-loop-" + index);
+            selector = Selector.open();
+        }
+
+        /**
+         * Queues a task to run on this loop, waking the selector if it is called from another thread.
+         *
+         * @param task : the task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Makes sure the loop will write a room's newly published messages to its connections in the room. Can be
+         * called from any thread.
+         *
+         * @param room : the room messages were published to.
+         */
+        void flushSoon(Room room) {
+            // a room already waiting is flushed after the message was published, as its flush takes it out first
+            if (dirty.add(room) && flushScheduled.compareAndSet(false, true)) {
+                execute(flushTask);
+            }
+        }
+
+        /**
+         * Writes the waiting messages of every connection in a room with new messages, apart from connections with a
+         * flush delay that are holding them back to write more at once.
+         */
+        private void flushAll() {
+            flushScheduled.set(false);
+            long now = System.nanoTime();
+            Iterator<Room> dirtyRooms = dirty.iterator();
+            while (dirtyRooms.hasNext()) {
+                List<Connection> connections = members.get(dirtyRooms.next());
+                dirtyRooms.remove();
+                if (connections == null) {
+                    continue;
+                }
+                // closing a connection moves the last one into its place, so go backwards
+                for (int i = connections.size() - 1; i >= 0; i--) {
+                    if (i < connections.size()) {
+                        connections.get(i).flushBatch(now);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Flushes a connection again once a deadline has passed, used by connections holding back messages or waiting
+         * for their first byte.
+         *
+         * @param connection : one of the loop's connections.
+         * @param deadline : the System.nanoTime it has to be flushed at.
+         */
+        void flushAt(Connection connection, long deadline) {
+            if (connection.waitingOn != this) {
+                connection.waitingOn = this;
+                waiting.add(connection);
+            }
+            nextDeadline = Math.min(nextDeadline, deadline);
+        }
+
+        /**
+         * Flushes every connection waiting for a deadline, they ask again if they still have to wait.
+         */
+        private void flushWaiting() {
+            long now = System.nanoTime();
+            nextDeadline = Long.MAX_VALUE;
+            List<Connection> connections = waiting;
+            waiting = due;
+            due = connections;
+            for (Connection connection : connections) {
+                // connections that have moved to another loop since are left to it
+                if (connection.loop == this && connection.waitingOn == this) {
+                    connection.waitingOn = null;
+                    connection.flushBatch(now);
+                }
+            }
+            connections.clear();
+        }
+
+        /**
+         * Adds a connection to the loop and files it under its room.
+         *
+         * @param connection : a connection registered with the loop's selector.
+         */
+        void own(Connection connection) {
+            connection.ownedAt = owned.size();
+            owned.add(connection);
+            file(connection);
+        }
+
+        /**
+         * Takes a connection out of the loop, when it closes or moves to another loop.
+         *
+         * @param connection : the connection.
+         */
+        void disown(Connection connection) {
+            unfile(connection);
+            if (connection.ownedAt < 0) {
+                return;
+            }
+            Connection moved = removeAt(owned, connection.ownedAt);
+            if (moved != null) {
+                moved.ownedAt = connection.ownedAt;
+            }
+            connection.ownedAt = -1;
+        }
+
+        /**
+         * Files a connection under the room its session is in now, out of the room it was filed under.
+         *
+         * @param connection : one of the loop's connections.
+         */
+        void file(Connection connection) {
+            Room room = connection.session.room;
+            if (room == connection.filedIn) {
+                return;
+            }
+            unfile(connection);
+            if (room == null) {
+                return;
+            }
+            List<Connection> connections = members.computeIfAbsent(room, r -> new ArrayList<>());
+            connection.filedIn = room;
+            connection.filedAt = connections.size();
+            connections.add(connection);
+        }
+
+        private void unfile(Connection connection) {
+            if (connection.filedIn == null) {
+                return;
+            }
+            List<Connection> connections = members.get(connection.filedIn);
+            Connection moved = removeAt(connections, connection.filedAt);
+            if (moved != null) {
+                moved.filedAt = connection.filedAt;
+            }
+            if (connections.isEmpty()) {
+                members.remove(connection.filedIn);
+            }
+            connection.filedIn = null;
+        }
+
+        /**
+         * Stops reading from a connection until it is back within its rate limits.
+         *
+         * @param connection : the connection, its resume time already set.
+         */
+        void throttle(Connection connection) {
+            throttled.add(connection);
+            nextResume = Math.min(nextResume, connection.resumeAt);
+        }
+
+        /**
+         * Reads again from every throttled connection whose wait is over.
+         */
+        private void resumeThrottled() {
+            long now = System.nanoTime();
+            nextResume = Long.MAX_VALUE;
+            for (int i = throttled.size() - 1; i >= 0; i--) {
+                Connection connection = throttled.get(i);
+                if (now - connection.resumeAt >= 0) {
+                    throttled.remove(i);
+                    connection.resume();
+                } else {
+                    nextResume = Math.min(nextResume, connection.resumeAt);
+                }
+            }
+        }
+
+        /**
+         * Starts or stops reading from every connection of the loop, run when the inflight budget pauses or resumes
+         * reading.
+         */
+        void updateReads() {
+            for (Connection connection : owned) {
+                connection.updateInterest();
+            }
+        }
+
+        /**
+         * Waits for events, no longer than until the next connection holding back messages has to be flushed or the
+         * next throttled connection can be read again. The selector only waits in milliseconds, so shorter delays are
+         * rounded up to one.
+         */
+        private void select() throws IOException {
+            long deadline = Math.min(nextDeadline, nextResume);
+            if (!tasks.isEmpty()) {
+                selector.selectNow();
+            } else if (deadline == Long.MAX_VALUE) {
+                selector.select();
+            } else {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                while (!exit) {
+                    // only wait for events if there is nothing left to do
+                    select();
+                    wakeupPending.set(false);
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (nextDeadline != Long.MAX_VALUE && System.nanoTime() - nextDeadline >= 0) {
+                        flushWaiting();
+                    }
+                    if (nextResume != Long.MAX_VALUE && System.nanoTime() - nextResume >= 0) {
+                        resumeThrottled();
+                    }
+                }
+            } catch (IOException e) {
+                // the server channel was closed while accepting
+                if (!exit) {
+                    e.printStackTrace();
+                }
+            } finally {
+                // close every connection owned by this loop
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Inner class; the event loop's state for a single client session. Only its own event loop reads from or writes to
+     * the channel, it reads the session's messages from the ring when it is asked to flush.
+     *
+     */
+    private class Connection {
+        private final Session session;
+        private final SocketChannel channel;
+        // the loop serving the connection, changed when it joins a room served by another loop. Read by the timing
+        // wheel to hand it the connection's pings.
+        private volatile EventLoop loop;
+        private final OutboundQueue outbound;
+
+        private SelectionKey key;
+        // message taken from the ring that hasn't all been copied to the write buffer yet.
+        private ByteBuffer writing;
+        private int writingOffset;
+        // index after the last byte of the message sent to this client, and how many bytes that is.
+        private int writingEnd;
+        private int writingLength;
+        // bytes the socket didn't take, only allocated when the client is slower than the server.
+        private ByteBuffer pending;
+        // splits what the client sends into messages, with whichever protocol it uses.
+        private final WireDecoder decoder = new WireDecoder(Wire.MAX_MESSAGE);
+        // set once the client's first byte has been read, which settles its protocol unless it already has been.
+        private boolean detected = false;
+        // bytes read but not yet decoded when the connection moved to another loop, decoded once it gets there.
+        private ByteBuffer carry;
+        private boolean closed = false;
+        // when the loop first held back the waiting messages, 0 if none are held back.
+        private long batchStart = 0;
+        // when the connection can be read again after going over its rate limit, 0 if it isn't throttled.
+        private long resumeAt = 0;
+        // where the connection is in its loop's list, -1 if it isn't in one, and the room it is filed under there.
+        // Only used by the loop.
+        private int ownedAt = -1;
+        private Room filedIn;
+        private int filedAt;
+        // the loop that will flush the connection again at a deadline, null if none will.
+        private EventLoop waitingOn;
+
+        Connection(Session session, EventLoop loop) {
+            this.session = session;
+            this.channel = session.channel;
+            this.outbound = session.outbound;
+            this.loop = loop;
+        }
+
+        /**
+         * Registers the channel for reads with the owning loop's selector and adds the session to the registry and
+         * the connection to the loop's flushes, as a client using lines of text until its first byte says otherwise.
+         */
+        void register() {
+            try {
+                key = channel.register(loop.selector, reads(), this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            clients.add(session);
+            rooms.join(session, Rooms.LOBBY);
+            loop.own(this);
+        }
+
+        /**
+         * Settles the protocol the client's first byte asked for and writes what has been held back waiting for it.
+         *
+         * @throws ProtocolException : thrown if the client sent the handshake after it was sent lines of text.
+         */
+        private void detected() throws ProtocolException {
+            detected = true;
+            Compressor compressor = decoder.isCompressed() ? options.newCompressor(metrics) : null;
+            if (!session.settle(decoder.isBinary(), compressor)) {
+                if (compressor != null) {
+                    compressor.end();
+                }
+                throw new ProtocolException("Handshake after the client was sent lines of text");
+            }
+            flush();
+        }
+
+        /**
+         * Reads whatever the client has sent and handles every complete line in it.
+         *
+         * @param buffer : the event loop's shared read buffer.
+         */
+        void read(ByteBuffer buffer) {
+            int count;
+            try {
+                buffer.clear();
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                // the client quit without /Exit
+                count = -1;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            if (session.heartbeat != null) {
+                session.heartbeat.heard();
+            }
+            buffer.flip();
+            decode(buffer);
+        }
+
+        /**
+         * Handles every complete message in the bytes read. If a message moves the connection to another loop the rest
+         * is kept and decoded by that loop, and if the client goes over its rate limit the rest is kept until the
+         * connection is read again.
+         *
+         * @param buffer : bytes read from the client.
+         */
+        private void decode(ByteBuffer buffer) {
+            EventLoop current = loop;
+            try {
+                if (!detected) {
+                    if (!decoder.detect(buffer)) {
+                        return;
+                    }
+                    detected();
+                }
+                while (!closed && decoder.next(buffer)) {
+                    long readAt = System.nanoTime();
+                    session.receivedMessage(decoder.messageBytes());
+                    int opcode = decoder.opcode();
+                    String message = decoder.text();
+                    boolean exiting = opcode == Wire.EXIT || (opcode == Wire.COMMAND && message.equals("/Exit"));
+                    long wait = exiting ? 0 : overLimit(decoder.messageBytes());
+                    if (wait < 0) {
+                        continue;
+                    }
+                    handle(opcode, message, readAt);
+                    if (loop != current || (wait > 0 && !closed)) {
+                        if (buffer.hasRemaining()) {
+                            carry = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                        }
+                        if (loop == current) {
+                            // not read from until it is back within its limits, so TCP holds the client back
+                            resumeAt = System.nanoTime() + wait;
+                            updateInterest();
+                            loop.throttle(this);
+                        }
+                        return;
+                    }
+                }
+            } catch (ProtocolException e) {
+                // the message is too long or isn't a frame
+                close();
+            }
+        }
+
+        /**
+         * Applies the client's rate limit to a message it has sent, the same way as the threaded server.
+         *
+         * @param bytes : the size of the message.
+         * @return : how long to stop reading from the client once the message is handled, -1 if the message mustn't be
+         *          handled.
+         */
+        private long overLimit(int bytes) {
+            if (session.limiter == null) {
+                return 0;
+            }
+            long wait = session.limiter.acquire(bytes, options.rateAction == RateLimiter.Action.DELAY);
+            if (wait == 0) {
+                return 0;
+            }
+            switch (options.rateAction) {
+                case DROP:
+                    metrics.rateDropped.increment();
+                    return -1;
+                case KICK:
+                    metrics.rateKicked.increment();
+                    System.out.println("Over its rate limit, disconnecting client: " + session.address);
+                    close();
+                    return -1;
+                default:
+                    metrics.rateDelayed.increment();
+                    return wait;
+            }
+        }
+
+        /**
+         * Reads from the connection again once its rate limit wait is over, starting with what it had already sent.
+         */
+        void resume() {
+            resumeAt = 0;
+            if (closed || key == null) {
+                return;
+            }
+            updateInterest();
+            if (carry != null) {
+                ByteBuffer rest = carry;
+                carry = null;
+                decode(rest);
+            }
+        }
+
+        /**
+         * @return : OP_READ if the connection can be read from, 0 while it is throttled or the inflight budget has
+         *          paused reading.
+         */
+        private int reads() {
+            return resumeAt != 0 || (budget != null && budget.isPaused()) ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Updates whether the selector reads from the connection, keeping any write it is waiting for.
+         */
+        void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            key.interestOps(reads() | (key.interestOps() & SelectionKey.OP_WRITE));
+        }
+
+        /**
+         * Applies a /joingame command, in the form /joingame id.
+         *
+         * @param wordList : the command split on spaces.
+         */
+        private void joinGame(String[] wordList) {
+            try {
+                games.join(session, Long.parseLong(wordList[1]));
+                joined();
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                outbound.reply(Frames.line("Use /joingame followed by a game's id."));
+            }
+        }
+
+        /**
+         * Follows the session into the room it is in now. The connection is handed over to the loop serving the room,
+         * so all of a room's messages are published and written by the one loop, or filed under the room on its own
+         * loop if that already serves it. Only called by the connection's current loop.
+         */
+        private void joined() {
+            if (closed) {
+                return;
+            }
+            Room room = session.room;
+            EventLoop target = room == null || room.home < 0 ? loop : loops[room.home % loops.length];
+            if (target == loop) {
+                loop.file(this);
+                return;
+            }
+            key.cancel();
+            key = null;
+            loop.disown(this);
+            loop = target;
+            target.execute(this::arrive);
+        }
+
+        /**
+         * Registers a connection handed over by another loop, run by its new loop.
+         */
+        private void arrive() {
+            if (exit) {
+                close();
+                return;
+            }
+            try {
+                key = channel.register(loop.selector, reads(), this);
+            } catch (CancelledKeyException e) {
+                // the connection is coming back before this loop's selector has dropped its old key, which the next
+                // select does
+                loop.execute(this::arrive);
+                return;
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            // a deadline the last loop was waiting for is this loop's now
+            waitingOn = null;
+            loop.own(this);
+            if (carry != null) {
+                ByteBuffer rest = carry;
+                carry = null;
+                decode(rest);
+            }
+            flush();
+        }
+
+        /**
+         * Validates a message from the client, same commands as the threaded server: /Exit leaves and /setName
+         * renames, anything else is sent to all clients with the client's name.
+         *
+         * @param opcode : what the message is, a line of text is either a CHAT or a COMMAND.
+         * @param message : the decoded text.
+         * @param readAt : the System.nanoTime the message was read at.
+         */
+        private void handle(int opcode, String message, long readAt) {
+            if (opcode == Wire.EXIT || (opcode == Wire.COMMAND && message.equals("/Exit"))) {
+                broadcast(session.room, Frames.line(session.address + " has left."));
+                close();
+            } else if (opcode == Wire.PONG) {
+                // the client answered a ping, hearing from it was enough
+            } else if (opcode == Wire.SET_NAME) {
+                if (!message.isEmpty()) {
+                    setName(message);
+                }
+            } else if (opcode == Wire.COMMAND) {
+                String[] wordList = message.split(" ");
+                if (wordList[0].equals("/setName")) {
+                    if (wordList.length > 1) {
+                        setName(wordList[1]);
+                    }
+                } else if (wordList[0].equals("/pong")) {
+                    // the answer to a ping from a client using lines of text
+                } else if (wordList[0].equals("/who")) {
+                    outbound.reply(Frames.line(clients.who(ChatServer.WHO_SHOWN)));
+                    flush();
+                } else if (wordList[0].equals("/setOverflow")) {
+                    String rejected = outbound.setOverflow(wordList);
+                    if (rejected != null) {
+                        outbound.reply(Frames.line(rejected));
+                        flush();
+                    }
+                } else if (wordList[0].equals("/setFlush")) {
+                    String rejected = session.setFlushDelay(wordList);
+                    if (rejected != null) {
+                        outbound.reply(Frames.line(rejected));
+                        flush();
+                    }
+                } else if (wordList[0].equals("/join")) {
+                    String rejected = Rooms.checkName(wordList.length > 1 ? wordList[1] : "");
+                    if (rejected != null) {
+                        outbound.reply(Frames.line(rejected));
+                    } else {
+                        games.leave(session);
+                        rooms.join(session, wordList[1]);
+                        joined();
+                    }
+                    // write the reply or the room's replayed history, unless the new room's loop now does
+                    flush();
+                } else if (wordList[0].equals("/leave")) {
+                    games.leave(session);
+                    rooms.join(session, Rooms.LOBBY);
+                    joined();
+                    flush();
+                } else if (wordList[0].equals("/history")) {
+                    rooms.history(session, wordList);
+                    flush();
+                } else if (wordList[0].equals("/newgame")) {
+                    games.create(session, wordList.length > 1 ? wordList[1] : Games.DEFAULT_MAP);
+                    joined();
+                    // write a reply saying why the game couldn't start
+                    flush();
+                } else if (wordList[0].equals("/joingame")) {
+                    joinGame(wordList);
+                    flush();
+                } else if (wordList[0].equals("/game")) {
+                    games.play(session, message.substring(wordList[0].length()).trim());
+                    flush();
+                } else {
+                    chat(message, readAt);
+                }
+            } else if (opcode == Wire.CHAT) {
+                chat(message, readAt);
+            }
+        }
+
+        /**
+         * Runs a task for the connection on the loop serving it, following it if it moves to another loop first.
+         * Used by the timing wheel's thread.
+         *
+         * @param task : the task.
+         */
+        void onLoop(Runnable task) {
+            EventLoop target = loop;
+            target.execute(() -> {
+                if (loop == target) {
+                    task.run();
+                } else {
+                    onLoop(task);
+                }
+            });
+        }
+
+        /**
+         * Pings the client, which has been quiet for a while.
+         */
+        void ping() {
+            if (!closed) {
+                outbound.reply(Frames.PING);
+                flush();
+            }
+        }
+
+        /**
+         * Closes the client, which has been idle for too long, the same way as /Exit.
+         */
+        void expire() {
+            if (closed) {
+                return;
+            }
+            System.out.println("Idle for too long, disconnecting client: " + session.address);
+            broadcast(session.room, Frames.line(session.address + " has left."));
+            close();
+        }
+
+        /**
+         * Renames the client, unless the name is taken here or on a peer.
+         *
+         * @param name : the name it asked for.
+         */
+        private void setName(String name) {
+            if (!clients.rename(session, name)) {
+                outbound.reply(Frames.line("The name " + name + " is taken."));
+                flush();
+            }
+        }
+
+        /**
+         * Sends the client's message to everyone in its room and times how long it took to be queued for all of them.
+         *
+         * @param message : the message.
+         * @param readAt : the System.nanoTime the message was read at.
+         */
+        private void chat(String message, long readAt) {
+            broadcast(session.room, Frames.chat(session.getNameTag(), message));
+            metrics.readToEnqueue.record(System.nanoTime() - readAt);
+        }
+
+        /**
+         * Writes as many of the waiting messages as the socket takes, asking for a write event if it can't take all.
+         * Event loops must never wait, so a client that falls too far behind with the block policy is disconnected
+         * straight away.
+         */
+        void flush() {
+            if (closed || key == null || !settled()) {
+                return;
+            }
+            batchStart = 0;
+            try {
+                ByteBuffer buffer = loop.writeBuffer;
+                while (true) {
+                    buffer.clear();
+                    if (pending == null) {
+                        fill(buffer);
+                    }
+                    buffer.flip();
+                    if (pending != null) {
+                        // what the socket didn't take last time goes first. Nothing new is copied until it has all
+                        // been written, so a client that stops reading falls behind in the ring, where its overflow
+                        // policy applies, rather than in memory of its own.
+                        channel.write(pending);
+                    } else if (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    } else {
+                        // everything copied so far has been written
+                        outbound.written(metrics);
+                        break;
+                    }
+                    if (pending != null && !pending.hasRemaining()) {
+                        pending = null;
+                        outbound.hold(0);
+                    }
+                    if (pending != null || buffer.hasRemaining()) {
+                        keep(buffer);
+                        outbound.hold(pending.remaining());
+                        stalled();
+                        return;
+                    }
+                }
+                if (!outbound.checkDepth()) {
+                    overflowed();
+                    return;
+                }
+                key.interestOps(reads());
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Flushes the connection as part of a pass over the loop's connections. With a flush delay the waiting
+         * messages are held back, so more of them are written at once, until the delay has passed since they were
+         * first held back or there are enough of them to fill a write.
+         *
+         * @param now : the time of the pass.
+         */
+        void flushBatch(long now) {
+            long delay = session.getFlushDelayNanos();
+            if (delay == 0 || pending != null || writing != null) {
+                flush();
+                return;
+            }
+            int depth = outbound.depth();
+            if (depth == 0) {
+                batchStart = 0;
+                return;
+            }
+            if (batchStart == 0) {
+                batchStart = now;
+            }
+            // never hold back so many messages that a sender could be blocked waiting for this client
+            if (now - batchStart >= delay || depth >= outbound.capacity() / 2
+                    || outbound.pendingBytes(options.flushBytes) >= options.flushBytes) {
+                flush();
+            } else {
+                loop.flushAt(this, batchStart + delay);
+            }
+        }
+
+        /**
+         * Settles the client on lines of text once its first byte has been waited for long enough. Until then the loop
+         * is asked to flush again at the deadline, event loops never wait.
+         *
+         * @return : true if the protocol is settled and messages can be written.
+         */
+        private boolean settled() {
+            if (session.isSettled()) {
+                return true;
+            }
+            long deadline = session.getProtocolDeadline();
+            if (System.nanoTime() - deadline < 0) {
+                loop.flushAt(this, deadline);
+                return false;
+            }
+            session.settle(false, null);
+            return true;
+        }
+
+        /**
+         * Keeps the bytes the socket didn't take, the loop's buffer is used by the next connection.
+         *
+         * @param buffer : the loop's write buffer.
+         */
+        private void keep(ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            int kept = pending == null ? 0 : pending.remaining();
+            ByteBuffer copy = ByteBuffer.allocate(kept + buffer.remaining());
+            if (pending != null) {
+                copy.put(pending);
+            }
+            pending = copy.put(buffer).flip();
+        }
+
+        /**
+         * Copies waiting messages from the ring into the write buffer until it is full or there are none left.
+         *
+         * @param buffer : the loop's write buffer.
+         */
+        private void fill(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                if (writing == null) {
+                    writing = outbound.poll();
+                    if (writing == null) {
+                        return;
+                    }
+                    // only this client's protocol's part of the shared message is sent
+                    writingOffset = Frames.offset(writing, session.binary);
+                    writingLength = Frames.length(writing, session.binary);
+                    if (session.compressor != null && session.compressor.applies(writingLength)) {
+                        // compressed for this client alone, the next message isn't compressed until this one is copied
+                        writing = session.compressor.compress(writing, writingOffset, writingLength);
+                        writingOffset = 0;
+                        writingLength = writing.limit();
+                    }
+                    writingEnd = writingOffset + writingLength;
+                }
+                int length = Math.min(buffer.remaining(), writingEnd - writingOffset);
+                // absolute copy, the message's own position is shared by every connection so it is never moved
+                buffer.put(buffer.position(), writing, writingOffset, length);
+                buffer.position(buffer.position() + length);
+                writingOffset += length;
+                if (writingOffset == writingEnd) {
+                    session.sentMessages(1, writingLength);
+                    outbound.copied();
+                    writing = null;
+                }
+            }
+        }
+
+        /**
+         * The socket can't take any more, carry on when the selector says it is writable unless the client has now
+         * fallen too far behind.
+         */
+        private void stalled() {
+            if (!outbound.checkDepth()) {
+                overflowed();
+                return;
+            }
+            key.interestOps(reads() | SelectionKey.OP_WRITE);
+        }
+
+        private void overflowed() {
+            System.out.println("Outbound queue full, disconnecting client: " + session.address);
+            close();
+        }
+
+        /**
+         * Closes the connection and removes its session from the registry.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            clients.remove(session);
+            games.leave(session);
+            rooms.leave(session);
+            loop.disown(this);
+            writing = null;
+            pending = null;
+            if (key != null) {
+                key.cancel();
+            }
+            if (session.compressor != null) {
+                session.compressor.end();
+            }
+            session.close();
+            System.out.println("Closing connection to client: " + session.address);
+        }
+    }
+}
@@ -0,0 +1,505 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Messages waiting to be written to one client: the client's cursor into the ring of the room it is in.
+ * Senders only publish to the ring, the client's own writer reads the ring from its cursor, so a client that stops
+ * reading can't hold up the sender or the other clients. A client can only fall a bounded number of messages behind,
+ * what happens when it falls further is decided by the overflow policy.
+ * When the client changes room the writer moves over to the new ring the next time it polls, messages of the old
+ * room it hadn't been sent yet are skipped.
+ *
+ */
+class OutboundQueue {
+
+    /**
+     * What to do when a client falls more messages behind than its queue can hold.
+     */
+    enum Overflow {
+        // skip the oldest messages the client hasn't been sent yet.
+        DROP_OLDEST,
+        // close the connection of the client that can't keep up.
+        DISCONNECT,
+        // make the sender wait for the client to catch up, up to a timeout, then disconnect the client.
+        BLOCK
+    }
+
+    // default number of messages a client can have waiting before the overflow policy applies.
+    static final int DEFAULT_CAPACITY = 1024;
+    // default time a sender waits with the BLOCK policy.
+    static final long DEFAULT_BLOCK_MILLIS = 250;
+
+    // ring of the client's room, only replaced by the client's writer.
+    private volatile BroadcastRing ring;
+    private final int capacity;
+    private volatile Overflow overflow;
+    private volatile long blockMillis;
+    // the server's policy and timeout, a client can't pick a policy that makes senders wait longer.
+    private final Overflow serverOverflow;
+    private final long serverBlockMillis;
+
+    // sequence number of the next message to write to the client, only changed by the client's writer.
+    private volatile long cursor;
+    // cursor when the client joined its room, and the messages queued in the rooms it was in before.
+    private long joined;
+    private long queuedBefore = 0;
+    // ring and cursor the writer moves to the next time it polls, set when the client changes room.
+    private volatile boolean moving = false;
+    private BroadcastRing movingTo;
+    private long movingCursor;
+    // messages from the ring the writer has copied out, and the first of them not yet counted as written, used to time
+    // the write to each message's last recipient. Only used by the writer.
+    private long copiedUpTo;
+    private long writtenUpTo;
+    // writer parked in take waiting for a message, woken by signal.
+    private volatile Thread waiter;
+    // set once the client has fallen too far behind with the disconnect or block policy.
+    private volatile boolean overflowed = false;
+    // sequence number in the current ring the writer skips to, set when the inflight budget sheds a client with the
+    // DROP_OLDEST policy. Reset when the client moves.
+    private volatile long shedTo = 0;
+
+    // replies meant for this client alone, such as errors, written before the room's messages.
+    private final ConcurrentLinkedQueue<ByteBuffer> direct = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger directCount = new AtomicInteger();
+
+    // bytes already taken from the ring that the client's socket hasn't taken yet, kept by the writer.
+    private volatile int held = 0;
+
+    // counters used to find the clients that are lagging behind.
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int highWater = 0;
+
+    /**
+     * Constructor, the client will be sent every message published from now on.
+     *
+     * @param ring : the ring of the room the client starts in.
+     * @param capacity : the number of messages the client can fall behind, at most half the ring.
+     * @param overflow : the policy used when the client falls further behind.
+     * @param blockMillis : how long a sender waits for the client with the BLOCK policy.
+     */
+    OutboundQueue(BroadcastRing ring, int capacity, Overflow overflow, long blockMillis) {
+        this.ring = ring;
+        this.capacity = Math.min(capacity, ring.capacity() / 2);
+        this.overflow = overflow;
+        this.blockMillis = blockMillis;
+        serverOverflow = overflow;
+        serverBlockMillis = blockMillis;
+        cursor = ring.next();
+        joined = cursor;
+        copiedUpTo = cursor;
+        writtenUpTo = cursor;
+    }
+
+    /**
+     * Called by the sender after it has published a message. Applies the overflow policy if the client is now too far
+     * behind and wakes the client's writer.
+     *
+     * @param room : the ring the message was published to.
+     * @param sequence : the sequence number of the published message.
+     * @param mayBlock : false if the caller must never wait, BLOCK then disconnects straight away.
+     * @return : false if the client has to be disconnected.
+     * @throws InterruptedException : thrown if the sender is interrupted while waiting with the BLOCK policy.
+     */
+    boolean published(BroadcastRing room, long sequence, boolean mayBlock) throws InterruptedException {
+        if (room != ring) {
+            // the client is moving to or from the room, the writer sorts it out once it has moved
+            signal();
+            return !overflowed;
+        }
+        long depth = sequence + 1 - cursor;
+        if (depth > capacity) {
+            if (overflow == Overflow.BLOCK && mayBlock) {
+                // wait for the writer to catch up, checking now and then rather than holding a lock
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockMillis);
+                while (sequence + 1 - cursor > capacity && !overflowed && ring == room
+                        && System.nanoTime() - deadline < 0) {
+                    signal();
+                    LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                depth = sequence + 1 - cursor;
+            }
+            if (depth > capacity && overflow != Overflow.DROP_OLDEST) {
+                overflowed = true;
+            }
+        }
+        if (depth > highWater) {
+            highWater = (int) Math.min(depth, Integer.MAX_VALUE);
+        }
+        signal();
+        return !overflowed;
+    }
+
+    /**
+     * Moves the client to another room's ring, it is sent every message published there from the given one on.
+     * Can be called from any thread, the writer makes the move the next time it polls.
+     *
+     * @param room : the new room's ring.
+     * @param cursor : the sequence number of the first message the client is sent, at most the ring's next.
+     */
+    synchronized void moveTo(BroadcastRing room, long cursor) {
+        movingTo = room;
+        movingCursor = cursor;
+        moving = true;
+        signal();
+    }
+
+    /**
+     * Makes a move asked for by moveTo, only called by the writer.
+     */
+    private synchronized void move() {
+        queuedBefore += ring.next() - joined;
+        ring = movingTo;
+        cursor = movingCursor;
+        joined = movingCursor;
+        // messages of the old room not yet counted as written are left untimed
+        copiedUpTo = movingCursor;
+        writtenUpTo = movingCursor;
+        shedTo = 0;
+        movingTo = null;
+        moving = false;
+    }
+
+    /**
+     * Queues a reply for this client alone and wakes its writer. Replies are few, one per command at most, so they are
+     * queued rather than published, up to the same capacity as the ring.
+     *
+     * @param frame : the encoded reply, built by Frames.
+     * @return : false if the client already has too many replies waiting, the reply is then dropped.
+     */
+    boolean reply(ByteBuffer frame) {
+        if (directCount.incrementAndGet() > capacity) {
+            directCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        direct.add(frame);
+        signal();
+        return true;
+    }
+
+    /**
+     * Wakes the writer if it is waiting for a message.
+     */
+    void signal() {
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Takes the next message for the client without waiting, replies first. With the DROP_OLDEST policy a client that has fallen too
+     * far behind skips to the oldest message it is allowed to have waiting.
+     *
+     * @return : the next message, null if there is none yet or the client has overflowed.
+     */
+    ByteBuffer poll() {
+        if (moving) {
+            move();
+        }
+        ByteBuffer reply = direct.poll();
+        if (reply != null) {
+            directCount.decrementAndGet();
+            return reply;
+        }
+        while (!overflowed) {
+            long sequence = cursor;
+            long next = ring.next();
+            long skip = shedTo;
+            if (skip > sequence) {
+                dropped.addAndGet(skip - sequence);
+                sequence = skip;
+                cursor = sequence;
+            }
+            if (next - sequence > capacity) {
+                if (overflow != Overflow.DROP_OLDEST) {
+                    overflowed = true;
+                    break;
+                }
+                dropped.addAndGet(next - capacity - sequence);
+                sequence = next - capacity;
+                cursor = sequence;
+            }
+            ByteBuffer frame = ring.get(sequence);
+            if (frame == BroadcastRing.LAPPED) {
+                // senders got a whole ring ahead while this was read, try again from the newer messages
+                continue;
+            }
+            if (frame != null) {
+                cursor = sequence + 1;
+            }
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Halts the writer until a message can be taken.
+     *
+     * @return : the next message, null if the client has overflowed and must be disconnected.
+     * @throws InterruptedException : thrown if the writer is interrupted while waiting.
+     */
+    ByteBuffer take() throws InterruptedException {
+        return take(Long.MAX_VALUE);
+    }
+
+    /**
+     * Halts the writer until a message can be taken or the timeout passes.
+     *
+     * @param timeoutNanos : longest time to wait.
+     * @return : the next message, null if the timeout passed or the client has overflowed.
+     * @throws InterruptedException : thrown if the writer is interrupted while waiting.
+     */
+    ByteBuffer take(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            ByteBuffer frame = poll();
+            if (frame != null || overflowed) {
+                return frame;
+            }
+            waiter = Thread.currentThread();
+            // a message could have been published before the waiter was set, check again before parking
+            frame = poll();
+            if (frame != null || overflowed) {
+                waiter = null;
+                return frame;
+            }
+            if (timeoutNanos == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    waiter = null;
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Called by the writer once every message it has taken so far has been copied into its write buffer, they are
+     * counted as written by the next call to written.
+     */
+    void copied() {
+        copiedUpTo = cursor;
+    }
+
+    /**
+     * Called by the writer once everything it has copied has been written to the socket. Times the write of every
+     * message this client was its last recipient of.
+     *
+     * @param metrics : the server's metrics.
+     */
+    void written(ServerMetrics metrics) {
+        for (long sequence = writtenUpTo; sequence < copiedUpTo; sequence++) {
+            long publishedAt = ring.writtenTo(sequence);
+            if (publishedAt != BroadcastRing.NOT_LAST) {
+                metrics.lastWrite(publishedAt);
+            }
+        }
+        writtenUpTo = copiedUpTo;
+    }
+
+    /**
+     * Adds up the size of the waiting messages without taking them, used to decide whether they are worth writing yet.
+     *
+     * @param limit : stop counting once this many bytes are waiting.
+     * @return : the bytes waiting, at most a message more than the limit.
+     */
+    int pendingBytes(int limit) {
+        int bytes = 0;
+        long next = ring.next();
+        for (long sequence = cursor; sequence < next && bytes < limit; sequence++) {
+            ByteBuffer frame = ring.get(sequence);
+            if (frame == null || frame == BroadcastRing.LAPPED) {
+                break;
+            }
+            bytes += frame.limit();
+        }
+        return bytes;
+    }
+
+    /**
+     * @param room : a room's ring.
+     * @return : the sequence number of the next message to write to the client, -1 if it isn't reading that ring.
+     */
+    long cursorIn(BroadcastRing room) {
+        return ring == room ? cursor : -1;
+    }
+
+    /**
+     * Records the bytes the writer has taken from the ring but couldn't write yet, counted by the inflight budget.
+     *
+     * @param bytes : the bytes held, 0 once they have been written.
+     */
+    void hold(int bytes) {
+        held = bytes;
+    }
+
+    /**
+     * @return : the bytes the writer has taken from the ring but couldn't write yet.
+     */
+    int held() {
+        return held;
+    }
+
+    /**
+     * Applies the overflow policy to a client owing too much of the inflight budget, as if its queue were full: with
+     * DROP_OLDEST the writer skips every message waiting now, otherwise the client has to be disconnected. Called by
+     * the budget's monitor, synchronized with moves so the skip is always in the ring the client is reading.
+     */
+    synchronized void shed() {
+        if (overflow == Overflow.DROP_OLDEST) {
+            shedTo = ring.next();
+        } else {
+            overflowed = true;
+        }
+        signal();
+    }
+
+    /**
+     * @return : true if the client has been shed and its writer hasn't caught up with it yet, or has overflowed.
+     */
+    boolean isShed() {
+        return overflowed || shedTo > cursor;
+    }
+
+    /**
+     * @return : the number of messages the client can fall behind.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return : true if the client has fallen too far behind with the disconnect or block policy.
+     */
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Used by writers that must never wait, such as event loops. Records how far behind the client is and applies the
+     * overflow policy, the block policy disconnects straight away.
+     *
+     * @return : false if the client has to be disconnected.
+     */
+    boolean checkDepth() {
+        long depth = ring.next() - cursor;
+        if (depth > highWater) {
+            highWater = (int) Math.min(depth, Integer.MAX_VALUE);
+        }
+        if (depth > capacity && overflow != Overflow.DROP_OLDEST) {
+            overflowed = true;
+        }
+        return !overflowed;
+    }
+
+    /**
+     * Changes the overflow policy, clients can pick their own with /setOverflow.
+     *
+     * @param overflow : the new policy.
+     * @param blockMillis : how long a sender waits with the BLOCK policy.
+     */
+    void setOverflow(Overflow overflow, long blockMillis) {
+        this.overflow = overflow;
+        this.blockMillis = blockMillis;
+    }
+
+    /**
+     * Applies a /setOverflow command from the client, in the form /setOverflow drop|disconnect|block [millis].
+     * A client's policy only changes what happens to the client itself, except for block, which makes the senders
+     * wait for it. So a client can only pick block if the server uses it, and never waits longer than the server's
+     * -blockMillis.
+     *
+     * @param wordList : the command split on spaces.
+     * @return : the reply for the client if the policy or the timeout isn't allowed, null if it has been set.
+     */
+    String setOverflow(String[] wordList) {
+        Overflow policy = wordList.length > 1 ? parseOverflow(wordList[1]) : null;
+        if (policy == null) {
+            return "Use /setOverflow followed by drop, disconnect or block.";
+        }
+        if (policy == Overflow.BLOCK && serverOverflow != Overflow.BLOCK) {
+            return "This server doesn't let clients make senders wait, use drop or disconnect.";
+        }
+        long millis = blockMillis;
+        if (wordList.length > 2) {
+            try {
+                millis = Math.max(0, Long.parseLong(wordList[2]));
+            } catch (NumberFormatException e) {
+                return "The timeout has to be a number of milliseconds.";
+            }
+        }
+        setOverflow(policy, Math.min(millis, serverBlockMillis));
+        return null;
+    }
+
+    /**
+     * @return : the number of messages waiting to be written.
+     */
+    int depth() {
+        return (int) Math.min(Math.max(0, ring.next() - cursor), capacity);
+    }
+
+    /**
+     * @return : the most messages that have been waiting at once.
+     */
+    int highWater() {
+        return highWater;
+    }
+
+    /**
+     * @return : the number of messages queued since the client connected.
+     */
+    long enqueued() {
+        return queuedBefore + ring.next() - joined;
+    }
+
+    /**
+     * @return : the number of messages skipped because the client was too far behind.
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return : a one line summary of the counters, used by the QUEUES console command.
+     */
+    String stats() {
+        return "depth " + depth() + ", max " + highWater + ", queued " + enqueued() + ", dropped " + dropped()
+                + ", policy " + overflow + (overflow == Overflow.BLOCK ? " " + blockMillis + "ms" : "");
+    }
+
+    /**
+     * Parses an overflow policy given on the command line or with /setOverflow.
+     *
+     * @param name : drop, disconnect or block.
+     * @return : the policy, null if the name isn't one.
+     */
+    static Overflow parseOverflow(String name) {
+        switch (name.toLowerCase()) {
+            case "drop":
+                return Overflow.DROP_OLDEST;
+            case "disconnect":
+                return Overflow.DISCONNECT;
+            case "block":
+                return Overflow.BLOCK;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A connection to another server of the federation. Records are queued by whichever thread produced them and written
+ * by the link's own writer thread, so a sender never waits for a peer. Every record is written as its length followed
+ * by its bytes, and whatever has been queued while the last write was going on is written together.
+ *
+ */
+class PeerLink {
+
+    // records waiting to be written before the peer is given up on, it is connected again and told every name.
+    static final int CAPACITY = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // longest record a peer can send, a message is far shorter.
+    private static final int MAX_RECORD = Wire.MAX_MESSAGE + 1024;
+
+    final Socket socket;
+    // host and port of the peer, used in server output.
+    final String address;
+    // the peer's node name and start time, set once its hello has been read.
+    String node;
+    long epoch;
+
+    private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // the last record read, grown to the longest one.
+    private byte[] record = new byte[256];
+
+    /**
+     * Constructor, starts the writer.
+     *
+     * @param socket : the connected socket.
+     * @throws IOException : thrown if the socket's streams can't be opened.
+     */
+    PeerLink(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        address = socket.getInetAddress().getHostAddress() + " : " + socket.getPort();
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        writer = new Thread(this::write, "peer-writer " + address);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record for the peer. Never waits: a peer that has fallen a whole queue behind has its link closed.
+     *
+     * @param bytes : the record, shared with the other links so it must not be changed.
+     * @return : false if the link is closed.
+     */
+    boolean send(byte[] bytes) {
+        if (closed) {
+            return false;
+        }
+        if (!queue.offer(bytes)) {
+            System.out.println("Peer " + node + " fell too far behind, closing its link.");
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next record, only called by the link's reader.
+     *
+     * @return : the record, its array is reused by the next call.
+     * @throws IOException : thrown if the link is closed or the peer sent something that isn't a record.
+     */
+    ByteBuffer read() throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_RECORD) {
+            throw new IOException("Record of " + length + " bytes from peer " + address);
+        }
+        if (record.length < length) {
+            record = new byte[Math.max(length, record.length * 2)];
+        }
+        in.readFully(record, 0, length);
+        return ByteBuffer.wrap(record, 0, length);
+    }
+
+    /**
+     * Closes the socket, which ends the reader, and stops the writer. Can be called more than once.
+     */
+    void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * The writer's loop, writes every queued record and flushes once none are left.
+     */
+    private void write() {
+        try {
+            while (!closed) {
+                byte[] next = queue.take();
+                do {
+                    out.write(next.length >>> 24);
+                    out.write(next.length >>> 16);
+                    out.write(next.length >>> 8);
+                    out.write(next.length);
+                    out.write(next);
+                } while ((next = queue.poll()) != null);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // the link is closing
+        } catch (IOException e) {
+            close();
+        }
+    }
+}
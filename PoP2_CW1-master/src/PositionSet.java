@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * A set of map positions, used for the gold and the exits. Each position is packed into one long, the row in the
+ * high half and the column in the low half, and kept in an open addressing table of longs, so adding, removing and
+ * looking up a position takes about the same time however many there are, and neither boxes anything nor allocates.
+ * A position is looked for from the slot its hash gives and on through the next slots until an empty one. Removing
+ * one moves the positions after it back into the gap, so there are no deleted markers to slow lookups down later.
+ * The table doubles once it is half full.
+ *
+ */
+final class PositionSet {
+
+    // marks an empty slot, no position packs to it as columns and rows are never negative.
+    private static final long EMPTY = -1;
+
+    private long[] slots;
+    private int mask;
+    private int size = 0;
+
+    PositionSet() {
+        slots = new long[16];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+    }
+
+    /**
+     * @param x : the column.
+     * @param y : the row.
+     * @return : true if the position wasn't in the set already.
+     */
+    boolean add(int x, int y) {
+        long key = pack(x, y);
+        int slot = find(key);
+        if (slots[slot] == key) {
+            return false;
+        }
+        slots[slot] = key;
+        if (++size * 2 > slots.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * @param x : the column.
+     * @param y : the row.
+     * @return : true if the position is in the set.
+     */
+    boolean contains(int x, int y) {
+        long key = pack(x, y);
+        return slots[find(key)] == key;
+    }
+
+    /**
+     * @param x : the column.
+     * @param y : the row.
+     * @return : true if the position was in the set.
+     */
+    boolean remove(int x, int y) {
+        long key = pack(x, y);
+        int gap = find(key);
+        if (slots[gap] != key) {
+            return false;
+        }
+        // move back every position after the gap that would no longer be found past it
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long moved = slots[slot];
+            if (moved == EMPTY) {
+                break;
+            }
+            int home = hash(moved);
+            // the position can fill the gap if the gap is between its home slot and where it is now
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                slots[gap] = moved;
+                gap = slot;
+            }
+        }
+        slots[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    private int hash(long key) {
+        // the high bits of the product mix in every bit of the column and the row
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * @param key : a packed position.
+     * @return : its slot, or the empty slot where it would go.
+     */
+    private int find(long key) {
+        int slot = hash(key);
+        while (slots[slot] != key && slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        for (long key : old) {
+            if (key != EMPTY) {
+                slots[find(key)] = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Token buckets limiting how many messages and bytes a client can send a second, so one chatty client can't take
+ * over its room's fan-out. Each bucket holds a second's worth of tokens and refills at the limit's rate, so a client
+ * can send in bursts as long as it keeps to the limit on average.
+ * Only the client's reader or event loop uses its limiter, so nothing in it is shared between threads.
+ *
+ */
+class RateLimiter {
+
+    /**
+     * What happens to a client that sends faster than its limits.
+     */
+    enum Action {
+        // stop reading from the client until it is back within its limits, TCP then holds the client back.
+        DELAY,
+        // drop the messages over the limits.
+        DROP,
+        // close the client's connection.
+        KICK
+    }
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    // tokens added every nanosecond, 0 for no limit.
+    private final double messageRate;
+    private final double byteRate;
+    // tokens in each bucket, below 0 once the client owes tokens for messages it was let through late.
+    private double messages;
+    private double bytes;
+    private long updatedAt = System.nanoTime();
+
+    /**
+     * Constructor, the buckets start full.
+     *
+     * @param messagesPerSecond : messages the client can send a second, 0 for no limit.
+     * @param bytesPerSecond : bytes the client can send a second, 0 for no limit.
+     */
+    RateLimiter(long messagesPerSecond, long bytesPerSecond) {
+        messageRate = messagesPerSecond / NANOS_PER_SECOND;
+        byteRate = bytesPerSecond / NANOS_PER_SECOND;
+        messages = messagesPerSecond;
+        bytes = bytesPerSecond;
+    }
+
+    /**
+     * Takes the tokens for a message the client has sent.
+     *
+     * @param size : the size of the message in bytes.
+     * @param late : true to take the tokens even if there aren't enough yet, for a message let through late.
+     * @return : how long the client has to wait, in nanoseconds, before its buckets have the tokens for the message,
+     *          0 if they already have. Nothing is taken if it isn't 0 and late is false.
+     */
+    long acquire(int size, boolean late) {
+        long now = System.nanoTime();
+        long elapsed = now - updatedAt;
+        updatedAt = now;
+        long wait = 0;
+        if (messageRate > 0) {
+            messages = Math.min(messageRate * NANOS_PER_SECOND, messages + elapsed * messageRate);
+            wait = Math.max(wait, (long) Math.ceil((1 - messages) / messageRate));
+        }
+        if (byteRate > 0) {
+            bytes = Math.min(byteRate * NANOS_PER_SECOND, bytes + elapsed * byteRate);
+            wait = Math.max(wait, (long) Math.ceil((size - bytes) / byteRate));
+        }
+        if (wait <= 0 || late) {
+            messages -= 1;
+            bytes -= size;
+        }
+        return Math.max(0, wait);
+    }
+
+    /**
+     * Parses a rate action given on the command line.
+     *
+     * @param name : delay, drop or kick.
+     * @return : the action, null if the name isn't one.
+     */
+    static Action parseAction(String name) {
+        switch (name.toLowerCase()) {
+            case "delay":
+                return Action.DELAY;
+            case "drop":
+                return Action.DROP;
+            case "kick":
+                return Action.KICK;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A named room clients can join with /join. Every room has its own ring and its own members, so a message is only
+ * sent to the clients in the room it was sent in, its messages are ordered on their own and busy rooms don't share
+ * anything with each other.
+ *
+ */
+class Room {
+
+    final String name;
+    // ring every message sent in the room is published to once, in the order the room's members receive them.
+    final BroadcastRing messages;
+    // the clients in the room.
+    final SessionRegistry members = new SessionRegistry();
+    // event loop the room's members are moved to with -nio, -1 to leave them where they are.
+    final int home;
+    // true for the room of a hosted DoD game, made by Games, whose messages aren't logged or sent to peers.
+    final boolean game;
+
+    // set while the room is waiting for the chat log's writer, and the next message of the ring it hasn't logged yet.
+    // Only used by ChatLog.
+    final AtomicBoolean logQueued = new AtomicBoolean();
+    long logged = 0;
+
+    /**
+     * Constructor
+     *
+     * @param name : the room's name.
+     * @param messages : the room's ring.
+     * @param home : the event loop the room's members are served by, -1 for none.
+     * @param game : true for a hosted game's room.
+     */
+    Room(String name, BroadcastRing messages, int home, boolean game) {
+        this.name = name;
+        this.messages = messages;
+        this.home = home;
+        this.game = game;
+    }
+}
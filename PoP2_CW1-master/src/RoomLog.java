@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The chat log of one room: its segments, oldest first, in the room's own directory. Records are numbered from the
+ * first message the room ever logged, and each segment's file is named after the number of its first record, so the
+ * log carries on where it stopped when the server is started again. Once a segment is full a new one is started, and
+ * only the newest few are kept.
+ *
+ * Only the chat log's writer appends. What it has appended is published to readers once per batch, together with how
+ * far into the room's ring it has logged, so a reader can tell which of the ring's messages are in the log already.
+ *
+ */
+class RoomLog {
+
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int keptSegments;
+
+    // the segments kept, oldest first, empty until the first message is logged. Only replaced by the writer.
+    private LogSegment[] segments;
+    // sequence number of the next record appended, only used by the writer.
+    private long next;
+    // what readers can see: records up to published, and the ring and cursor the writer had logged up to then.
+    private long published;
+    private BroadcastRing loggedRing;
+    private long loggedUpTo;
+
+    /**
+     * Constructor, opens the segments already in the directory. Nothing is created until a message is appended.
+     *
+     * @param directory : the room's directory.
+     * @param segmentBytes : the size of a new segment.
+     * @param keptSegments : the number of segments kept, older ones are deleted.
+     * @throws IOException : thrown if the existing segments can't be read.
+     */
+    RoomLog(Path directory, int segmentBytes, int keptSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.keptSegments = keptSegments;
+        List<LogSegment> found = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            long[] bases;
+            try (Stream<Path> files = Files.list(directory)) {
+                bases = files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.matches("\\d{20}" + SUFFIX))
+                        .mapToLong(name -> Long.parseLong(name.substring(0, 20))).sorted().toArray();
+            }
+            for (int i = Math.max(0, bases.length - keptSegments); i < bases.length; i++) {
+                found.add(new LogSegment(file(bases[i]), bases[i], segmentBytes));
+            }
+        }
+        segments = found.toArray(new LogSegment[0]);
+        next = segments.length == 0 ? 0 : last().base + last().count();
+        published = next;
+    }
+
+    /**
+     * Appends a message, starting a new segment if the last one is full. Only called by the chat log's writer.
+     *
+     * @param frame : the frame as broadcast.
+     * @throws IOException : thrown if a new segment can't be created.
+     */
+    void append(ByteBuffer frame) throws IOException {
+        if (segments.length == 0 || !last().append(frame)) {
+            if (segments.length > 0) {
+                // the full segment is forced now, the new one is synced with the rest of the log
+                last().sync();
+            }
+            Files.createDirectories(directory);
+            LogSegment segment = new LogSegment(file(next), next,
+                    Math.max(segmentBytes, frame.limit() + Integer.BYTES));
+            segment.append(frame);
+            LogSegment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = segment;
+            if (grown.length > keptSegments) {
+                grown[0].delete();
+                grown = Arrays.copyOfRange(grown, 1, grown.length);
+            }
+            synchronized (this) {
+                segments = grown;
+            }
+        }
+        next++;
+    }
+
+    /**
+     * Lets readers see what has been appended, once per batch. Only called by the chat log's writer.
+     *
+     * @param ring : the ring the messages were logged from.
+     * @param upTo : the sequence number in the ring of the next message to log.
+     */
+    synchronized void publish(BroadcastRing ring, long upTo) {
+        published = next;
+        loggedRing = ring;
+        loggedUpTo = upTo;
+    }
+
+    /**
+     * @param ring : the ring of a room that has been removed.
+     * @return : true if the log was last appended to from that ring, or not at all, rather than from a newer room's.
+     */
+    synchronized boolean closable(BroadcastRing ring) {
+        return loggedRing == null || loggedRing == ring;
+    }
+
+    /**
+     * Forces everything appended since the last sync to disk. Only called by the chat log's writer.
+     *
+     * @return : false if there was nothing to force.
+     */
+    boolean sync() {
+        return segments.length > 0 && last().sync();
+    }
+
+    /**
+     * Collects a room's most recent messages, the ones published before a point in its ring. They come from the log,
+     * apart from messages still in the ring that the log hasn't caught up with yet.
+     *
+     * @param count : the number of messages wanted.
+     * @param ring : the room's ring.
+     * @param before : the sequence number in the ring the messages end before.
+     * @return : the messages, oldest first, the logged ones sharing the log's mapping. Fewer than asked for if the
+     *          log doesn't go back that far.
+     */
+    List<ByteBuffer> last(int count, BroadcastRing ring, long before) {
+        List<ByteBuffer> frames = new ArrayList<>(count);
+        long logged;
+        synchronized (this) {
+            // the writer hasn't logged anything of a room's new ring yet
+            logged = loggedRing == ring ? loggedUpTo : 0;
+            long fromRing = Math.max(0, before - Math.max(logged, before - count));
+            // messages logged from the ring at or after the point are sent to the reader by the ring itself
+            long end = published - Math.max(0, logged - before);
+            long start = Math.max(segments.length == 0 ? 0 : segments[0].base, end - (count - fromRing));
+            read(start, end, frames);
+        }
+        long from = Math.max(Math.min(logged, before), Math.max(0, before - count));
+        for (long sequence = from; sequence < before; sequence++) {
+            ByteBuffer frame = ring.get(sequence);
+            // messages still being published or already overwritten are left out
+            if (frame != null && frame != BroadcastRing.LAPPED) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Reads published records, holding the lock.
+     *
+     * @param start : the first record's sequence number.
+     * @param end : the sequence number after the last record.
+     * @param frames : the list the frames are added to.
+     */
+    private void read(long start, long end, List<ByteBuffer> frames) {
+        if (start >= end) {
+            return;
+        }
+        int i = segments.length - 1;
+        while (segments[i].base > start) {
+            i--;
+        }
+        int position = segments[i].position((int) (start - segments[i].base));
+        for (long sequence = start; sequence < end; sequence++) {
+            if (i + 1 < segments.length && sequence == segments[i + 1].base) {
+                i++;
+                position = 0;
+            }
+            frames.add(segments[i].frame(position));
+            position = segments[i].next(position);
+        }
+    }
+
+    /**
+     * @return : the newest segment, the one appended to.
+     */
+    private LogSegment last() {
+        return segments[segments.length - 1];
+    }
+
+    /**
+     * @param base : a segment's first sequence number.
+     * @return : the segment's file.
+     */
+    private Path file(long base) {
+        return directory.resolve(String.format("%020d", base) + SUFFIX);
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every room on the server, safe to use from any thread. Clients start in the lobby and are always in exactly one
+ * room. A room is created when the first client joins it and removed once the last one leaves, apart from the lobby.
+ * Joining and leaving are rare next to messages, so they take a lock and messages never do.
+ *
+ */
+class Rooms {
+
+    // the room every client starts in and goes back to with /leave.
+    static final String LOBBY = "lobby";
+    // longest room name allowed.
+    static final int MAX_NAME = 32;
+
+    // messages sent by /history when it isn't given a count.
+    static final int DEFAULT_HISTORY = 20;
+
+    private final ServerOptions options;
+    // history of the rooms' messages, null if the server wasn't started with -logDir.
+    private final ChatLog log;
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Room lobby;
+    // home event loop of the next room created, rooms are spread over the loops in turn.
+    private int nextHome = 0;
+
+    /**
+     * Constructor, creates the lobby.
+     *
+     * @param options : the settings used for the rooms' rings.
+     * @param log : the chat log, null if history isn't kept.
+     */
+    Rooms(ServerOptions options, ChatLog log) {
+        this.options = options;
+        this.log = log;
+        // everyone starts in the lobby, so its members stay spread over every event loop
+        lobby = new Room(LOBBY, options.newBroadcastRing(), -1, false);
+        rooms.put(LOBBY, lobby);
+    }
+
+    /**
+     * @return : the room every client starts in.
+     */
+    Room lobby() {
+        return lobby;
+    }
+
+    /**
+     * @param name : a room name.
+     * @return : the room, null if nobody is in it.
+     */
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * @return : every room, the lobby included, as they are while it is iterated.
+     */
+    Iterable<Room> all() {
+        return rooms.values();
+    }
+
+    /**
+     * @return : the number of rooms, the lobby included.
+     */
+    int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Checks a room name a client asked for with /join, before it leaves anything it is in.
+     *
+     * @param name : the name, empty if none was given.
+     * @return : the reply for the client if the name can't be used, null if it can.
+     */
+    static String checkName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME) {
+            return "Use /join followed by a room name of up to " + MAX_NAME + " characters.";
+        }
+        if (name.startsWith(Games.ROOM_PREFIX)) {
+            return "Rooms starting with " + Games.ROOM_PREFIX + " belong to games, use /joingame to play in one.";
+        }
+        return null;
+    }
+
+    /**
+     * Moves a session into a room, out of the room it was in. From now on it is only sent the messages of the new
+     * room, with -replay after the room's most recent messages.
+     *
+     * @param session : the session joining.
+     * @param name : the room's name, created if nobody is in it yet.
+     * @return : the room joined, null if the name isn't valid or is a game's.
+     */
+    Room join(Session session, String name) {
+        return join(session, name, false);
+    }
+
+    /**
+     * Moves a session into a room as above, either a chat room or a hosted game's room. Only Games joins game rooms,
+     * so clients can't make or walk into one with /join.
+     *
+     * @param session : the session joining.
+     * @param name : the room's name, created if nobody is in it yet.
+     * @param game : true to join a game's room.
+     * @return : the room joined, null if the name isn't valid for that kind of room.
+     */
+    synchronized Room join(Session session, String name, boolean game) {
+        if (name.isEmpty() || name.length() > MAX_NAME || name.startsWith(Games.ROOM_PREFIX) != game) {
+            return null;
+        }
+        leave(session);
+        Room room = rooms.get(name);
+        if (room == null) {
+            room = new Room(name, options.newBroadcastRing(), nextHome++ & Integer.MAX_VALUE, game);
+            rooms.put(name, room);
+        }
+        // the queue is moved before the session is a member, so it doesn't miss the room's next message. What is
+        // replayed ends right before the first message the queue is moved to.
+        long cursor = room.messages.next();
+        if (log != null && options.replay > 0) {
+            log.replay(session, room, options.replay, cursor);
+        }
+        session.outbound.moveTo(room.messages, cursor);
+        session.room = room;
+        room.members.add(session);
+        return room;
+    }
+
+    /**
+     * Applies a /history command from the client, in the form /history [count]. The room's most recent messages are
+     * sent to the client alone, straight from the chat log.
+     *
+     * @param session : the client asking.
+     * @param wordList : the command split on spaces.
+     */
+    void history(Session session, String[] wordList) {
+        Room room = session.room;
+        if (log == null) {
+            session.outbound.reply(Frames.line("History isn't kept, the server wasn't started with -logDir."));
+            return;
+        }
+        if (room == null) {
+            return;
+        }
+        if (room.game) {
+            session.outbound.reply(Frames.line("The history of a game isn't kept."));
+            return;
+        }
+        try {
+            int count = wordList.length > 1 ? Integer.parseInt(wordList[1]) : DEFAULT_HISTORY;
+            log.replay(session, room, count, room.messages.next());
+        } catch (NumberFormatException e) {
+            session.outbound.reply(Frames.line("Use /history followed by a number of messages."));
+        }
+    }
+
+    /**
+     * Takes a session out of its room, used when it joins another or leaves the server.
+     *
+     * @param session : the session leaving.
+     */
+    synchronized void leave(Session session) {
+        Room room = session.room;
+        if (room == null) {
+            return;
+        }
+        room.members.remove(session);
+        session.room = null;
+        if (room != lobby && room.members.size() == 0) {
+            rooms.remove(room.name);
+            if (log != null) {
+                log.removed(room);
+            }
+        }
+    }
+}
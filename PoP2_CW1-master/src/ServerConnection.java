@@ -0,0 +1,618 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client's connection to the server, sending and receiving messages with either lines of text or the binary
+ * protocol in Wire. Its socket is non-blocking and served by a ClientLoop, so a JVM can hold many connections without
+ * a thread for each. Created once per client, so nothing already read from the socket is lost between reads.
+ * Sends are buffered, nothing reaches the server until flush is called, so a client can send several messages in one
+ * write. Flushing never waits for the server: the batch is handed to the loop, which writes it once the socket takes
+ * it, so a client can send message after message without waiting for the ones before to be written. Messages received
+ * are given to the listener on the loop's thread, or kept for receive if there is none, and pings from the server are
+ * answered by the loop. A binary client can also ask for the server's long messages to be compressed, they are
+ * inflated as they are received.
+ * A connection that is reconnecting is made again when it is lost, after a wait that doubles with every attempt that
+ * fails, and the client's name and room are sent again before anything else. Messages that were being written when the
+ * connection was lost are lost with it, the ones flushed after are sent once it is back.
+ *
+ */
+class ServerConnection {
+
+    /**
+     * Inner interface; told what happens on a connection, on its loop's thread so it must not wait.
+     *
+     */
+    interface Listener {
+        /**
+         * @param message : a message from the server.
+         */
+        void received(String message);
+
+        /**
+         * Called once a lost connection has been made again, before anything new is received.
+         */
+        default void reconnected() {
+        }
+
+        /**
+         * @param reconnecting : true if the connection will be made again, false if it has closed for good.
+         */
+        default void closed(boolean reconnecting) {
+        }
+    }
+
+    // longest message accepted from the server, its own limit plus the sender's name.
+    private static final int MAX_MESSAGE = 2 * Wire.MAX_MESSAGE;
+    // most bytes flushed and not yet written before the server is given up on, it has stopped reading.
+    private static final int MAX_QUEUED = 16 * 1024 * 1024;
+    private static final long CONNECT_TIMEOUT_MILLIS = 10_000;
+    // longest wait for the server to close the connection after /Exit.
+    private static final long CLOSE_TIMEOUT_MILLIS = 2_000;
+    // wait before the first attempt to connect again, doubled for every attempt that fails up to the most.
+    private static final long FIRST_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5_000;
+    // put in the inbox once the connection has closed for good, never the same object as a message.
+    private static final String END = new String("end");
+
+    private final ClientLoop loop;
+    private final InetSocketAddress server;
+    private final boolean binary;
+    private final boolean compressed;
+    // true to connect again when the connection is lost, set before open.
+    boolean reconnecting = false;
+
+    // messages sent since the last flush, only used by senders holding the connection's lock.
+    private byte[] batch = new byte[1024];
+    private int batched = 0;
+    // name and room sent again when the connection is made again.
+    private volatile String name;
+    private volatile String room;
+    // set once /Exit has been sent, and once it has been flushed, when the connection closes after writing it.
+    private boolean leaving = false;
+    private volatile boolean exiting = false;
+
+    // flushed batches waiting for the loop to write them and their total size.
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    // set while the loop has a write queued or is waiting for the socket, so a flush doesn't queue another.
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    // messages received while there is no listener.
+    private final LinkedBlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+    private volatile Listener listener;
+    private volatile int timeoutMillis = 0;
+    private volatile long bytesReceived = 0;
+    private volatile boolean closed = false;
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private final CountDownLatch ended = new CountDownLatch(1);
+    // why the first connection failed, read by open.
+    private IOException failure;
+
+    // everything below is only used by the loop.
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connecting = false;
+    private WireDecoder decoder;
+    // the batch being written, partly written if the socket took no more.
+    private ByteBuffer writing;
+    private long retryMillis = 0;
+    // time the connection's timer is due at, see ClientLoop.timer.
+    long timerAt;
+
+    /**
+     * Constructor, the connection is made by open.
+     *
+     * @param loop : the loop serving the connection.
+     * @param address : the server's address.
+     * @param port : the server's port.
+     * @param binary : true to use the binary protocol.
+     * @param compressed : true to ask for the server's long messages to be compressed, only with the binary protocol.
+     * @throws UnknownHostException : thrown if the address can't be resolved.
+     */
+    ServerConnection(ClientLoop loop, String address, int port, boolean binary, boolean compressed)
+            throws UnknownHostException {
+        this.loop = loop;
+        this.binary = binary;
+        this.compressed = compressed;
+        server = new InetSocketAddress(address, port);
+        if (server.isUnresolved()) {
+            throw new UnknownHostException(address);
+        }
+    }
+
+    /**
+     * Connects to the server, the handshake is sent straight away when the binary protocol is used. Halts the thread
+     * until the connection is made, a failure is not tried again even when reconnecting.
+     *
+     * @throws IOException : thrown if the server can't be reached.
+     */
+    void open() throws IOException {
+        loop.execute(this::connect);
+        try {
+            opened.await();
+        } catch (InterruptedException e) {
+            close();
+            throw new InterruptedIOException("Interrupted connecting to " + address());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Has the messages received from now on given to a listener, starting with any kept for receive.
+     *
+     * @param listener : the listener.
+     */
+    void listen(Listener listener) {
+        loop.execute(() -> {
+            String message;
+            while ((message = inbox.poll()) != null) {
+                if (message == END) {
+                    tell(() -> listener.closed(false));
+                } else {
+                    String received = message;
+                    tell(() -> listener.received(received));
+                }
+            }
+            this.listener = listener;
+        });
+    }
+
+    /**
+     * Sends a message to every client, with the binary protocol it can run over several lines.
+     *
+     * @param message : the message.
+     */
+    synchronized void send(String message) throws IOException {
+        send(Wire.CHAT, message);
+    }
+
+    /**
+     * Sends a line the way a user typed it: /Exit, /setName and other commands starting with a slash are commands,
+     * anything else is a message. The room joined with /join is remembered to join it again on reconnecting.
+     *
+     * @param line : the typed line.
+     */
+    synchronized void sendTyped(String line) throws IOException {
+        if (line.equals("/Exit")) {
+            exit();
+        } else if (line.startsWith("/setName ")) {
+            setName(line.substring("/setName ".length()));
+        } else {
+            if (line.startsWith("/join ")) {
+                room = line.substring("/join ".length());
+            } else if (line.equals("/leave")) {
+                room = null;
+            }
+            send(line.startsWith("/") ? Wire.COMMAND : Wire.CHAT, line);
+        }
+    }
+
+    /**
+     * @param name : the name to be shown in front of the client's messages.
+     */
+    synchronized void setName(String name) throws IOException {
+        this.name = name;
+        send(Wire.SET_NAME, name);
+    }
+
+    /**
+     * Tells the server the client is leaving, the connection closes once the server has read it and closed its side.
+     */
+    synchronized void exit() throws IOException {
+        send(Wire.EXIT, "");
+        leaving = true;
+    }
+
+    /**
+     * Hands everything sent since the last flush to the loop to be written, without waiting for it to be.
+     *
+     * @throws SocketException : thrown if the connection has closed, or the server has so much waiting for it that
+     *          it must have stopped reading, which closes the connection.
+     */
+    synchronized void flush() throws IOException {
+        if (closed) {
+            throw new SocketException("Lost connection to server");
+        }
+        if (batched == 0) {
+            return;
+        }
+        if (queued.get() + batched > MAX_QUEUED) {
+            close();
+            throw new SocketException("Server stopped reading, " + queued.get() + " bytes waiting");
+        }
+        queue(ByteBuffer.wrap(Arrays.copyOf(batch, batched)));
+        batched = 0;
+        // only once /Exit is queued, so the loop can't find nothing left to write before it is
+        if (leaving) {
+            exiting = true;
+        }
+    }
+
+    /**
+     * Halts the thread until the server sends a message, used when there is no listener.
+     *
+     * @return : the message, null if the connection has closed.
+     * @throws IOException : thrown if no message arrives within the timeout or the thread is interrupted.
+     */
+    String receive() throws IOException {
+        String message;
+        try {
+            if (timeoutMillis > 0) {
+                message = inbox.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    throw new SocketTimeoutException("Nothing received for " + timeoutMillis + "ms");
+                }
+            } else {
+                message = inbox.take();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the server");
+        }
+        if (message == END) {
+            // left for the next call
+            inbox.add(END);
+            return null;
+        }
+        return message;
+    }
+
+    /**
+     * @param millis : how long receive waits for a message before giving up, 0 to wait for ever.
+     */
+    void setTimeout(int millis) {
+        timeoutMillis = millis;
+    }
+
+    /**
+     * Closes the connection straight away, without telling the server. Can be called more than once.
+     */
+    void close() {
+        exiting = true;
+        loop.execute(this::end);
+    }
+
+    /**
+     * Halts the thread until the connection has closed for good.
+     */
+    void awaitClosed() throws InterruptedException {
+        ended.await();
+    }
+
+    /**
+     * @return : false once the connection has closed for good.
+     */
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * @return : the server's host and port, used in client output.
+     */
+    String address() {
+        return server.getAddress().getHostAddress() + " : " + server.getPort();
+    }
+
+    /**
+     * @return : the bytes received from the server so far, compressed messages counted as they arrived.
+     */
+    long bytesReceived() {
+        return bytesReceived;
+    }
+
+    private void send(int opcode, String payload) {
+        byte[] bytes;
+        if (binary) {
+            bytes = Wire.frame(opcode, payload);
+        } else if (opcode == Wire.EXIT) {
+            bytes = line("/Exit");
+        } else if (opcode == Wire.SET_NAME) {
+            bytes = line("/setName " + payload);
+        } else {
+            bytes = line(payload);
+        }
+        if (batched + bytes.length > batch.length) {
+            batch = Arrays.copyOf(batch, Math.max(batch.length * 2, batched + bytes.length));
+        }
+        System.arraycopy(bytes, 0, batch, batched, bytes.length);
+        batched += bytes.length;
+    }
+
+    /**
+     * Queues bytes to be written, from any thread.
+     */
+    private void queue(ByteBuffer bytes) {
+        queued.addAndGet(bytes.remaining());
+        outbound.add(bytes);
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(this::write);
+        }
+    }
+
+    /**
+     * Runs a listener's callback, so one that fails doesn't stop the loop.
+     */
+    private static void tell(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts connecting, on the loop. What the server has to be sent first is written before anything queued: the
+     * handshake, then on reconnecting the client's name and room.
+     */
+    private void connect() {
+        if (closed) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            decoder = binary ? new WireDecoder(MAX_MESSAGE).binary() : new WireDecoder(MAX_MESSAGE).lines();
+            if (compressed) {
+                decoder.inflating();
+            }
+            writing = greeting();
+            connecting = true;
+            if (channel.connect(server)) {
+                connected();
+            } else {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+                timerAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+                loop.timer(this);
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    /**
+     * @return : the bytes the server is sent before anything else on a new connection, null if there are none.
+     */
+    private ByteBuffer greeting() {
+        byte[] greeting = new byte[0];
+        if (binary) {
+            greeting = new byte[] {(byte) (compressed ? Wire.COMPRESSED_HANDSHAKE : Wire.HANDSHAKE)};
+        }
+        String name = this.name;
+        String room = this.room;
+        if (name != null) {
+            greeting = concat(greeting, binary ? Wire.frame(Wire.SET_NAME, name) : line("/setName " + name));
+        }
+        if (room != null) {
+            greeting = concat(greeting, binary ? Wire.frame(Wire.COMMAND, "/join " + room) : line("/join " + room));
+        }
+        return greeting.length > 0 ? ByteBuffer.wrap(greeting) : null;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    private static byte[] line(String text) {
+        return (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finishes connecting once the selector says the connection is made or has failed.
+     */
+    void finishConnect() {
+        try {
+            if (channel.finishConnect()) {
+                connected();
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    private void connected() throws IOException {
+        connecting = false;
+        retryMillis = 0;
+        if (key == null) {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        if (opened.getCount() > 0) {
+            opened.countDown();
+        } else {
+            Listener listener = this.listener;
+            if (listener != null) {
+                tell(listener::reconnected);
+            }
+        }
+        write();
+    }
+
+    /**
+     * Reads whatever the server has sent and hands every complete message on, answering pings.
+     *
+     * @param buffer : the loop's read buffer.
+     */
+    void read(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0) {
+                lost(null);
+                return;
+            }
+            bytesReceived += count;
+            buffer.flip();
+            while (decoder.next(buffer)) {
+                if (binary ? decoder.opcode() == Wire.PING
+                        : decoder.opcode() == Wire.COMMAND && decoder.text().equals("/ping")) {
+                    // the server checking the client is still there, answered without the user seeing it
+                    queue(ByteBuffer.wrap(binary ? Wire.frame(Wire.PONG, "") : line("/pong")));
+                    continue;
+                }
+                String message = decoder.text();
+                Listener listener = this.listener;
+                if (listener != null) {
+                    tell(() -> listener.received(message));
+                } else {
+                    inbox.add(message);
+                }
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    /**
+     * Writes what is waiting until the socket takes no more, then waits for the selector to say it takes more.
+     * Closes the connection once the client has exited and everything has been written.
+     */
+    void write() {
+        if (channel == null || connecting) {
+            // written once connected
+            return;
+        }
+        try {
+            while (true) {
+                if (writing == null) {
+                    writing = outbound.poll();
+                    if (writing == null) {
+                        writeScheduled.set(false);
+                        // a batch queued after the poll but before the flag was cleared
+                        if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    queued.addAndGet(-writing.remaining());
+                }
+                channel.write(writing);
+                if (writing.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (exiting && outbound.isEmpty()) {
+                // the server closes the connection once it has read /Exit, until then what it sends is still read
+                channel.shutdownOutput();
+                timerAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+                loop.timer(this);
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    /**
+     * Runs when the connection's timer is due: gives up on a connection not made in time or a server that hasn't
+     * closed the connection after /Exit, or connects again.
+     */
+    void timerDue() {
+        if (closed) {
+            return;
+        }
+        if (connecting) {
+            lost(new SocketTimeoutException("Timed out connecting to " + address()));
+        } else if (channel == null) {
+            connect();
+        } else if (exiting) {
+            end();
+        }
+    }
+
+    /**
+     * Closes the channel once the connection has been lost, connecting again later if it is reconnecting.
+     *
+     * @param cause : why, null if the server closed the connection.
+     */
+    private void lost(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closeChannel();
+        if (opened.getCount() > 0) {
+            // the first connection was never made
+            failure = cause != null ? cause : new ConnectException("Server closed the connection");
+            end();
+            return;
+        }
+        if (!reconnecting || exiting) {
+            end();
+            return;
+        }
+        retryMillis = retryMillis == 0 ? FIRST_RETRY_MILLIS : Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+        // spread out so clients that lost the same server don't all come back at once
+        long wait = retryMillis + ThreadLocalRandom.current().nextLong(retryMillis / 2 + 1);
+        timerAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+        loop.timer(this);
+        Listener listener = this.listener;
+        if (listener != null) {
+            tell(() -> listener.closed(true));
+        }
+    }
+
+    /**
+     * Closes the connection for good, on the loop.
+     */
+    private void end() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeChannel();
+        if (opened.getCount() > 0) {
+            if (failure == null) {
+                failure = new SocketException("Closed before connecting to " + address());
+            }
+            opened.countDown();
+        }
+        outbound.clear();
+        queued.set(0);
+        Listener listener = this.listener;
+        if (listener != null) {
+            tell(() -> listener.closed(false));
+        } else {
+            inbox.add(END);
+        }
+        ended.countDown();
+    }
+
+    private void closeChannel() {
+        connecting = false;
+        // whatever was being written is lost with the connection
+        writing = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            channel = null;
+            key = null;
+        }
+    }
+}
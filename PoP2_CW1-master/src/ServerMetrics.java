@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters and latency histograms of the whole server, shown by the STATS console command and written to a file
+ * every few seconds with -statsFile. Every thread records into the same instance without taking a lock, and recording
+ * never allocates, so the counters can stay on while the server is busy.
+ *
+ * A message is timed in two stages: from the moment it has been read from its sender until it has been published to
+ * its room and every member has been told, and from then until it has been written to the last member of the room.
+ * Members that leave the room before they are sent a message never write it, so that message isn't timed.
+ *
+ */
+class ServerMetrics {
+
+    // clients whose queues are listed by STATS, deepest first, QUEUES lists all of them.
+    private static final int DEEPEST_SHOWN = 10;
+
+    final LongAdder accepted = new LongAdder();
+    final LongAdder closed = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    // messages over a client's rate limit, by what was done about them.
+    final LongAdder rateDelayed = new LongAdder();
+    final LongAdder rateDropped = new LongAdder();
+    final LongAdder rateKicked = new LongAdder();
+    // messages compressed for clients that asked for it, their bytes before and after and the time it took.
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder compressedFrom = new LongAdder();
+    private final LongAdder compressedTo = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+
+    final LatencyHistogram readToEnqueue = new LatencyHistogram("read -> enqueue");
+    final LatencyHistogram enqueueToWrite = new LatencyHistogram("enqueue -> last recipient write");
+
+    private final long startedAt = System.currentTimeMillis();
+
+    /**
+     * Counts a message written to its last recipient.
+     *
+     * @param publishedAt : the System.nanoTime the message was published at, from BroadcastRing.writtenTo.
+     */
+    void lastWrite(long publishedAt) {
+        enqueueToWrite.record(System.nanoTime() - publishedAt);
+    }
+
+    /**
+     * Counts a message compressed by a client's Compressor.
+     *
+     * @param from : its bytes before.
+     * @param to : its bytes after.
+     * @param nanos : how long compressing it took.
+     */
+    void compressed(int from, int to, long nanos) {
+        compressed.increment();
+        compressedFrom.add(from);
+        compressedTo.add(to);
+        compressNanos.add(nanos);
+    }
+
+    /**
+     * Builds the report printed by STATS.
+     *
+     * @param clients : the server's connected clients.
+     * @param rooms : the server's rooms.
+     * @param games : the server's hosted games.
+     * @return : the report, several lines.
+     */
+    String report(SessionRegistry clients, Rooms rooms, Games games) {
+        Session[] sessions = clients.snapshot();
+        // depths are read once, they keep changing while the report is built
+        int[] depths = new int[sessions.length];
+        long depth = 0;
+        int deepest = 0;
+        for (int i = 0; i < sessions.length; i++) {
+            depths[i] = sessions[i].outbound.depth();
+            depth += depths[i];
+            deepest = Math.max(deepest, depths[i]);
+        }
+        long accepted = this.accepted.sum();
+        long closed = this.closed.sum();
+        StringBuilder report = new StringBuilder();
+        report.append("uptime ").append(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startedAt))
+                .append("s, connections accepted ").append(accepted).append(", active ").append(accepted - closed)
+                .append(", closed ").append(closed).append(", clients ").append(sessions.length)
+                .append(", rooms ").append(rooms.size()).append(", games ").append(games.size()).append('\n');
+        report.append("messages in ").append(messagesIn.sum()).append(" (").append(bytesIn.sum())
+                .append(" bytes), out ").append(messagesOut.sum()).append(" (").append(bytesOut.sum())
+                .append(" bytes)\n");
+        report.append("over rate limit: delayed ").append(rateDelayed.sum()).append(", dropped ")
+                .append(rateDropped.sum()).append(", kicked ").append(rateKicked.sum()).append('\n');
+        long compressed = this.compressed.sum();
+        if (compressed > 0) {
+            long from = compressedFrom.sum();
+            long to = compressedTo.sum();
+            long nanos = compressNanos.sum();
+            report.append("compressed ").append(compressed).append(" messages: ").append(from).append(" bytes sent as ")
+                    .append(to).append(" (").append(100 - to * 100 / from).append("% saved) in ")
+                    .append(LatencyHistogram.format(nanos)).append(" (").append(LatencyHistogram.format(nanos / compressed))
+                    .append(" a message)\n");
+        }
+        report.append(readToEnqueue.summary()).append('\n');
+        report.append(enqueueToWrite.summary()).append('\n');
+        report.append("queue depth total ").append(depth).append(", max ").append(deepest);
+        // the deepest queues, the clients that are furthest behind
+        for (int shown = 0; shown < DEEPEST_SHOWN; shown++) {
+            int next = -1;
+            for (int i = 0; i < depths.length; i++) {
+                if (depths[i] > 0 && (next < 0 || depths[i] > depths[next])) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            report.append("\n  #").append(sessions[next].id).append(' ').append(sessions[next].address)
+                    .append(" depth ").append(depths[next]);
+            depths[next] = 0;
+        }
+        return report.toString();
+    }
+
+    /**
+     * Starts a daemon thread appending the report to a file every few seconds, used with -statsFile.
+     *
+     * @param file : the file to append to, created if it doesn't exist.
+     * @param seconds : how often the report is written.
+     * @param report : builds the report.
+     */
+    void dumpEvery(String file, long seconds, Supplier<String> report) {
+        Thread dump = new Thread(() -> {
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(seconds);
+                    String text = "--- " + new java.util.Date() + System.lineSeparator() + report.get()
+                            + System.lineSeparator();
+                    Files.write(Paths.get(file), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                }
+            } catch (InterruptedException e) {
+                // the server is shutting down
+            } catch (IOException e) {
+                System.out.println("Could not write stats to " + file + ": " + e.getMessage());
+            }
+        }, "stats-dump");
+        dump.setDaemon(true);
+        dump.start();
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Settings shared by the threaded and the non-blocking chat server, read from the command line flags.
+ *
+ */
+class ServerOptions {
+
+    // port the server socket is bound to, -csp
+    int port = 14001;
+    // run the non-blocking event loop server, -nio
+    boolean nonBlocking = false;
+
+    // messages each client can have waiting to be written, -queue
+    int queueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    // what happens when a client's queue is full, -overflow drop|disconnect|block
+    OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+    // how long a sender waits for room with the block policy, -blockMillis
+    long blockMillis = OutboundQueue.DEFAULT_BLOCK_MILLIS;
+
+    // longest a client's messages are held back to be written together, 0 writes them at the end of every pass, -flushMicros
+    long flushMicros = 0;
+    // bytes of held back messages that make them be written straight away, -flushBytes
+    int flushBytes = 16 * 1024;
+
+    // threads the hosted DoD games are shared between, -gameThreads
+    int gameThreads = Runtime.getRuntime().availableProcessors();
+
+    // file the STATS report is appended to every few seconds, null for none, -statsFile
+    String statsFile = null;
+    // seconds between reports written to the stats file, -statsSeconds
+    long statsSeconds = 10;
+
+    // messages and bytes each client can send a second, 0 for no limit, -rateMessages and -rateBytes
+    long rateMessages = 0;
+    long rateBytes = 0;
+    // what happens to a client sending faster, -rateAction delay|drop|kick
+    RateLimiter.Action rateAction = RateLimiter.Action.DELAY;
+    // megabytes waiting to be written to clients that make the server stop reading, 0 for no limit, -inflightMB
+    long inflightMB = 0;
+
+    // directory every room's messages are logged to, null to keep no history, -logDir
+    String logDir = null;
+    // size of each file of a room's log in megabytes, -logSegmentMB
+    int logSegmentMB = 16;
+    // files of a room's log kept, older ones are deleted, -logSegments
+    int logSegments = 8;
+    // longest logged messages wait to be forced to disk, 0 forces every batch, -logSyncMillis
+    long logSyncMillis = 100;
+    // most recent messages of a room sent to a client that joins it, 0 for none, -replay
+    int replay = 0;
+
+    // seconds a client can be quiet before it is pinged, 0 to never ping, -pingSeconds
+    long pingSeconds = 30;
+    // seconds a client can be quiet before it is closed, 0 to never close idle clients and not ping them either,
+    // -idleSeconds
+    long idleSeconds = 0;
+
+    // shortest message compressed for clients that ask for compression, in bytes, -compressMin
+    int compressMin = 512;
+    // Deflater level used for them, 1 (fastest) to 9 (smallest), -compressLevel
+    int compressLevel = Deflater.BEST_SPEED;
+
+    // name of this server among its peers, null for node-<port>, -node
+    String node = null;
+    // port other servers link to this one on, 0 to accept no links, -peerPort
+    int peerPort = 0;
+    // host:port of the peer ports of the servers this one links to, -peers host:port,host:port
+    List<String> peers = new ArrayList<>();
+
+    /**
+     * Reads the flags given to the server. Invalid values are reported and the default is kept.
+     *
+     * @param args : the args passed from the main method.
+     * @return : the settings to start the server with.
+     */
+    static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (int i=0; i<args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "-nio":
+                        options.nonBlocking = true;
+                        break;
+                    case "-csp":
+                        int port = Integer.parseInt(args[++i]);
+                        // port gets changed only if it is in the range of registered ports.
+                        if (port >= 1024 && port <= 49151) {
+                            options.port = port;
+                        } else {
+                            System.out.println("Port must be between 1024 and 49151, using " + options.port);
+                        }
+                        break;
+                    case "-queue":
+                        options.queueCapacity = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-overflow":
+                        OutboundQueue.Overflow overflow = OutboundQueue.parseOverflow(args[++i]);
+                        if (overflow == null) {
+                            System.out.println("Unknown overflow policy: " + args[i] + ", use drop, disconnect or block.");
+                        } else {
+                            options.overflow = overflow;
+                        }
+                        break;
+                    case "-blockMillis":
+                        options.blockMillis = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-gameThreads":
+                        options.gameThreads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-statsFile":
+                        options.statsFile = args[++i];
+                        break;
+                    case "-statsSeconds":
+                        options.statsSeconds = Math.max(1, Long.parseLong(args[++i]));
+                        break;
+                    case "-rateMessages":
+                        options.rateMessages = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-rateBytes":
+                        options.rateBytes = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-rateAction":
+                        RateLimiter.Action action = RateLimiter.parseAction(args[++i]);
+                        if (action == null) {
+                            System.out.println("Unknown rate action: " + args[i] + ", use delay, drop or kick.");
+                        } else {
+                            options.rateAction = action;
+                        }
+                        break;
+                    case "-inflightMB":
+                        options.inflightMB = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-logDir":
+                        options.logDir = args[++i];
+                        break;
+                    case "-logSegmentMB":
+                        options.logSegmentMB = Math.max(1, Math.min(1024, Integer.parseInt(args[++i])));
+                        break;
+                    case "-logSegments":
+                        options.logSegments = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-logSyncMillis":
+                        options.logSyncMillis = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-replay":
+                        options.replay = Math.max(0, Integer.parseInt(args[++i]));
+                        break;
+                    case "-pingSeconds":
+                        options.pingSeconds = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-idleSeconds":
+                        options.idleSeconds = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-compressMin":
+                        options.compressMin = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-compressLevel":
+                        options.compressLevel = Math.max(1, Math.min(9, Integer.parseInt(args[++i])));
+                        break;
+                    case "-node":
+                        options.node = args[++i];
+                        break;
+                    case "-peerPort":
+                        int peerPort = Integer.parseInt(args[++i]);
+                        if (peerPort >= 1024 && peerPort <= 49151) {
+                            options.peerPort = peerPort;
+                        } else {
+                            System.out.println("Peer port must be between 1024 and 49151, accepting no peers.");
+                        }
+                        break;
+                    case "-peers":
+                        options.peers = Arrays.asList(args[++i].split(","));
+                        break;
+                    case "-flushMicros":
+                        options.flushMicros = Math.max(0, Long.parseLong(args[++i]));
+                        break;
+                    case "-flushBytes":
+                        options.flushBytes = Math.max(512, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        System.out.println("Unknown argument: " + args[i]);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("Incorrect value for " + args[i - 1] + ". Run with a valid value or none at all.");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return : the ring broadcast messages are published to, big enough that every client can have a full queue.
+     */
+    BroadcastRing newBroadcastRing() {
+        return new BroadcastRing(2 * queueCapacity);
+    }
+
+    /**
+     * @return : a new client's rate limiter, null if clients aren't limited.
+     */
+    RateLimiter newRateLimiter() {
+        return rateMessages > 0 || rateBytes > 0 ? new RateLimiter(rateMessages, rateBytes) : null;
+    }
+
+    /**
+     * @param metrics : the server's metrics.
+     * @return : the compressor of a new client that asked for compression.
+     */
+    Compressor newCompressor(ServerMetrics metrics) {
+        return new Compressor(compressMin, compressLevel, metrics);
+    }
+
+    /**
+     * @param ring : the server's broadcast ring.
+     * @return : an empty outbound queue for a new client using the server's default policy.
+     */
+    OutboundQueue newOutboundQueue(BroadcastRing ring) {
+        return new OutboundQueue(ring, queueCapacity, overflow, blockMillis);
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client connected to the server: its channel, name, outbound queue and counters.
+ * Replaces the untyped list of output stream and name the server used to keep for every socket.
+ *
+ */
+class Session {
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+    // longest flush delay a client can ask for, so nothing is held back for long enough to be noticed.
+    static final long MAX_FLUSH_MICROS = 100_000;
+    // longest anything for the client is held back waiting for its first byte, a binary client sends its handshake
+    // as soon as it connects.
+    static final long HANDSHAKE_WAIT_MILLIS = 250;
+
+    final long id;
+    final SocketChannel channel;
+    // host and port of the client, used in server output and the has left message.
+    final String address;
+    final OutboundQueue outbound;
+    // the server's metrics, the session's counters are added to them as well.
+    private final ServerMetrics metrics;
+    final long connectedAt = System.currentTimeMillis();
+    // when the client's protocol is settled on lines of text if its first byte hasn't said otherwise.
+    private final long protocolDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_WAIT_MILLIS);
+    // counted down once the protocol is settled, binary and compressor are only set by the settle that does it.
+    private final CountDownLatch settled = new CountDownLatch(1);
+    // true if the client sent the Wire handshake, read by the client's writer once the protocol is settled.
+    boolean binary = false;
+    // room the client is in, null until it has joined the lobby and after it has left. Only changed by Rooms.
+    volatile Room room;
+    // DoD game the client is playing, null if none. Only changed by Games.
+    volatile Game game;
+    // limits how fast the client can send, null for no limit. Set before the client is read from.
+    RateLimiter limiter;
+    // watches for the client going quiet, null without -idleSeconds. Set before the client is read from.
+    Heartbeat heartbeat;
+    // compresses the long messages sent to the client, null unless it asked for compression. Set when the protocol is
+    // settled, only used by the client's writer.
+    Compressor compressor;
+
+    private volatile String name;
+    // longest the client's messages are held back so they can be written together, 0 for interactive clients.
+    private volatile long flushDelayNanos = 0;
+    // "[name] " encoded once when the name changes, put in front of every message the client sends.
+    private volatile byte[] nameTag = Frames.nameTag(null);
+
+    // counters, each one is only changed by the client's reader or by its writer so they don't need to be atomic.
+    private volatile long messagesIn = 0;
+    private volatile long bytesIn = 0;
+    private volatile long messagesOut = 0;
+    private volatile long bytesOut = 0;
+    // set by the first close, so the server counts every connection closed once.
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Constructor
+     *
+     * @param channel : the client's channel.
+     * @param outbound : the client's cursor into the broadcast ring.
+     * @param metrics : the server's metrics, counts the connection as accepted.
+     */
+    Session(SocketChannel channel, OutboundQueue outbound, ServerMetrics metrics) {
+        this.id = nextId.getAndIncrement();
+        this.channel = channel;
+        this.outbound = outbound;
+        this.metrics = metrics;
+        metrics.accepted.increment();
+        this.address = channel.socket().getInetAddress().getHostAddress() + " : " + channel.socket().getPort();
+    }
+
+    /**
+     * @return : the name set with /setName, null until the client sets one.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Only the registry renames sessions, so it can keep its view of the clients up to date.
+     *
+     * @param name : the new name.
+     */
+    void setName(String name) {
+        this.nameTag = Frames.nameTag(name);
+        this.name = name;
+    }
+
+    /**
+     * @return : the client's encoded "[name] " tag.
+     */
+    byte[] getNameTag() {
+        return nameTag;
+    }
+
+    /**
+     * @return : how long the client's messages can be held back before they are written, in nanoseconds.
+     */
+    long getFlushDelayNanos() {
+        return flushDelayNanos;
+    }
+
+    /**
+     * @param micros : how long the client's messages can be held back before they are written, in microseconds.
+     */
+    void setFlushDelay(long micros) {
+        flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, Math.min(micros, MAX_FLUSH_MICROS)));
+    }
+
+    /**
+     * Applies a /setFlush command from the client, in the form /setFlush micros. Interactive clients use 0 so
+     * nothing they are sent is held back, busy clients can use a longer delay to have more messages written at once.
+     *
+     * @param wordList : the command split on spaces.
+     * @return : the reply for the client if the delay isn't a number, null if it has been set.
+     */
+    String setFlushDelay(String[] wordList) {
+        try {
+            setFlushDelay(Long.parseLong(wordList[1]));
+            return null;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "Use /setFlush followed by the number of microseconds messages can be held back.";
+        }
+    }
+
+    /**
+     * Settles which protocol the client is written to. The client is in the registry from the moment it connects, as
+     * a client using lines of text, and its first byte can switch it to the binary protocol as long as nothing has
+     * been written to it yet. The first call wins.
+     *
+     * @param binary : true if the client sent the Wire handshake.
+     * @param compressor : compresses the client's long messages, null for none.
+     * @return : false if the protocol was already settled the other way.
+     */
+    synchronized boolean settle(boolean binary, Compressor compressor) {
+        if (settled.getCount() != 0) {
+            this.binary = binary;
+            this.compressor = compressor;
+            settled.countDown();
+        }
+        return this.binary == binary;
+    }
+
+    /**
+     * @return : true once the protocol is settled, nothing is written to the client before then.
+     */
+    boolean isSettled() {
+        return settled.getCount() == 0;
+    }
+
+    /**
+     * @return : the System.nanoTime after which the protocol is settled on lines of text.
+     */
+    long getProtocolDeadline() {
+        return protocolDeadline;
+    }
+
+    /**
+     * Waits for the client's first byte to settle its protocol, settling on lines of text once the deadline has passed.
+     * Called by the client's writer before it writes anything.
+     *
+     * @throws InterruptedException : thrown if the writer is stopped while waiting.
+     */
+    void awaitProtocol() throws InterruptedException {
+        if (!settled.await(protocolDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            settle(false, null);
+        }
+    }
+
+    /**
+     * Counts a message read from the client. Only called by the client's reader.
+     *
+     * @param bytes : the size of the message.
+     */
+    void receivedMessage(int bytes) {
+        messagesIn++;
+        bytesIn += bytes;
+        metrics.messagesIn.increment();
+        metrics.bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts messages written to the client together. Only called by the client's writer.
+     *
+     * @param messages : the number of messages written.
+     * @param bytes : their total size.
+     */
+    void sentMessages(int messages, int bytes) {
+        messagesOut += messages;
+        bytesOut += bytes;
+        metrics.messagesOut.add(messages);
+        metrics.bytesOut.add(bytes);
+    }
+
+    /**
+     * Closes the client's channel, which ends its read loop.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            metrics.closed.increment();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return : true once the client's channel has been closed.
+     */
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * @return : a one line summary of the client, used by the QUEUES console command.
+     */
+    String stats() {
+        Room current = room;
+        return "#" + id + " " + address + " [" + name + "] room " + (current == null ? "-" : current.name) + ", in " + messagesIn + " (" + bytesIn + " bytes), out "
+                + messagesOut + " (" + bytesOut + " bytes), " + outbound.stats();
+    }
+}
@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Every session connected to the server, safe to use from any thread.
+ * Broadcasting walks an array of the sessions which is only rebuilt when a client joins, leaves or is renamed, so
+ * nothing is copied per message and readers never see the registry change under them.
+ *
+ * The server's registry of all its clients also keeps who has each name, so two clients can't use the same one. With
+ * a federation it knows the names used on the other servers as well: every name taken here is announced to them and
+ * theirs to this one. Two clients on different servers can take the same name before either hears of the other, then
+ * the name goes to the one that took it first, the same way on every server, and the other client loses it.
+ *
+ */
+class SessionRegistry {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    // immutable copy of the sessions, replaced as a whole on every change.
+    private volatile Session[] snapshot = EMPTY;
+
+    // who has each name, here or on another server. Rooms' registries never rename anyone so theirs stays empty.
+    private final HashMap<String, NameClaim> names = new HashMap<>();
+    // servers the names are announced to, null if the server isn't federated.
+    private Federation federation;
+    // node names are claimed by, "" if the server isn't federated.
+    private String node = "";
+
+    /**
+     * A name in use and who took it when.
+     */
+    private static final class NameClaim {
+        final String node;
+        final long claimedAt;
+        // the client with the name, null if it is on another server.
+        final Session session;
+
+        NameClaim(String node, long claimedAt, Session session) {
+            this.node = node;
+            this.claimedAt = claimedAt;
+            this.session = session;
+        }
+
+        /**
+         * @param other : a claim to the same name from another server.
+         * @return : true if this claim keeps the name, the earlier one or on a tie the one from the first node by name.
+         */
+        boolean before(NameClaim other) {
+            return claimedAt != other.claimedAt ? claimedAt < other.claimedAt : node.compareTo(other.node) < 0;
+        }
+    }
+
+    /**
+     * Makes the registry announce its names to a federation and take in the names used on the other servers.
+     *
+     * @param federation : the server's federation.
+     */
+    synchronized void federate(Federation federation) {
+        this.federation = federation;
+        this.node = federation.node;
+    }
+
+    /**
+     * Adds a newly connected session.
+     *
+     * @param session : the session to add.
+     */
+    void add(Session session) {
+        sessions.put(session.id, session);
+        rebuild();
+    }
+
+    /**
+     * Removes a session that has left.
+     *
+     * @param session : the session to remove.
+     * @return : false if it had already been removed.
+     */
+    boolean remove(Session session) {
+        if (sessions.remove(session.id) == null) {
+            return false;
+        }
+        if (session.getName() != null) {
+            synchronized (this) {
+                release(session);
+            }
+        }
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Changes the name of a session, if nobody else here or on another server has it.
+     *
+     * @param session : the session to rename.
+     * @param name : the new name.
+     * @return : false if the name is taken, the session keeps its name.
+     */
+    synchronized boolean rename(Session session, String name) {
+        NameClaim held = names.get(name);
+        if (held != null && held.session != session) {
+            return false;
+        }
+        if (held == null) {
+            release(session);
+            NameClaim claim = new NameClaim(node, System.currentTimeMillis(), session);
+            names.put(name, claim);
+            if (federation != null) {
+                federation.claimed(name, claim.claimedAt);
+            }
+        }
+        session.setName(name);
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Takes in a name taken on another server. If a client here took it later it loses it.
+     *
+     * @param name : the name.
+     * @param node : the server it was taken on.
+     * @param claimedAt : when it was taken, in milliseconds since the epoch.
+     * @return : the client here that lost the name, null if none did.
+     */
+    synchronized Session claimed(String name, String node, long claimedAt) {
+        NameClaim claim = new NameClaim(node, claimedAt, null);
+        NameClaim held = names.get(name);
+        if (held != null && !held.node.equals(node) && held.before(claim)) {
+            // the other server hears of the earlier claim as well and gives the name up there
+            return null;
+        }
+        names.put(name, claim);
+        if (held == null || held.session == null) {
+            return null;
+        }
+        held.session.setName(null);
+        rebuild();
+        return held.session;
+    }
+
+    /**
+     * Frees a name given up on another server.
+     *
+     * @param name : the name.
+     * @param node : the server it was given up on.
+     */
+    synchronized void released(String name, String node) {
+        NameClaim held = names.get(name);
+        if (held != null && held.session == null && held.node.equals(node)) {
+            names.remove(name);
+        }
+    }
+
+    /**
+     * Frees every name taken on a server, used when the link to it is lost or it has started again.
+     *
+     * @param node : the server.
+     */
+    synchronized void forget(String node) {
+        names.values().removeIf(claim -> claim.session == null && claim.node.equals(node));
+    }
+
+    /**
+     * Hands every name taken here to a consumer while nothing can be renamed, so a peer that has just linked up is
+     * told all of them before any later change.
+     *
+     * @param each : given each name and when it was taken.
+     */
+    synchronized void localNames(BiConsumer<String, Long> each) {
+        names.forEach((name, claim) -> {
+            if (claim.session != null) {
+                each.accept(name, claim.claimedAt);
+            }
+        });
+    }
+
+    /**
+     * Answers /who.
+     *
+     * @param shown : the most names listed.
+     * @return : how many names are in use here and on the other servers, and the first of them.
+     */
+    synchronized String who(int shown) {
+        List<String> listed = new ArrayList<>();
+        int elsewhere = 0;
+        for (java.util.Map.Entry<String, NameClaim> entry : names.entrySet()) {
+            NameClaim claim = entry.getValue();
+            if (claim.session == null) {
+                elsewhere++;
+            }
+            if (listed.size() < shown) {
+                listed.add(claim.session == null ? entry.getKey() + " (" + claim.node + ")" : entry.getKey());
+            }
+        }
+        if (listed.isEmpty()) {
+            return "Nobody has set a name.";
+        }
+        String list = String.join(", ", listed) + (names.size() > shown ? ", ..." : "");
+        return names.size() + " names in use, " + elsewhere + " on other servers: " + list;
+    }
+
+    /**
+     * Frees the name of a session that is leaving or being renamed, only called holding the lock.
+     *
+     * @param session : the session.
+     */
+    private void release(Session session) {
+        String name = session.getName();
+        if (name == null) {
+            return;
+        }
+        NameClaim held = names.get(name);
+        if (held != null && held.session == session) {
+            names.remove(name);
+            if (federation != null) {
+                federation.released(name);
+            }
+        }
+    }
+
+    /**
+     * @param id : the id of a session.
+     * @return : the session, null if it isn't connected.
+     */
+    Session get(long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * @return : every connected session, the array must not be changed.
+     */
+    Session[] snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return : the number of connected sessions.
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Replaces the snapshot. Joins, leaves and renames are rare next to messages, so they pay for the copy.
+     */
+    private synchronized void rebuild() {
+        snapshot = sessions.isEmpty() ? EMPTY : sessions.values().toArray(EMPTY);
+    }
+}
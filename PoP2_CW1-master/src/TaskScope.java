@@ -0,0 +1,92 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Owns every thread the threaded server starts, the accept loop and one task per client.
+ * Replaces the set of threads that used to be joined one by one at shutdown: tasks are forked into the scope, remove
+ * themselves when they finish, and the server waits for the scope to be empty before it closes.
+ * Every task runs on its own platform thread.
+ *
+ */
+class TaskScope implements AutoCloseable {
+
+    // threads of running tasks, so they can be interrupted on shutdown.
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    // lock used by join to wait until the last task has finished.
+    private final Object finished = new Object();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Starts a task on its own thread inside the scope.
+     *
+     * @param task : the task to run.
+     * @return : the thread the task runs on.
+     */
+    Thread fork(Runnable task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                threads.remove(Thread.currentThread());
+                if (threads.isEmpty()) {
+                    synchronized (finished) {
+                        finished.notifyAll();
+                    }
+                }
+            }
+        });
+        threads.add(thread);
+        if (shutdown) {
+            // scope is closing, the task is not started.
+            threads.remove(thread);
+            return thread;
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return : the number of tasks still running.
+     */
+    int size() {
+        return threads.size();
+    }
+
+    /**
+     * Stops new tasks from starting and interrupts the running ones.
+     */
+    void shutdown() {
+        shutdown = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Halts the calling thread until every task in the scope has finished.
+     *
+     * @throws InterruptedException : thrown if the calling thread is interrupted while waiting.
+     */
+    void join() throws InterruptedException {
+        synchronized (finished) {
+            while (!threads.isEmpty()) {
+                finished.wait(100);
+            }
+        }
+    }
+
+    /**
+     * Shuts the scope down and waits for its tasks. If the calling thread is interrupted it stops waiting and keeps
+     * its interrupt status, so close can be used in a try-with-resources block.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pings quiet clients and closes idle ones, for every client of the server with one thread, set with -pingSeconds and
+ * -idleSeconds. Every client's Heartbeat is kept in the slot of the tick it is next due at, a slot holding every tick
+ * that is a multiple of the number of slots apart, so each tick only looks at the heartbeats in one slot. A
+ * heartbeat's deadline only changes when the wheel reaches it, readers just note the tick they last heard from their
+ * client at, so reading never takes a lock, allocates or touches the wheel's slots. A heartbeat is looked at a couple
+ * of times every -idleSeconds at most, however many messages its client sends.
+ *
+ * A client that has left is dropped when its heartbeat next comes due. While the inflight budget has paused reading
+ * no client can be heard from, so nobody is pinged or closed then, and every client is counted as heard from when
+ * reading resumes.
+ *
+ */
+class TimingWheel {
+
+    // length of a tick, the precision of pings and timeouts.
+    static final long TICK_MILLIS = 100;
+    // most slots, a heartbeat due further ahead than this many ticks is passed over once a turn until it is due.
+    private static final int MAX_SLOTS = 1 << 16;
+
+    private final long pingTicks;
+    private final long idleTicks;
+    private final Heartbeat[] slots;
+    private final int mask;
+    // heartbeats of new clients, put in their slots by the wheel's thread.
+    private final ConcurrentLinkedQueue<Heartbeat> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    // ticks since the wheel started, read by every reader.
+    private volatile long tick = 0;
+    // set while the inflight budget has paused reading, and the tick reading last resumed at.
+    private volatile boolean readsPaused = false;
+    private volatile long readsResumedAt = 0;
+
+    // counters shown by STATS, only changed by the wheel's thread.
+    private volatile long heartbeats = 0;
+    private volatile long pings = 0;
+    private volatile long expired = 0;
+
+    /**
+     * Constructor, starts the wheel's thread.
+     *
+     * @param pingSeconds : how long a client can be quiet before it is pinged, 0 to never ping.
+     * @param idleSeconds : how long a client can be quiet before it is closed.
+     */
+    TimingWheel(long pingSeconds, long idleSeconds) {
+        idleTicks = TimeUnit.SECONDS.toMillis(idleSeconds) / TICK_MILLIS;
+        long ping = TimeUnit.SECONDS.toMillis(pingSeconds) / TICK_MILLIS;
+        // a ping no earlier than the timeout is never sent
+        pingTicks = ping > 0 && ping < idleTicks ? ping : idleTicks;
+        int size = 1;
+        while (size <= idleTicks && size < MAX_SLOTS) {
+            size <<= 1;
+        }
+        slots = new Heartbeat[size];
+        mask = size - 1;
+        thread = new Thread(this::run, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param options : the server's settings.
+     * @return : the wheel, null if the server was started with -idleSeconds 0.
+     */
+    static TimingWheel open(ServerOptions options) {
+        return options.idleSeconds > 0 ? new TimingWheel(options.pingSeconds, options.idleSeconds) : null;
+    }
+
+    /**
+     * @return : the current tick.
+     */
+    long tick() {
+        return tick;
+    }
+
+    /**
+     * Called by the inflight budget when it pauses or resumes reading from every client.
+     *
+     * @param paused : true if reading has been paused.
+     */
+    void pauseReads(boolean paused) {
+        if (!paused) {
+            readsResumedAt = tick;
+        }
+        readsPaused = paused;
+    }
+
+    /**
+     * Starts watching a new client.
+     *
+     * @param session : the client.
+     * @param ping : sends it a ping, run by the wheel's thread.
+     * @param expire : closes it the way /Exit does, run by the wheel's thread.
+     * @return : the client's heartbeat, told by its reader whenever it is heard from.
+     */
+    Heartbeat add(Session session, Runnable ping, Runnable expire) {
+        Heartbeat heartbeat = new Heartbeat(this, session, ping, expire);
+        added.add(heartbeat);
+        return heartbeat;
+    }
+
+    /**
+     * Stops the wheel's thread, used when the server shuts down.
+     */
+    void close() {
+        thread.interrupt();
+    }
+
+    /**
+     * @return : a summary for STATS.
+     */
+    String stats() {
+        return "heartbeats: watching " + heartbeats + ", pings sent " + pings + ", idle clients closed " + expired;
+    }
+
+    /**
+     * The wheel's loop, one tick every TICK_MILLIS. A tick that comes late is caught up on straight away.
+     */
+    private void run() {
+        long start = System.nanoTime();
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        try {
+            while (true) {
+                long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                long now = tick + 1;
+                tick = now;
+                Heartbeat heartbeat;
+                while ((heartbeat = added.poll()) != null) {
+                    heartbeats++;
+                    schedule(heartbeat, heartbeat.heardAt + pingTicks, now);
+                }
+                advance(now);
+            }
+        } catch (InterruptedException e) {
+            // the server is shutting down
+        }
+    }
+
+    /**
+     * Looks at every heartbeat in the tick's slot.
+     *
+     * @param now : the tick.
+     */
+    private void advance(long now) {
+        int index = (int) (now & mask);
+        Heartbeat heartbeat = slots[index];
+        slots[index] = null;
+        while (heartbeat != null) {
+            Heartbeat next = heartbeat.next;
+            heartbeat.next = null;
+            check(heartbeat, now);
+            heartbeat = next;
+        }
+    }
+
+    /**
+     * Pings, closes or moves on a heartbeat in the slot of the current tick.
+     *
+     * @param heartbeat : the heartbeat.
+     * @param now : the current tick.
+     */
+    private void check(Heartbeat heartbeat, long now) {
+        if (heartbeat.session.isClosed()) {
+            heartbeats--;
+            return;
+        }
+        if (heartbeat.due > now) {
+            // due on a later turn of the wheel
+            schedule(heartbeat, heartbeat.due, now);
+            return;
+        }
+        // nothing is read while reading is paused, which doesn't make the client quiet
+        long heardAt = readsPaused ? now : Math.max(heartbeat.heardAt, readsResumedAt);
+        if (now < heardAt + pingTicks) {
+            // heard from since it was scheduled
+            schedule(heartbeat, heardAt + pingTicks, now);
+        } else if (now >= heardAt + idleTicks) {
+            heartbeats--;
+            expired++;
+            run(heartbeat.expire);
+        } else {
+            // an answer can come in the tick the ping was sent in, the client was quiet for a while before that
+            if (heartbeat.pingedAt <= heardAt) {
+                heartbeat.pingedAt = now;
+                pings++;
+                run(heartbeat.ping);
+            }
+            schedule(heartbeat, heardAt + idleTicks, now);
+        }
+    }
+
+    /**
+     * Puts a heartbeat in the slot of the tick it is due at, no earlier than the next tick.
+     *
+     * @param heartbeat : the heartbeat, in no slot.
+     * @param due : the tick.
+     * @param now : the current tick.
+     */
+    private void schedule(Heartbeat heartbeat, long due, long now) {
+        heartbeat.due = Math.max(due, now + 1);
+        int index = (int) (heartbeat.due & mask);
+        heartbeat.next = slots[index];
+        slots[index] = heartbeat;
+    }
+
+    /**
+     * Runs a heartbeat's action, so one that fails doesn't stop the wheel.
+     *
+     * @param action : the action.
+     */
+    private static void run(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
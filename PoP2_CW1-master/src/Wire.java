@@ -0,0 +1,94 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol clients can use instead of lines of text.
+ * A client picks it by sending HANDSHAKE as its very first byte, which can never start a line of UTF-8 text, so the
+ * server tells the two apart without asking. After that every message either way is a frame: a varint length, then
+ * an opcode and the payload, the length counting both. Payloads are UTF-8 text and may contain line breaks, so a
+ * multi-line message such as a DoD map is sent as one message rather than one per line.
+ *
+ * A client that sends COMPRESSED_HANDSHAKE instead uses the binary protocol with compression: every message the server
+ * sends it that is long enough comes as a DEFLATE frame, whose payload is the opcode and payload of the message
+ * compressed with the connection's one zlib stream and ended with a sync flush. The stream runs for the whole
+ * connection, so a message is compressed against everything sent before it, and the client inflates every DEFLATE
+ * frame with its own stream in the order they arrive.
+ *
+ * A client the server hasn't heard from for a while is sent a PING, or the line /ping with lines of text, and has to
+ * answer with a PONG, or /pong, or anything else before it is closed as idle.
+ *
+ */
+final class Wire {
+
+    // first byte sent by a client using the binary protocol.
+    static final int HANDSHAKE = 0xB1;
+    // first byte sent by a client using the binary protocol that wants the server's long messages compressed.
+    static final int COMPRESSED_HANDSHAKE = 0xB2;
+
+    // a message to every client, and from the server a message to show.
+    static final int CHAT = 1;
+    // the payload is the client's new name.
+    static final int SET_NAME = 2;
+    // the client is leaving, no payload.
+    static final int EXIT = 3;
+    // any other command, written the way it would be typed, such as "/setOverflow drop".
+    static final int COMMAND = 4;
+    // a compressed message, only sent by the server to clients that asked for compression.
+    static final int DEFLATE = 5;
+    // sent by the server to a client it hasn't heard from for a while, which answers with PONG.
+    static final int PING = 6;
+    static final int PONG = 7;
+
+    // longest message payload a server accepts, anything longer closes the connection.
+    static final int MAX_MESSAGE = 64 * 1024;
+    // longest varint a frame length can take, enough for any length the decoder accepts.
+    static final int MAX_VARINT = 4;
+
+    private Wire() {
+    }
+
+    /**
+     * @param value : a length, not negative.
+     * @return : the number of bytes the length takes as a varint.
+     */
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a length as a varint, seven bits per byte starting with the lowest, the top bit set on every byte but
+     * the last.
+     *
+     * @param value : the length, not negative.
+     * @param destination : the array to write into.
+     * @param offset : where in the array to start.
+     * @return : the index after the last byte written.
+     */
+    static int writeVarint(int value, byte[] destination, int offset) {
+        while ((value & ~0x7F) != 0) {
+            destination[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        destination[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Builds a whole frame, used by the clients.
+     *
+     * @param opcode : what the frame is.
+     * @param payload : the text sent with it, empty for none.
+     * @return : the encoded frame.
+     */
+    static byte[] frame(int opcode, String payload) {
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[varintLength(text.length + 1) + 1 + text.length];
+        int offset = writeVarint(text.length + 1, frame, 0);
+        frame[offset++] = (byte) opcode;
+        System.arraycopy(text, 0, frame, offset, text.length);
+        return frame;
+    }
+}
@@ -0,0 +1,281 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits the bytes read from a connection into messages, for both the line protocol and the binary protocol in Wire.
+ * Bytes are fed in as they arrive, in pieces of any size, and a message is only turned into a string once it is
+ * complete. Its one buffer only grows as far as the longest message allowed, anything longer is refused rather than
+ * buffered, so a client can't make the server hold on to an unbounded amount of memory.
+ * A client's decoder can also inflate the compressed messages a server sends, with one Inflater for the connection.
+ *
+ */
+class WireDecoder {
+
+    private static final int UNKNOWN = 0;
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    private final int maxLength;
+    private int mode = UNKNOWN;
+    // true if the client asked for compression in its handshake.
+    private boolean compressed = false;
+    // inflates DEFLATE frames, null unless the decoder was made to with inflating.
+    private Inflater inflater;
+    // the last DEFLATE frame's message, grown to the longest one.
+    private byte[] inflated;
+
+    // bytes of the message being decoded, only allocated once the first message arrives.
+    private byte[] buffer;
+    private int length = 0;
+    // set once a message has been returned, the next call starts a new one.
+    private boolean complete = false;
+
+    // size of the binary frame being read, -1 while its varint length is still being read.
+    private int frameLength = -1;
+    private int varint = 0;
+    private int varintShift = 0;
+
+    // the last complete message, its payload is in payload.
+    private byte[] payload;
+    private int opcode;
+    private int payloadOffset;
+    private int payloadLength;
+    private int messageBytes;
+
+    /**
+     * Constructor, for a server which finds out which protocol the client uses from its first byte.
+     *
+     * @param maxLength : longest message payload accepted.
+     */
+    WireDecoder(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Makes the decoder read binary frames straight away, used by clients since the server sends no handshake.
+     *
+     * @return : this decoder.
+     */
+    WireDecoder binary() {
+        mode = BINARY;
+        return this;
+    }
+
+    /**
+     * Makes the decoder read lines of text straight away, used by clients of the line protocol.
+     *
+     * @return : this decoder.
+     */
+    WireDecoder lines() {
+        mode = TEXT;
+        return this;
+    }
+
+    /**
+     * Makes the decoder inflate DEFLATE frames, used by clients that asked for compression.
+     *
+     * @return : this decoder.
+     */
+    WireDecoder inflating() {
+        inflater = new Inflater();
+        return this;
+    }
+
+    /**
+     * Finds out which protocol the client uses from its first byte, taking the byte if it is the handshake.
+     *
+     * @param in : bytes read from the client.
+     * @return : true once the protocol is known.
+     */
+    boolean detect(ByteBuffer in) {
+        if (mode == UNKNOWN && in.hasRemaining()) {
+            int first = in.get(in.position()) & 0xFF;
+            if (first == Wire.HANDSHAKE || first == Wire.COMPRESSED_HANDSHAKE) {
+                in.get();
+                mode = BINARY;
+                compressed = first == Wire.COMPRESSED_HANDSHAKE;
+            } else {
+                mode = TEXT;
+            }
+        }
+        return mode != UNKNOWN;
+    }
+
+    /**
+     * @return : true if the client uses the binary protocol.
+     */
+    boolean isBinary() {
+        return mode == BINARY;
+    }
+
+    /**
+     * @return : true if the client asked for the server's long messages to be compressed.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Decodes the next message, taking bytes from the buffer until it is complete or the buffer is empty.
+     * A line starting with a slash is a COMMAND and any other line is a CHAT, binary frames carry their own opcode.
+     *
+     * @param in : bytes read from the client, its position is moved past the bytes used.
+     * @return : true if a message is complete, false if more bytes are needed.
+     * @throws ProtocolException : thrown if the message is too long or its frame can't be read.
+     */
+    boolean next(ByteBuffer in) throws ProtocolException {
+        if (complete) {
+            complete = false;
+            length = 0;
+            frameLength = -1;
+        }
+        if (!detect(in)) {
+            return false;
+        }
+        complete = mode == TEXT ? readLine(in) : readFrame(in);
+        return complete;
+    }
+
+    /**
+     * @return : the opcode of the last complete message, one of the opcodes in Wire.
+     */
+    int opcode() {
+        return opcode;
+    }
+
+    /**
+     * @return : the payload of the last complete message.
+     */
+    String text() {
+        return payloadLength == 0 ? "" : new String(payload, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return : how many bytes the last complete message took on the wire, used by the session counters.
+     */
+    int messageBytes() {
+        return messageBytes;
+    }
+
+    private boolean readLine(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        int limit = in.limit();
+        for (int i = start; i < limit; i++) {
+            if (in.get(i) == '\n') {
+                append(in, i - start);
+                in.position(i + 1);
+                messageBytes = length + 1;
+                payload = buffer;
+                payloadOffset = 0;
+                payloadLength = length > 0 && buffer[length - 1] == '\r' ? length - 1 : length;
+                opcode = payloadLength > 0 && buffer[0] == '/' ? Wire.COMMAND : Wire.CHAT;
+                return true;
+            }
+        }
+        append(in, limit - start);
+        return false;
+    }
+
+    private boolean readFrame(ByteBuffer in) throws ProtocolException {
+        while (frameLength < 0) {
+            if (!in.hasRemaining()) {
+                return false;
+            }
+            int b = in.get() & 0xFF;
+            varint |= (b & 0x7F) << varintShift;
+            varintShift += 7;
+            if ((b & 0x80) == 0) {
+                frameLength = varint;
+                varint = 0;
+                varintShift = 0;
+                // the length counts the opcode, so a frame is never empty
+                if (frameLength < 1 || frameLength > maxLength + 1) {
+                    throw new ProtocolException("Bad frame length: " + frameLength);
+                }
+            } else if (varintShift >= 7 * Wire.MAX_VARINT) {
+                throw new ProtocolException("Bad frame length");
+            }
+        }
+        append(in, Math.min(in.remaining(), frameLength - length));
+        if (length < frameLength) {
+            return false;
+        }
+        messageBytes = Wire.varintLength(frameLength) + frameLength;
+        opcode = buffer[0] & 0xFF;
+        if (opcode == Wire.DEFLATE && inflater != null) {
+            return inflate();
+        }
+        payload = buffer;
+        payloadOffset = 1;
+        payloadLength = frameLength - 1;
+        return true;
+    }
+
+    /**
+     * Inflates the DEFLATE frame in the buffer into the message it holds.
+     *
+     * @return : true, the message is complete.
+     * @throws ProtocolException : thrown if the frame can't be inflated or holds a message that is too long.
+     */
+    private boolean inflate() throws ProtocolException {
+        if (inflated == null) {
+            inflated = new byte[256];
+        }
+        inflater.setInput(buffer, 1, frameLength - 1);
+        int size = 0;
+        try {
+            while (true) {
+                size += inflater.inflate(inflated, size, inflated.length - size);
+                if (size < inflated.length) {
+                    // the output had room to spare, so all the input was used
+                    break;
+                }
+                if (size > maxLength) {
+                    throw new ProtocolException("Message longer than " + maxLength + " bytes");
+                }
+                inflated = Arrays.copyOf(inflated, Math.min(size * 2, maxLength + 1));
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed frame: " + e.getMessage());
+        }
+        if (size == 0) {
+            throw new ProtocolException("Empty compressed frame");
+        }
+        opcode = inflated[0] & 0xFF;
+        payload = inflated;
+        payloadOffset = 1;
+        payloadLength = size - 1;
+        return true;
+    }
+
+    /**
+     * Copies bytes from the input to the end of the message, growing the buffer up to the longest message allowed.
+     */
+    private void append(ByteBuffer in, int count) throws ProtocolException {
+        if (count == 0) {
+            return;
+        }
+        // a frame also holds its opcode, a line its line break
+        if (length + count > maxLength + 1) {
+            throw new ProtocolException("Message longer than " + maxLength + " bytes");
+        }
+        if (buffer == null || length + count > buffer.length) {
+            int size = buffer == null ? 256 : buffer.length;
+            while (size < length + count) {
+                size *= 2;
+            }
+            byte[] grown = new byte[Math.min(size, maxLength + 1)];
+            if (buffer != null) {
+                System.arraycopy(buffer, 0, grown, 0, length);
+            }
+            buffer = grown;
+        }
+        in.get(in.position(), buffer, length, count);
+        in.position(in.position() + count);
+        length += count;
+    }
+}